@@ -11,9 +11,11 @@ import java.security.spec.EncodedKeySpec;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.Deque;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -21,8 +23,14 @@ import at.ac.tuwien.dsg.orvell.Shell;
 import at.ac.tuwien.dsg.orvell.StopShellException;
 import at.ac.tuwien.dsg.orvell.annotation.Command;
 import dslab.ComponentFactory;
+import dslab.util.AesSession;
+import dslab.util.Compression;
 import dslab.util.Config;
+import dslab.util.DMAPFrameChannel;
+import dslab.util.DMTPPipeline;
+import dslab.util.DeflateCodec;
 import dslab.util.Keys;
+import dslab.util.Mail;
 
 import javax.crypto.*;
 import javax.crypto.spec.IvParameterSpec;
@@ -40,8 +48,14 @@ public class MessageClient implements IMessageClient, Runnable {
     private Mac mac;
     private PublicKey publicKey;
     private PrivateKey privateKey;
-    private SecretKey secretKey;
-    private IvParameterSpec initVec;
+    private AesSession aes;
+    private String ticket;
+    private DMAPFrameChannel frames;
+    private final Deque<String> frameLines = new ArrayDeque<>();
+    private boolean ticketsRefused;
+    private boolean binaryRefused;
+    private boolean deflateRefused;
+    private final Compression compression;
 
     /**
      * Creates a new client instance.
@@ -53,131 +67,311 @@ public class MessageClient implements IMessageClient, Runnable {
      */
     @Override
     public void run() {
+        try {
+            connectMailbox();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        shell.run();
+    }
+
+    /**
+     * Opens the DMAP connection, secures it and logs in. With a session ticket from an earlier connection the secure
+     * session is resumed in a single round trip, otherwise, or if the server refuses the ticket, the RSA handshake runs.
+     */
+    private void connectMailbox() throws IOException {
 
         String username = config.getString("mailbox.user");
         String password = config.getString("mailbox.password");
-        String mailboxHost = config.getString("mailbox.host");
-        int mailboxPort = config.getInt("mailbox.port");
 
+        openMailbox();
         try {
-            mailboxSocket = new Socket(mailboxHost, mailboxPort);
-            mailboxReader = new BufferedReader(new InputStreamReader(mailboxSocket.getInputStream()));
-            mailboxWriter = new PrintWriter(mailboxSocket.getOutputStream());
-            // Skip ok DMAP2.0 line
-            mailboxReader.readLine();
-            //Establish secure connection
-            mailboxWriter.println("startsecure");
-            mailboxWriter.flush();
-            //Retrieve Server Component Id
-            String res = mailboxReader.readLine();
-            if (!res.startsWith("ok")) {
-                System.out.println("Component Id Error, shutting down");
-                shutdown();
+            if ((ticket == null || !resumeSession()) && !startSecure()) {
+                // servers without session tickets end the session on the unknown command
+                mailboxSocket.close();
+                connectMailbox();
+                return;
             }
-            res = res.substring(res.indexOf(" ") + 1);
-            File publicKeyFile = new File("./keys/client/" + res + "_pub.der");
-
-            try {
-                //Generate Challenge, Secret Key and Initialization Vector
-                byte[] challenge = generateChallenge(32);
-                secretKey = generateSecretKey(256);
-                initVec = generateInitVec(16);
-                byte[] publicKeyBytes = Files.readAllBytes(publicKeyFile.toPath());
-                X509EncodedKeySpec keySpecPublic = new X509EncodedKeySpec(publicKeyBytes);
-
-                KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-
-                publicKey = keyFactory.generatePublic(keySpecPublic);
-
-                String challengeMsg = "ok " + encode(challenge) + " " + encode(secretKey.getEncoded()) + " " + encode(initVec.getIV());
-                String encryptedChallengeMsg = rsaEncrypt(challengeMsg, publicKey);
-                System.out.println(challengeMsg);
-                mailboxWriter.println(encryptedChallengeMsg);
-                mailboxWriter.flush();
-                //Check if challenge is correct
-                res = mailboxReader.readLine();
-                res = aesDecrypt(res);
-                res = res.substring(res.indexOf(' ') + 1);
-                if (!res.equals(encode(challenge))) {
-                    System.out.println("RSA Handshake failed, shutting down");
-                    shutdown();
-                } else {
-                    mailboxWriter.println(aesEncrypt("ok"));
-                    mailboxWriter.flush();
-                }
-                //RSA-Handshake completed proceed with login
-                String request = "login " + username + " " + password;
-                request = aesEncrypt(request);
-
-                mailboxWriter.println(request);
-                mailboxWriter.flush();
-
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException(e);
-            } catch (InvalidKeySpecException e) {
-                throw new RuntimeException(e);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+            if (config.containsKey("mailbox.framing") && config.getString("mailbox.framing").equals("binary")
+                    && !binaryRefused && !startBinary()) {
+                // servers without binary frames end the session on the unknown command
+                mailboxSocket.close();
+                connectMailbox();
+                return;
             }
-
-            String response = mailboxReader.readLine();
-            if (response == null) {
-                System.out.println("Failed to log in, shutting down");
-                shutdown();
+            if (frames != null && compression.isEnabled() && !deflateRefused && !startDeflate()) {
+                // the same for servers without compression, reconnecting keeps both cases simple
+                mailboxSocket.close();
+                connectMailbox();
+                return;
             }
+            //Secure session established proceed with login
+            sendMailbox("login " + username + " " + password);
+
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new RuntimeException(e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (InvalidKeySpecException e) {
+            throw new RuntimeException(e);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
         }
-        shell.run();
+
+        String response;
+        try {
+            response = readMailboxLine();
+        } catch (IllegalBlockSizeException | BadPaddingException e) {
+            response = null;
+        }
+        if (response == null) {
+            System.out.println("Failed to log in, shutting down");
+            shutdown();
+        }
+    }
+
+    /**
+     * Opens a new, unsecured DMAP connection.
+     */
+    private void openMailbox() throws IOException {
+        mailboxSocket = new Socket(config.getString("mailbox.host"), config.getInt("mailbox.port"));
+        mailboxReader = new BufferedReader(new InputStreamReader(mailboxSocket.getInputStream()));
+        mailboxWriter = new PrintWriter(mailboxSocket.getOutputStream());
+        frames = null;
+        frameLines.clear();
+        // Skip ok DMAP2.0 line
+        mailboxReader.readLine();
+    }
+
+    /**
+     * Runs the RSA handshake and asks the server for a ticket to resume the new session later.
+     *
+     * @return false if the server refused the ticket request, it may have closed the connection then
+     */
+    private boolean startSecure() throws Exception {
+        //Establish secure connection
+        mailboxWriter.println("startsecure");
+        mailboxWriter.flush();
+        //Retrieve Server Component Id
+        String res = mailboxReader.readLine();
+        if (!res.startsWith("ok")) {
+            System.out.println("Component Id Error, shutting down");
+            shutdown();
+        }
+        res = res.substring(res.indexOf(" ") + 1);
+        File publicKeyFile = new File("./keys/client/" + res + "_pub.der");
+
+        //Generate Challenge, Secret Key and Initialization Vector
+        byte[] challenge = generateChallenge(32);
+        SecretKey secretKey = generateSecretKey(256);
+        IvParameterSpec initVec = generateInitVec(16);
+        aes = new AesSession(secretKey, initVec);
+        byte[] publicKeyBytes = Files.readAllBytes(publicKeyFile.toPath());
+        X509EncodedKeySpec keySpecPublic = new X509EncodedKeySpec(publicKeyBytes);
+
+        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+
+        publicKey = keyFactory.generatePublic(keySpecPublic);
+
+        String challengeMsg = "ok " + encode(challenge) + " " + encode(secretKey.getEncoded()) + " " + encode(initVec.getIV());
+        String encryptedChallengeMsg = rsaEncrypt(challengeMsg, publicKey);
+        mailboxWriter.println(encryptedChallengeMsg);
+        mailboxWriter.flush();
+        //Check if challenge is correct
+        res = mailboxReader.readLine();
+        res = aesDecrypt(res);
+        res = res.substring(res.indexOf(' ') + 1);
+        if (!res.equals(encode(challenge))) {
+            System.out.println("RSA Handshake failed, shutting down");
+            shutdown();
+        } else {
+            mailboxWriter.println(aesEncrypt("ok"));
+            mailboxWriter.flush();
+        }
+
+        if (ticketsRefused) {
+            return true;
+        }
+        mailboxWriter.println(aesEncrypt("ticket"));
+        mailboxWriter.flush();
+        res = aesDecrypt(mailboxReader.readLine());
+        if (res == null || !res.startsWith("ok ")) {
+            ticketsRefused = true;
+            return false;
+        }
+        ticket = res.substring(3);
+        return true;
+    }
+
+    /**
+     * Resumes the secure session of the last connection with its ticket. Both sides derive a new AES key from the old
+     * one and a fresh nonce, the encrypted answer proves that the server could open the ticket.
+     *
+     * @return false if the server refused the ticket, the connection is still unsecured then, or a new one if the
+     *         server closed it
+     */
+    private boolean resumeSession() throws Exception {
+        byte[] nonce = generateChallenge(32);
+        mailboxWriter.println("resume " + ticket + " " + encode(nonce));
+        mailboxWriter.flush();
+        // a ticket is only good for one resume
+        ticket = null;
+        String res = mailboxReader.readLine();
+        if (res == null) {
+            mailboxSocket.close();
+            openMailbox();
+            return false;
+        }
+        if (res.startsWith("error")) {
+            return false;
+        }
+        AesSession resumed = aes.resume(nonce);
+        res = resumed.decrypt(res);
+        if (!res.startsWith("ok ")) {
+            System.out.println("Session resumption failed, shutting down");
+            shutdown();
+        }
+        aes = resumed;
+        ticket = res.substring(3);
+        return true;
+    }
+
+    /**
+     * Switches the secured connection to binary frames.
+     *
+     * @return false if the server refused, it may have closed the connection then
+     */
+    private boolean startBinary() throws IOException, GeneralSecurityException {
+        mailboxWriter.println(aesEncrypt(DMAPFrameChannel.COMMAND));
+        mailboxWriter.flush();
+        String res = mailboxReader.readLine();
+        if (res == null || !aesDecrypt(res).equals("ok")) {
+            binaryRefused = true;
+            return false;
+        }
+        frames = new DMAPFrameChannel(mailboxSocket.getInputStream(), mailboxSocket.getOutputStream(), aes, false);
+        return true;
+    }
+
+    /**
+     * Compresses the frames of the connection from now on.
+     *
+     * @return false if the server refused, it may have closed the connection then
+     */
+    private boolean startDeflate() throws IOException {
+        frames.write(Compression.DEFLATE);
+        if (!"ok".equals(frames.read())) {
+            deflateRefused = true;
+            return false;
+        }
+        frames.enableCompression(compression.newCodec());
+        return true;
+    }
+
+    /**
+     * Sends a request to the mailbox server, as a frame or as an encrypted line.
+     */
+    private void sendMailbox(String request) throws IOException, IllegalBlockSizeException, BadPaddingException {
+        if (frames != null) {
+            frames.write(request);
+        } else {
+            mailboxWriter.println(aesEncrypt(request));
+            mailboxWriter.flush();
+        }
+    }
+
+    /**
+     * Reconnects to the mailbox server if the connection was closed.
+     *
+     * @return false if the mailbox server cannot be reached
+     */
+    private boolean ensureConnected() {
+        if (mailboxSocket != null && !mailboxSocket.isClosed()) return true;
+        try {
+            connectMailbox();
+            return true;
+        } catch (IOException e) {
+            shell.out().println("error could not connect to mailbox server: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Reads and decrypts the next response line from the mailbox server, the lines of a frame are returned one by one.
+     * Closes the socket at the end of the stream, so the next command reconnects.
+     */
+    private String readMailboxLine() throws IOException, IllegalBlockSizeException, BadPaddingException {
+        if (frames != null) {
+            if (frameLines.isEmpty()) {
+                String frame = frames.read();
+                if (frame == null) {
+                    mailboxSocket.close();
+                    return null;
+                }
+                frameLines.addAll(Arrays.asList(frame.split("\n")));
+            }
+            return frameLines.poll();
+        }
+        String line = mailboxReader.readLine();
+        if (line == null) {
+            mailboxSocket.close();
+        }
+        return aesDecrypt(line);
     }
 
     @Command
     @Override
     public void inbox() throws InvalidAlgorithmParameterException, NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
-        mailboxWriter.println((aesEncrypt("list")));
-        mailboxWriter.flush();
-        List<String> mails = new ArrayList<>();
-        String mailEntry;
+        if (!ensureConnected()) return;
+        List<String[]> mails = new ArrayList<>();
         try {
-            while (((mailEntry = aesDecrypt(mailboxReader.readLine())) != null)) {
-                if (mailEntry.startsWith("no")) {
-                    shell.out().println(mailEntry);
-                    return;
-                }
-                if (mailEntry.startsWith("ok")) {
-                    break;
-                }
-                mails.add(mailEntry);
+            String status = fetch("", mails);
+            if (!"ok".equals(status)) {
+                if (status != null) shell.out().println(status);
+                return;
             }
-            for(String mail : mails) {
-                String mailId = mail.split(" ")[0];
-                mailboxWriter.println(aesEncrypt("show " + mailId));
-                mailboxWriter.flush();
-                String from = aesDecrypt(mailboxReader.readLine()).split("\\s", 2)[1];
-                String to = aesDecrypt(mailboxReader.readLine()).split("\\s", 2)[1];
-                String subject = aesDecrypt(mailboxReader.readLine()).split("\\s", 2)[1];
-                String data = aesDecrypt(mailboxReader.readLine()).split("\\s", 2)[1];
-                // Don't need hash, but need to skip line
-                mailboxReader.readLine();
-                shell.out().println("Mail " + mailId + ", " + subject + ": ");
-                shell.out().println("From: " + from);
-                shell.out().println("To: " + to);
-                shell.out().println(data + "\n");
+            for (String[] mail : mails) {
+                shell.out().println("Mail " + mail[0] + ", " + mail[3] + ": ");
+                shell.out().println("From: " + mail[1]);
+                shell.out().println("To: " + mail[2]);
+                shell.out().println(mail[4] + "\n");
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Fetches the mails in the given id range with a single request instead of a show request per mail.
+     *
+     * @param range the first and last id separated by a space, or an empty string for all mails
+     * @param mails receives every mail as id, from, to, subject, data and hash
+     * @return the last line of the response, "ok" if there were mails, or null if the connection was closed
+     */
+    private String fetch(String range, List<String[]> mails) throws IOException, IllegalBlockSizeException, BadPaddingException {
+        sendMailbox(range.isEmpty() ? "fetch" : "fetch " + range);
+        String line;
+        while ((line = readMailboxLine()) != null && line.startsWith("mail ")) {
+            String[] mail = new String[6];
+            mail[0] = line.substring("mail ".length());
+            for (int i = 1; i < mail.length; i++) {
+                String field = readMailboxLine();
+                if (field == null) return null;
+                String[] parts = field.split("\\s", 2);
+                mail[i] = parts.length > 1 ? parts[1] : "";
+            }
+            mails.add(mail);
+        }
+        return line;
+    }
+
     @Command
     @Override
     public void delete(String id) throws InvalidAlgorithmParameterException, NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
-        mailboxWriter.println(aesEncrypt("delete " + id));
-        mailboxWriter.flush();
+        if (!ensureConnected()) return;
         try {
-            shell.out().println(mailboxReader.readLine());
+            sendMailbox("delete " + id);
+            shell.out().println(readMailboxLine());
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -186,25 +380,25 @@ public class MessageClient implements IMessageClient, Runnable {
     @Command
     @Override
     public void verify(String id) {
+        if (!ensureConnected()) return;
         try {
-            mailboxWriter.println(aesEncrypt("show " + id));
-            mailboxWriter.flush();
-            String from = aesDecrypt(mailboxReader.readLine()).split("\\s", 2)[1];
-            String to = aesDecrypt(mailboxReader.readLine()).split("\\s", 2)[1];
-            String subject = aesDecrypt(mailboxReader.readLine()).split("\\s", 2)[1];
-            String data = aesDecrypt(mailboxReader.readLine()).split("\\s", 2)[1];
-            String[] hashOpt = aesDecrypt(mailboxReader.readLine()).split("\\s", 2);
-            if (hashOpt.length <= 1) {
+            List<String[]> mails = new ArrayList<>();
+            fetch(id + " " + id, mails);
+            if (mails.isEmpty() || mails.get(0)[5].isEmpty()) {
                 shell.out().println("error");
                 return;
             }
-            String hash = hashOpt[1];
+            String[] mail = mails.get(0);
+            String from = mail[1];
+            String to = mail[2];
+            String subject = mail[3];
+            String data = mail[4];
+            String hash = mail[5];
             String msg = String.join("\n", from, to, subject, data);
             byte[] resultHash = mac.doFinal(msg.getBytes());
             if (hash.equals(Base64.getEncoder().withoutPadding().encodeToString(resultHash))) shell.out().println("ok");
             else shell.out().println("error");
-        } catch (IOException | NoSuchPaddingException | NoSuchAlgorithmException | InvalidAlgorithmParameterException |
-                 InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
+        } catch (IOException | IllegalBlockSizeException | BadPaddingException e) {
             System.out.println("Failed to verify message");
         }
     }
@@ -215,59 +409,84 @@ public class MessageClient implements IMessageClient, Runnable {
         String email = config.getString("transfer.email");
         String transferHost = config.getString("transfer.host");
         int transferPort = config.getInt("transfer.port");
-        String[] commandOrder = {"begin", "to", "from", "subject", "data", "hash", "send", "quit"};
+        Socket transferSocket = null;
+        DeflateCodec codec = null;
         try {
-            Socket transferSocket = new Socket(transferHost, transferPort);
+            transferSocket = new Socket(transferHost, transferPort);
             BufferedReader transferReader = new BufferedReader(new InputStreamReader(transferSocket.getInputStream()));
             PrintWriter transferWriter = new PrintWriter(transferSocket.getOutputStream());
             // Skip ok DMTP2.0 line
             transferReader.readLine();
 
+            transferWriter.println(DMTPPipeline.CAPABILITIES);
+            transferWriter.flush();
+            String capabilities = transferReader.readLine();
+            boolean pipelining = DMTPPipeline.supportsPipelining(capabilities);
+            if (compression.isEnabled() && DMTPPipeline.supportsDeflate(capabilities)) {
+                codec = compression.newCodec();
+            }
+            if (capabilities == null || capabilities.startsWith("error")) {
+                // servers without the extension end the session on the unknown command
+                transferSocket.close();
+                transferSocket = new Socket(transferHost, transferPort);
+                transferReader = new BufferedReader(new InputStreamReader(transferSocket.getInputStream()));
+                transferWriter = new PrintWriter(transferSocket.getOutputStream());
+                transferReader.readLine();
+            }
+
             String msg = String.join("\n", email, to, subject, data);
             byte[] hash = mac.doFinal(msg.getBytes());
 
-            // DMTP command loop
-            for (String command : commandOrder) {
-                String message = command;
-                switch (command) {
-                    case "to":
-                        message = command + " " + to;
-                        break;
-                    case "from":
-                        message = command + " " + email;
-                        break;
-                    case "subject":
-                        message = command + " " + subject;
-                        break;
-                    case "data":
-                        message = command + " " + data;
-                        break;
-                    case "hash":
-                        message = command + " " + Base64.getEncoder().withoutPadding().encodeToString(hash);
-                        break;
-                }
-                transferWriter.println(message);
-                transferWriter.flush();
-                String errMsg = transferReader.readLine();
-                if (errMsg != null && errMsg.startsWith("error")) {
-                    shell.out().println(errMsg);
+            Mail mail = new Mail(email, List.of(to), subject, data);
+            mail.setHash(Base64.getEncoder().withoutPadding().encodeToString(hash));
+            List<String> commands = new ArrayList<>(DMTPPipeline.commands(mail));
+            commands.add("quit");
+
+            String errMsg = DMTPPipeline.execute(transferReader, transferWriter, commands, pipelining, codec);
+            if (errMsg != null) {
+                shell.out().println(errMsg);
+                if (!pipelining) {
                     transferWriter.println("quit");
                     transferWriter.flush();
-                    return;
                 }
+                return;
             }
             shell.out().println("ok");
         } catch (IOException | NullPointerException e) {
             e.printStackTrace();
+        } finally {
+            if (codec != null) {
+                codec.close();
+            }
+            if (transferSocket != null && !transferSocket.isClosed()) {
+                try {
+                    transferSocket.close();
+                } catch (IOException e) {
+                    // Ignored because we cannot handle it
+                }
+            }
         }
 
     }
 
+    /**
+     * CLI command to show how much the compressed messages shrank and the CPU time spent on compression.
+     */
+    @Command
+    public void compression() {
+        shell.out().println(compression.stats());
+    }
+
     @Command
     @Override
     public void shutdown() {
-        mailboxWriter.println("logout");
-        mailboxWriter.flush();
+        if (mailboxSocket != null && !mailboxSocket.isClosed() && aes != null) {
+            try {
+                sendMailbox("logout");
+            } catch (IOException | IllegalBlockSizeException | BadPaddingException e) {
+                // the connection is closed anyway
+            }
+        }
         if (mailboxSocket != null && !mailboxSocket.isClosed()) {
             try {
                 mailboxSocket.close();
@@ -291,6 +510,9 @@ public class MessageClient implements IMessageClient, Runnable {
         this.shell = new Shell(in, out);
         shell.register(this);
         shell.setPrompt(componentId + "> ");
+        this.compression = new Compression(
+                config.containsKey("compression") && config.getString("compression").equals(Compression.DEFLATE),
+                config.containsKey("compression.threshold.bytes") ? config.getInt("compression.threshold.bytes") : 256);
         try {
             mac = Mac.getInstance("HmacSHA256");
             mac.init(Keys.readSecretKey(new File("keys/hmac.key")));
@@ -307,18 +529,12 @@ public class MessageClient implements IMessageClient, Runnable {
         return encode(encryptedMsg);
     }
 
-    private String aesEncrypt(String msg) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
-        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
-        cipher.init(Cipher.ENCRYPT_MODE, this.secretKey, this.initVec);
-        byte[] cipherText = cipher.doFinal(msg.getBytes());
-        return encode(cipherText);
+    private String aesEncrypt(String msg) throws IllegalBlockSizeException, BadPaddingException {
+        return aes.encrypt(msg);
     }
 
-    private String aesDecrypt(String msg) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
-        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
-        cipher.init(Cipher.DECRYPT_MODE, this.secretKey, this.initVec);
-        byte[] cipherText = cipher.doFinal(decode(msg));
-        return new String(cipherText);
+    private String aesDecrypt(String msg) throws IllegalBlockSizeException, BadPaddingException {
+        return aes.decrypt(msg);
     }
 
     private static String encode(byte[] data) {
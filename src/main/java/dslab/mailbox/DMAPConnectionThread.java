@@ -1,6 +1,10 @@
 package dslab.mailbox;
 
+import dslab.util.AesSession;
+import dslab.util.AsyncLog;
+import dslab.util.Compression;
 import dslab.util.Config;
+import dslab.util.DMAPFrameChannel;
 import dslab.util.Mail;
 
 import javax.crypto.*;
@@ -9,37 +13,47 @@ import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
-import java.nio.file.Files;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.PKCS8EncodedKeySpec;
 import java.util.Arrays;
 import java.util.Base64;
-import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.SortedSet;
 
 /**
  * Thread to listen for incoming connections on the given socket.
  */
-public class DMAPConnectionThread extends Thread {
+public class DMAPConnectionThread implements Runnable {
+
+    // with binary frames list and fetch responses are split into frames of about this many characters
+    private static final int FRAME_CHARS = 64 * 1024;
 
     private final Socket socket;
     private final Config userConfig;
-    private final ConcurrentHashMap<String, List<Mail>> mailBoxes;
+    private final MailboxStore mailBoxes;
+    private final IndexedMailboxStore searchIndex;
     private String currentUser = null;
     private boolean quit = false;
     private final String componentId;
 
-    private SecretKey secretKey;
-    private IvParameterSpec iv;
+    private final PrivateKey privateKey;
+    private final SessionTickets tickets;
+    private final Compression compression;
+    private final AsyncLog.Logger log;
+    private AesSession aes;
+    private DMAPFrameChannel frames;
 
     private boolean aesEstablished = false;
 
-    public DMAPConnectionThread(Socket socket, Config userConfig, ConcurrentHashMap<String, List<Mail>> mailBoxes, String componentId) {
+    public DMAPConnectionThread(Socket socket, Config userConfig, MailboxStore mailBoxes, IndexedMailboxStore searchIndex, String componentId, PrivateKey privateKey, SessionTickets tickets, Compression compression, AsyncLog.Logger log) {
         this.socket = socket;
         this.userConfig = userConfig;
         this.mailBoxes = mailBoxes;
+        this.searchIndex = searchIndex;
         this.componentId = componentId;
+        this.privateKey = privateKey;
+        this.tickets = tickets;
+        this.compression = compression;
+        this.log = log;
     }
 
     public void run() {
@@ -56,47 +70,77 @@ public class DMAPConnectionThread extends Thread {
             //Handshake-Protocol Variables
             boolean secureStarted = false;
             boolean rsaComplete = false;
-            PrivateKey privateKey = null;
             String challenge = null;
             // read client requests
-            while ((request = reader.readLine()) != null) {
+            while ((request = frames != null ? frames.read() : reader.readLine()) != null) {
                 //Check if client verified servers identity
 
-                //If RSA-Completed then decrypt AES-Encrypted messages
-                if (rsaComplete) {
+                //If RSA-Completed then decrypt AES-Encrypted messages, frames are decrypted by the frame channel
+                if (rsaComplete && frames == null) {
                     request = aesDecrypt(request);
                 }
 
-                System.out.println("C: " + request);
+                if (log.isTraceEnabled()) {
+                    log.trace("C: " + redact(request, secureStarted));
+                }
 
                 String[] parts = request.split("\\s");
 
                 String response = "";
+                // responses carrying a ticket or the challenge are not traced
+                boolean secret = false;
                 if (request.startsWith("startsecure")) {
-                    System.out.println("Startsecure initiated");
-                    response = "ok " + componentId;
-                    secureStarted = true;
+                    if (privateKey == null) {
+                        response = "error secure connections are not available";
+                    } else {
+                        response = "ok " + componentId;
+                        secureStarted = true;
+                    }
                 } else if (secureStarted) {
-                    System.out.println("SecureChannel: Receiving client response");
-                    File privateKeyFile = new File("./keys/server/" + componentId + ".der");
-                    byte[] privateKeyBytes = Files.readAllBytes(privateKeyFile.toPath());
-                    PKCS8EncodedKeySpec keySpecPrivate = new PKCS8EncodedKeySpec(privateKeyBytes);
-                    KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-                    privateKey = keyFactory.generatePrivate(keySpecPrivate);
                     String decryptedMsg = rsaDecrypt(request, privateKey);
-                    System.out.println("Server received: " + decryptedMsg);
                     String[] msgComponents = decryptedMsg.split(" ");
                     challenge = msgComponents[1];
                     //Set AES Parameters
-                    byte[] secretKeyBytes = decode(msgComponents[2]);
-                    secretKey = new SecretKeySpec(secretKeyBytes, "AES");
-                    iv = new IvParameterSpec(decode(msgComponents[3]));
+                    aes = new AesSession(new SecretKeySpec(decode(msgComponents[2]), "AES"),
+                            new IvParameterSpec(decode(msgComponents[3])));
 
                     //Send decrypted Challenge to Client
                     response = "ok " + challenge;
                     response = aesEncrypt(response);
+                    secret = true;
                     secureStarted = false;
                     rsaComplete = true;
+                    log.debug("secure session established");
+                } else if (request.startsWith("resume") && !rsaComplete) {
+                    // resumes the secure session of an earlier connection, the answer is encrypted on success
+                    AesSession resumed = null;
+                    try {
+                        byte[] nonce = parts.length == 3 ? decode(parts[2]) : null;
+                        resumed = nonce == null ? null : tickets.redeem(parts[1]);
+                        if (resumed != null) resumed = resumed.resume(nonce);
+                    } catch (IllegalArgumentException e) {
+                        // the nonce is not valid Base64
+                    }
+                    if (resumed == null) {
+                        response = "error invalid ticket";
+                    } else {
+                        aes = resumed;
+                        rsaComplete = true;
+                        aesEstablished = true;
+                        response = "ok " + tickets.issue(aes);
+                        secret = true;
+                        log.debug("secure session resumed");
+                    }
+                } else if (request.equals("ticket")) {
+                    response = aesEstablished ? "ok " + tickets.issue(aes) : "error no secure session";
+                    secret = aesEstablished;
+                } else if (request.equals(DMAPFrameChannel.COMMAND)) {
+                    // the answer is the last text line, binary frames follow
+                    response = aesEstablished && frames == null ? "ok" : "error no secure session";
+                } else if (request.equals(Compression.DEFLATE)) {
+                    // the answer is the last uncompressed frame
+                    if (frames == null) response = "error binary framing required";
+                    else response = compression.isEnabled() ? "ok" : "error compression not available";
                 } else if (request.equals("ok") && !aesEstablished) {
                     aesEstablished = true; //Finalize Handshake
                     continue;
@@ -107,7 +151,16 @@ public class DMAPConnectionThread extends Thread {
                         if (response.equals("ok")) currentUser = parts[1];
                     }
                 } else if (request.startsWith("list")) {
-                    response = list();
+                    // list writes its entries straight to the client
+                    list(writer, parts);
+                    continue;
+                } else if (request.startsWith("fetch")) {
+                    // fetch streams its mails straight to the client
+                    fetch(writer, parts);
+                    continue;
+                } else if (request.startsWith("search")) {
+                    if (parts.length < 2) response = "invalid number of arguments";
+                    else response = search(request.substring("search".length()));
                 } else if (request.startsWith("show")) {
                     if (parts.length != 2) response = "invalid number of arguments";
                     else {
@@ -137,14 +190,16 @@ public class DMAPConnectionThread extends Thread {
                     quit = true;
                 }
 
-                // print request, depending on handshake finalized encrypt message
-                System.out.println("S: " + response);
-                if (aesEstablished && !request.equals("list") && !request.startsWith("show")) {
-                    writer.println(aesEncrypt(response));
-                } else {
-                    writer.println(response);
+                // trace response, depending on handshake finalized encrypt message
+                if (log.isTraceEnabled()) {
+                    log.trace("S: " + (secret ? "ok <redacted>" : response));
+                }
+                send(writer, response);
+                if (request.equals(DMAPFrameChannel.COMMAND) && response.equals("ok")) {
+                    frames = new DMAPFrameChannel(socket.getInputStream(), socket.getOutputStream(), aes, true);
+                } else if (request.equals(Compression.DEFLATE) && response.equals("ok")) {
+                    frames.enableCompression(compression.newCodec());
                 }
-                writer.flush();
                 if (quit) break;
             }
 
@@ -154,7 +209,7 @@ public class DMAPConnectionThread extends Thread {
         } catch (SocketException e) {
             // when the socket is closed, the I/O methods of the Socket will throw a SocketException
             // almost all SocketException cases indicate that the socket was closed
-            System.out.println("SocketException while handling socket: " + e.getMessage());
+            log.warn("SocketException while handling socket: " + e.getMessage());
         } catch (IOException e) {
             // you should properly handle all other exceptions
             throw new UncheckedIOException(e);
@@ -165,6 +220,9 @@ public class DMAPConnectionThread extends Thread {
         } catch (Exception e) {
             throw new RuntimeException(e);
         } finally {
+            if (frames != null) {
+                frames.close();
+            }
             if (socket != null && !socket.isClosed()) {
                 try {
                     socket.close();
@@ -182,92 +240,160 @@ public class DMAPConnectionThread extends Thread {
         return "error user not found";
     }
 
-    public String list() throws InvalidAlgorithmParameterException, NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
-        if (currentUser != null) {
-            if (mailBoxes.containsKey(currentUser) && mailBoxes.get(currentUser).size() > 0) {
-                String allMails = "";
-                String separator = System.getProperty("line.separator");
-                for (Mail mail : mailBoxes.get(currentUser)) {
-                    if(aesEstablished){
-                        allMails = allMails.concat(aesEncrypt(mail.toString()));
-                    }else{
-                        allMails = allMails.concat(mail.toString());
-                    }
-                    if (!mail.equals(mailBoxes.get(currentUser).get(mailBoxes.get(currentUser).size() - 1)))
-                        allMails = allMails.concat(separator);
-                }
-                allMails = allMails.concat(separator);
-                if(aesEstablished) {
-                    allMails = allMails.concat(aesEncrypt("ok"));
-                }else{
-                    allMails = allMails.concat("ok");
+    /**
+     * Writes the mails of the current user to the client, one line per mail followed by "ok". The request may be
+     * {@code list}, {@code list <offset> <limit>} to page through the mailbox or {@code list since <id>} to only list
+     * mails with a higher message id.
+     */
+    public void list(PrintWriter writer, String[] parts) throws IOException, IllegalBlockSizeException, BadPaddingException {
+        if (parts.length != 1 && parts.length != 3) {
+            respond(writer, "invalid number of arguments");
+            return;
+        }
+        if (currentUser == null) {
+            respond(writer, "error not logged in");
+            return;
+        }
+
+        int since = 0;
+        int offset = 0;
+        int limit = Integer.MAX_VALUE;
+        if (parts.length == 3) {
+            try {
+                if (parts[1].equals("since")) {
+                    since = Integer.parseInt(parts[2]);
+                } else {
+                    offset = Integer.parseInt(parts[1]);
+                    limit = Integer.parseInt(parts[2]);
                 }
-                return allMails;
+            } catch (NumberFormatException e) {
+                respond(writer, "parameter is not a valid number");
+                return;
             }
-            if(aesEstablished){
-                return aesEncrypt("no mail");
-            }else{
-                return "no mail";
+            if (offset < 0 || limit < 0) {
+                respond(writer, "parameter is not a valid number");
+                return;
             }
         }
-        if(aesEstablished){
-            return aesEncrypt("error not logged in");
-        }else{
-            return "error not logged in";
+
+        Mailbox mailbox = mailBoxes.get(currentUser);
+        int listed = 0;
+        // with binary frames the entries are collected into a few large frames
+        StringBuilder frame = frames == null ? null : new StringBuilder();
+        if (mailbox != null) {
+            int skipped = 0;
+            for (Mail mail : mailbox.mailsAfter(since)) {
+                if (listed == limit) break;
+                if (skipped < offset) {
+                    skipped++;
+                    continue;
+                }
+                String line = mail.toString();
+                if (log.isTraceEnabled()) log.trace("S: " + line);
+                if (frame != null) {
+                    appendToFrame(frame, line);
+                } else {
+                    writer.println(aesEstablished ? aesEncrypt(line) : line);
+                }
+                listed++;
+            }
         }
+        String status = listed == 0 ? "no mail" : "ok";
+        if (log.isTraceEnabled()) log.trace("S: " + status);
+        send(writer, frame == null ? status : frame.append(status).toString());
     }
 
-    public String show(int messageId) throws InvalidAlgorithmParameterException, NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
+    /**
+     * Returns the mail with the given id as five lines, separated by '\n'.
+     */
+    public String show(int messageId) {
         if (currentUser != null) {
-            if (mailBoxes.containsKey(currentUser)) {
-                for (Mail mail : mailBoxes.get(currentUser)) {
-                    if (mail.getMessageId() == messageId) {
-                        String separator = System.getProperty("line.separator");
-                        String hash = mail.getHash() == null ? "" : mail.getHash();
-                        String recipientList = Arrays.toString(mail.getRecipients().toArray());
-                        if(aesEstablished){
-                            String res = aesEncrypt("from " + mail.getSender());
-                            res += separator;
-                            res += (aesEncrypt("to " + recipientList.substring(1, recipientList.length() - 1)));
-                            res += separator;
-                            res += (aesEncrypt("subject " + mail.getSubject()));
-                            res += separator;
-                            res += (aesEncrypt("data " + mail.getData()));
-                            res += separator;
-                            res += (aesEncrypt("hash " + hash));
-                            return res;
-                        }else{
-                            return "from " + mail.getSender() + separator +
-                                    "to " + recipientList.substring(1, recipientList.length() - 1) + separator +
-                                    "subject " + mail.getSubject() + separator +
-                                    "data " + mail.getData() + separator +
-                                    "hash " + hash;
-                        }
+            Mailbox mailbox = mailBoxes.get(currentUser);
+            Mail mail = mailbox == null ? null : mailbox.get(messageId);
+            if (mail != null) {
+                return format(mail);
+            }
+            return "error unknown message id";
+        }
+        return "error not logged in";
+    }
+
+    /**
+     * Writes the mails of the current user to the client in one response: for every mail a line {@code mail <id>}
+     * followed by the five lines of {@link #show(int)}, then "ok". The request may be {@code fetch} for all mails or
+     * {@code fetch <from> <to>} for the mails with an id in the given range, both ends included.
+     */
+    public void fetch(PrintWriter writer, String[] parts) throws IOException, IllegalBlockSizeException, BadPaddingException {
+        if (parts.length != 1 && parts.length != 3) {
+            respond(writer, "invalid number of arguments");
+            return;
+        }
+        if (currentUser == null) {
+            respond(writer, "error not logged in");
+            return;
+        }
+
+        int from = 1;
+        int to = Integer.MAX_VALUE;
+        if (parts.length == 3) {
+            try {
+                from = Integer.parseInt(parts[1]);
+                to = Integer.parseInt(parts[2]);
+            } catch (NumberFormatException e) {
+                respond(writer, "parameter is not a valid message-id");
+                return;
+            }
+        }
+
+        Mailbox mailbox = mailBoxes.get(currentUser);
+        int fetched = 0;
+        // with binary frames the mails are collected into a few large frames
+        StringBuilder frame = frames == null ? null : new StringBuilder();
+        if (mailbox != null && from <= to) {
+            for (Mail mail : mailbox.mailsAfter(Math.max(from, 1) - 1)) {
+                if (mail.getMessageId() > to) break;
+                String response = "mail " + mail.getMessageId() + "\n" + format(mail);
+                if (log.isTraceEnabled()) log.trace("S: " + response);
+                if (frame != null) {
+                    appendToFrame(frame, response);
+                } else {
+                    for (String line : response.split("\n")) {
+                        writer.println(aesEstablished ? aesEncrypt(line) : line);
                     }
                 }
-            }
-            if(aesEstablished){
-                return aesEncrypt("error unknown message id");
-            }else{
-                return "error unknown message id";
+                fetched++;
             }
         }
-        if(aesEstablished){
-            return aesEncrypt("error not logged in");
-        }else{
-            return "error not logged in";
+        String status = fetched == 0 ? "no mail" : "ok";
+        if (log.isTraceEnabled()) log.trace("S: " + status);
+        send(writer, frame == null ? status : frame.append(status).toString());
+    }
+
+    /**
+     * Returns the ids of the mails of the current user that contain all of the given terms in their sender, subject
+     * or data, in the form {@code ok <id> ...}.
+     */
+    public String search(String terms) {
+        if (currentUser == null) return "error not logged in";
+        SortedSet<Integer> ids = searchIndex.search(currentUser, terms);
+        if (ids.isEmpty()) return "no mail";
+        StringBuilder response = new StringBuilder("ok");
+        for (int id : ids) {
+            response.append(' ').append(id);
         }
+        return response.toString();
     }
 
     public String delete(int messageId) {
         if (currentUser != null) {
-            if (mailBoxes.containsKey(currentUser)) {
-                for (Mail mail : mailBoxes.get(currentUser)) {
-                    if (mail.getMessageId() == messageId) {
-                        mailBoxes.get(currentUser).remove(mail);
-                        return "ok";
-                    }
+            Mailbox mailbox = mailBoxes.get(currentUser);
+            try {
+                if (mailbox != null && mailbox.remove(messageId)) {
+                    return "ok";
                 }
+            } catch (IOException e) {
+                log.error("Could not delete mail " + messageId + ": " + e.getMessage());
+                return "error could not delete mail";
             }
             return "error unknown message id";
         }
@@ -280,6 +406,63 @@ public class DMAPConnectionThread extends Thread {
         return "ok";
     }
 
+    private void respond(PrintWriter writer, String response) throws IOException, IllegalBlockSizeException, BadPaddingException {
+        if (log.isTraceEnabled()) log.trace("S: " + response);
+        send(writer, response);
+    }
+
+    /**
+     * Sends a complete response: as one frame with binary framing, otherwise line by line, each line encrypted on its
+     * own once the secure session is established.
+     */
+    private void send(PrintWriter writer, String response) throws IOException, IllegalBlockSizeException, BadPaddingException {
+        if (frames != null) {
+            frames.write(response);
+            return;
+        }
+        if (aesEstablished) {
+            for (String line : response.split("\n")) {
+                writer.println(aesEncrypt(line));
+            }
+        } else {
+            writer.println(response);
+        }
+        writer.flush();
+    }
+
+    /**
+     * Adds lines of a response to the current frame and sends the frame once it is large enough. The client reads the
+     * lines of a response across frames.
+     */
+    private void appendToFrame(StringBuilder frame, String lines) throws IOException {
+        frame.append(lines).append('\n');
+        if (frame.length() >= FRAME_CHARS) {
+            frames.write(frame.substring(0, frame.length() - 1));
+            frame.setLength(0);
+        }
+    }
+
+    private static String format(Mail mail) {
+        String hash = mail.getHash() == null ? "" : mail.getHash();
+        String recipientList = Arrays.toString(mail.getRecipients().toArray());
+        return "from " + mail.getSender() + "\n" +
+                "to " + recipientList.substring(1, recipientList.length() - 1) + "\n" +
+                "subject " + mail.getSubject() + "\n" +
+                "data " + mail.getData() + "\n" +
+                "hash " + hash;
+    }
+
+    /**
+     * Returns the request as it is traced, without the secrets it carries.
+     */
+    private static String redact(String request, boolean handshake) {
+        if (handshake) return "<client challenge>";
+        String[] parts = request.split("\\s");
+        if (parts[0].equals("login") && parts.length == 3) return "login " + parts[1] + " <redacted>";
+        if (parts[0].equals("resume")) return "resume <redacted>";
+        return request;
+    }
+
     public static String rsaDecrypt(String msg, PrivateKey key) throws Exception {
         byte[] encryptedBytes = decode(msg);
         Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
@@ -288,18 +471,12 @@ public class DMAPConnectionThread extends Thread {
         return new String(decryptedMessage, "UTF8");
     }
 
-    private String aesEncrypt(String msg) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
-        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
-        cipher.init(Cipher.ENCRYPT_MODE, this.secretKey, this.iv);
-        byte[] cipherText = cipher.doFinal(msg.getBytes());
-        return encode(cipherText);
+    private String aesEncrypt(String msg) throws IllegalBlockSizeException, BadPaddingException {
+        return aes.encrypt(msg);
     }
 
-    private String aesDecrypt(String msg) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
-        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
-        cipher.init(Cipher.DECRYPT_MODE, this.secretKey, this.iv);
-        byte[] cipherText = cipher.doFinal(decode(msg));
-        return new String(cipherText);
+    private String aesDecrypt(String msg) throws IllegalBlockSizeException, BadPaddingException {
+        return aes.decrypt(msg);
     }
 
     private static String encode(byte[] data) {
@@ -1,27 +1,40 @@
 package dslab.mailbox;
 
+import dslab.util.AsyncLog;
+import dslab.util.Compression;
 import dslab.util.Config;
-import dslab.util.Mail;
+import dslab.util.ConnectionExecutor;
 
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.security.PrivateKey;
 
 public class DMAPListenerThread implements Runnable {
 
     private final ServerSocket serverSocket;
     private final Config userConfig;
-    private final ConcurrentHashMap<String, List<Mail>> mailBoxes;
+    private final MailboxStore mailBoxes;
+    private final IndexedMailboxStore searchIndex;
 
     private final String componentId;
+    private final PrivateKey privateKey;
+    private final SessionTickets tickets;
+    private final ConnectionExecutor connections;
+    private final Compression compression;
+    private final AsyncLog.Logger log;
 
-    public DMAPListenerThread(ServerSocket serverSocket, Config userConfig, ConcurrentHashMap<String, List<Mail>> mailBoxes, String componentId) {
+    public DMAPListenerThread(ServerSocket serverSocket, Config userConfig, MailboxStore mailBoxes, IndexedMailboxStore searchIndex, String componentId, PrivateKey privateKey, SessionTickets tickets, ConnectionExecutor connections, Compression compression, AsyncLog.Logger log) {
         this.serverSocket = serverSocket;
         this.userConfig = userConfig;
         this.mailBoxes = mailBoxes;
+        this.searchIndex = searchIndex;
         this.componentId = componentId;
+        this.privateKey = privateKey;
+        this.tickets = tickets;
+        this.connections = connections;
+        this.compression = compression;
+        this.log = log;
     }
 
     public void run() {
@@ -30,10 +43,10 @@ public class DMAPListenerThread implements Runnable {
             while (true) {
                 // wait for Client to connect
                 socket = serverSocket.accept();
-                new DMAPConnectionThread(socket, userConfig, mailBoxes, componentId).start();
+                connections.execute(socket, new DMAPConnectionThread(socket, userConfig, mailBoxes, searchIndex, componentId, privateKey, tickets, compression, log));
             }
         } catch (IOException e) {
-            System.out.println("IOException while running DMAP listener: " + e.getMessage());
+            log.warn("IOException while running DMAP listener: " + e.getMessage());
         }
     }
 }
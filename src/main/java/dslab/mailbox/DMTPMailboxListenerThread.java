@@ -1,29 +1,33 @@
 package dslab.mailbox;
 
-import dslab.mailbox.DMTPMailboxConnectionThread;
-import dslab.mailbox.IMailboxServer;
-import dslab.transfer.DMTPTransferConnectionThread;
+import dslab.util.AsyncLog;
+import dslab.util.Compression;
 import dslab.util.Config;
-import dslab.util.Mail;
+import dslab.util.ConnectionExecutor;
+import dslab.util.DMTPConnectionThread;
 
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class DMTPMailboxListenerThread implements Runnable {
 
     private final ServerSocket serverSocket;
     private final Config userConfig;
-    private final ConcurrentHashMap<String, List<Mail>> mailBoxes;
+    private final QuotaMailboxStore mailBoxes;
     private final String domain;
+    private final ConnectionExecutor connections;
+    private final Compression compression;
+    private final AsyncLog.Logger log;
 
-    public DMTPMailboxListenerThread(ServerSocket serverSocket, Config userConfig, ConcurrentHashMap<String, List<Mail>> mailBoxes, String domain) {
+    public DMTPMailboxListenerThread(ServerSocket serverSocket, Config userConfig, QuotaMailboxStore mailBoxes, String domain, ConnectionExecutor connections, Compression compression, AsyncLog.Logger log) {
         this.serverSocket = serverSocket;
         this.userConfig = userConfig;
         this.mailBoxes = mailBoxes;
         this.domain = domain;
+        this.connections = connections;
+        this.compression = compression;
+        this.log = log;
     }
 
     public void run() {
@@ -32,10 +36,10 @@ public class DMTPMailboxListenerThread implements Runnable {
             while (true) {
                 // wait for Client to connect
                 socket = serverSocket.accept();
-                new DMTPMailboxConnectionThread(socket, userConfig, mailBoxes, domain).start();
+                connections.execute(socket, new DMTPConnectionThread(socket, new DMTPMailboxSession(userConfig, mailBoxes, domain, compression, log), log));
             }
         } catch (IOException e) {
-            System.out.println("IOException while running DMTP listener: " + e.getMessage());
+            log.warn("IOException while running DMTP listener: " + e.getMessage());
         }
     }
 }
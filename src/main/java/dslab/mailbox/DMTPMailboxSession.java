@@ -0,0 +1,99 @@
+package dslab.mailbox;
+
+import dslab.util.AsyncLog;
+import dslab.util.Config;
+import dslab.util.Compression;
+import dslab.util.DMTPSession;
+import dslab.util.Mail;
+
+import java.io.IOException;
+import java.util.*;
+
+public class DMTPMailboxSession extends DMTPSession {
+
+    private final QuotaMailboxStore mailBoxes;
+    protected final String domain;
+    protected final Config userConfig;
+    private final AsyncLog.Logger log;
+
+    public DMTPMailboxSession(Config userConfig, QuotaMailboxStore mailBoxes, String domain, Compression compression, AsyncLog.Logger log) {
+        super(compression);
+        this.mailBoxes = mailBoxes;
+        this.domain = domain;
+        this.userConfig = userConfig;
+        this.log = log;
+    }
+
+    @Override
+    protected String to(String recipients) {
+        int acceptCounter = 0;
+        List<String> recipientList = Arrays.asList(recipients.trim().split("\\s*,\\s*"));
+        try {
+            for (String recipient : recipientList) {
+                String username = recipient.split("@")[0];
+                String domain = recipient.split("@")[1];
+                if (this.domain.equals(domain)) {
+                    try {
+                        userConfig.getString(username);
+                    } catch (MissingResourceException e) {
+                        return "error unknown recipient " + username;
+                    }
+                    String quotaError = mailBoxes.checkQuota(username, 0);
+                    if (quotaError != null) {
+                        return quotaError;
+                    }
+                    acceptCounter++;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            return "error recipient is not a valid email address";
+        }
+        // only accept the recipients if all of them are valid, so a pipelined send fails as well
+        mail.setRecipients(recipientList);
+        return "ok " + acceptCounter;
+    }
+
+    @Override
+    protected String send() {
+        if (mail.getRecipients() == null) {
+            return "error no recipients";
+        }
+        else if (mail.getSender() == null) {
+            return "error no sender";
+        }
+        else if (mail.getSubject() == null) {
+            return "error no subject";
+        }
+        else if (mail.getData() == null) {
+            return "error no data";
+        }
+        else {
+            // the size is known now, no mailbox gets the mail unless all of them can take it
+            long size = QuotaMailboxStore.sizeOf(mail);
+            for (String recipient : mail.getRecipients()) {
+                String username = recipient.split("@")[0];
+                if (this.domain.equals(recipient.split("@")[1])) {
+                    String quotaError = mailBoxes.checkQuota(username, size);
+                    if (quotaError != null) {
+                        return quotaError;
+                    }
+                }
+            }
+            for (String recipient : mail.getRecipients()) {
+                String username = recipient.split("@")[0];
+                String domain = recipient.split("@")[1];
+                if (this.domain.equals(domain)) {
+                    try {
+                        // the mailbox sets the message id on the mail it gets, the store shares the body between the
+                        // recipients. The mailbox store and the mailboxes handle concurrent deliveries themselves
+                        mailBoxes.getOrCreate(username).add(new Mail(mail));
+                    } catch (IOException e) {
+                        log.error("Could not store mail for " + username + ": " + e.getMessage());
+                        return "error could not store mail";
+                    }
+                }
+            }
+        }
+        return "ok";
+    }
+}
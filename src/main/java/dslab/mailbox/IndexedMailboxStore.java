@@ -0,0 +1,210 @@
+package dslab.mailbox;
+
+import dslab.util.Mail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Keeps an inverted index over the sender, subject and data of the mails of every user on top of another store. The
+ * index maps every term to the ids of the mails containing it and is updated on every add and remove, so a search
+ * only touches the ids of its terms. Terms are the lower-case runs of letters and digits.
+ *
+ * The index of a mailbox is built from its mails on the first search, not when the mailbox is opened, so starting the
+ * server and delivering to users that never search does not read any stored mail.
+ */
+public class IndexedMailboxStore implements MailboxStore {
+
+    private final MailboxStore store;
+    private final ConcurrentHashMap<String, IndexedMailbox> mailboxes = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new store.
+     *
+     * @param store the store holding the mails
+     */
+    public IndexedMailboxStore(MailboxStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public Mailbox get(String user) {
+        IndexedMailbox mailbox = mailboxes.get(user);
+        if (mailbox != null) return mailbox;
+        // the underlying store may hold mailboxes from an earlier run
+        Mailbox stored = store.get(user);
+        return stored == null ? null : wrap(user, stored);
+    }
+
+    @Override
+    public Mailbox getOrCreate(String user) throws IOException {
+        IndexedMailbox mailbox = mailboxes.get(user);
+        return mailbox != null ? mailbox : wrap(user, store.getOrCreate(user));
+    }
+
+    /**
+     * Returns the ids of the mails of the given user that contain all terms of the query.
+     *
+     * @param user the user name
+     * @param query the search terms
+     * @return the ids in ascending order, empty if nothing matches or the query holds no terms
+     */
+    public SortedSet<Integer> search(String user, String query) {
+        IndexedMailbox mailbox = (IndexedMailbox) get(user);
+        Set<String> terms = terms(query);
+        if (mailbox == null || terms.isEmpty()) return new TreeSet<>();
+
+        List<Set<Integer>> postings = new ArrayList<>();
+        for (String term : terms) {
+            Set<Integer> ids = mailbox.index().get(term);
+            if (ids == null) return new TreeSet<>();
+            postings.add(ids);
+        }
+        // intersect starting with the rarest term
+        postings.sort(Comparator.comparingInt(Set::size));
+        SortedSet<Integer> result = new TreeSet<>(postings.get(0));
+        for (int i = 1; i < postings.size() && !result.isEmpty(); i++) {
+            result.retainAll(postings.get(i));
+        }
+        return result;
+    }
+
+    @Override
+    public Collection<String> users() {
+        return store.users();
+    }
+
+    @Override
+    public void close() {
+        store.close();
+        mailboxes.clear();
+    }
+
+    private IndexedMailbox wrap(String user, Mailbox mailbox) {
+        return mailboxes.computeIfAbsent(user, name -> new IndexedMailbox(mailbox));
+    }
+
+    private static Set<String> terms(Mail mail) {
+        Set<String> terms = terms(mail.getSender());
+        terms.addAll(terms(mail.getSubject()));
+        terms.addAll(terms(mail.getData()));
+        return terms;
+    }
+
+    private static Set<String> terms(String text) {
+        Set<String> terms = new HashSet<>();
+        if (text == null) return terms;
+        for (String term : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!term.isEmpty()) terms.add(term);
+        }
+        return terms;
+    }
+
+    /**
+     * Updates the index of a single user whenever a mail is added or removed, once it was built.
+     */
+    private static class IndexedMailbox implements Mailbox {
+
+        private final Mailbox mailbox;
+        private final ConcurrentHashMap<String, Set<Integer>> index = new ConcurrentHashMap<>();
+        private volatile boolean built = false;
+
+        IndexedMailbox(Mailbox mailbox) {
+            this.mailbox = mailbox;
+        }
+
+        /**
+         * Returns the index, building it from the stored mails on first use. Adds and removes that run concurrently
+         * wait for the build and are applied to the index afterwards, indexing a mail twice does no harm.
+         */
+        ConcurrentHashMap<String, Set<Integer>> index() {
+            if (!built) {
+                synchronized (this) {
+                    if (!built) {
+                        for (Mail mail : mailbox.mails()) {
+                            index(mail.getMessageId(), mail);
+                        }
+                        built = true;
+                    }
+                }
+            }
+            return index;
+        }
+
+        @Override
+        public int add(Mail mail) throws IOException {
+            int id = mailbox.add(mail);
+            synchronized (this) {
+                if (built) index(id, mail);
+            }
+            return id;
+        }
+
+        @Override
+        public Mail get(int messageId) {
+            return mailbox.get(messageId);
+        }
+
+        @Override
+        public boolean remove(int messageId) throws IOException {
+            Mail mail = mailbox.get(messageId);
+            if (mail == null || !mailbox.remove(messageId)) return false;
+            synchronized (this) {
+                if (!built) return true;
+                for (String term : terms(mail)) {
+                    // drop the term once its last mail is gone, unless a concurrent add just used it again
+                    index.computeIfPresent(term, (key, ids) -> {
+                        ids.remove(messageId);
+                        return ids.isEmpty() ? null : ids;
+                    });
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Collection<Mail> mails() {
+            return mailbox.mails();
+        }
+
+        @Override
+        public Collection<Mail> mailsAfter(int messageId) {
+            return mailbox.mailsAfter(messageId);
+        }
+
+        @Override
+        public int size() {
+            return mailbox.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return mailbox.isEmpty();
+        }
+
+        @Override
+        public long bytes() {
+            return mailbox.bytes();
+        }
+
+        private void index(int id, Mail mail) {
+            for (String term : terms(mail)) {
+                index.compute(term, (key, ids) -> {
+                    if (ids == null) ids = new ConcurrentSkipListSet<>();
+                    ids.add(id);
+                    return ids;
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,500 @@
+package dslab.mailbox;
+
+import dslab.util.AsyncLog;
+import dslab.util.Mail;
+import dslab.util.MailCodec;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * A mailbox stored in an append-only log on disk. Every delivered mail is appended and forced to disk before it is
+ * confirmed, deletes are appended as tombstones. Next to the log, a compact index file holds one fixed-size entry per
+ * log record, so opening a mailbox only reads the index, plus the log records written after the last index entry.
+ *
+ * Only the id index is kept on the heap, mails are decoded from a read-only mapping of the log whenever they are read.
+ * The mapping grows geometrically, records behind it are read through the channel, see {@link Segment#read}. Once
+ * enough of the log is taken up by deleted mails, {@link #compactIfNeeded} rewrites the live mails into the next
+ * generation of log and index files. Readers that still hold locations in the old log keep using its mapping.
+ *
+ * Log record: {@code int length | byte type | int id | payload | int crc32}, where length covers type, id and payload.
+ * Index entry: {@code byte type | int id | long offset | int length}, the offset and total length of the log record.
+ */
+public class LogMailbox implements Mailbox {
+
+    private static final byte MAIL = 1;
+    private static final byte DELETE = 2;
+    // first record of a compacted log, keeps the id sequence if the mail with the highest id was deleted
+    private static final byte SEQUENCE = 3;
+    private static final int HEADER_SIZE = 4 + 1 + 4;
+    private static final int TRAILER_SIZE = 4;
+    private static final int ENTRY_SIZE = 1 + 4 + 8 + 4;
+    private static final Pattern FILE_NAME = Pattern.compile("mails-(\\d+)\\.(log|idx)");
+
+    private final Path dir;
+    private final AsyncLog.Logger logger;
+    // old logs that were too large to be mapped as a whole when they were compacted, closed with the mailbox
+    private final List<Segment> retired = new ArrayList<>();
+    private final ConcurrentSkipListMap<Integer, Location> index = new ConcurrentSkipListMap<>();
+    private long generation;
+    private Segment log;
+    private FileChannel indexChannel;
+    private int lastId = 0;
+    private long deadBytes = 0;
+
+    /**
+     * Opens the mailbox stored in the given directory, creating it if it does not exist.
+     *
+     * @param dir the directory of the mailbox
+     * @param logger the logger for recovery
+     * @throws IOException if the mailbox could not be read
+     */
+    public LogMailbox(Path dir, AsyncLog.Logger logger) throws IOException {
+        this.dir = dir;
+        this.logger = logger;
+        Files.createDirectories(dir);
+        load();
+    }
+
+    @Override
+    public synchronized int add(Mail mail) throws IOException {
+        int id = lastId + 1;
+        Location location = append(MAIL, id, MailCodec.encode(mail));
+        lastId = id;
+        mail.setMessageId(id);
+        index.put(id, location);
+        return id;
+    }
+
+    @Override
+    public Mail get(int messageId) {
+        Location location = index.get(messageId);
+        return location == null ? null : location.read(messageId);
+    }
+
+    @Override
+    public synchronized boolean remove(int messageId) throws IOException {
+        Location location = index.get(messageId);
+        if (location == null) return false;
+        Location tombstone = append(DELETE, messageId, new byte[0]);
+        index.remove(messageId);
+        deadBytes += location.length + tombstone.length;
+        return true;
+    }
+
+    @Override
+    public Collection<Mail> mails() {
+        return view(index);
+    }
+
+    @Override
+    public Collection<Mail> mailsAfter(int messageId) {
+        return view(index.tailMap(messageId, false));
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    @Override
+    public long bytes() {
+        // the payload of a record is the encoded mail
+        long bytes = 0;
+        for (Location location : index.values()) {
+            bytes += location.length - HEADER_SIZE - TRAILER_SIZE;
+        }
+        return bytes;
+    }
+
+    /**
+     * Rewrites the log without the deleted mails if they take up at least {@code minBytes} bytes and the given share
+     * of the log. Deliveries to this mailbox wait while the log is rewritten, reads do not.
+     *
+     * @param minBytes the minimum number of reclaimable bytes
+     * @param deadPercent the minimum share of reclaimable bytes in percent of the log size
+     * @return true if the log was compacted
+     * @throws IOException if the new log could not be written, the old one stays in use in this case
+     */
+    public synchronized boolean compactIfNeeded(long minBytes, int deadPercent) throws IOException {
+        if (deadBytes < minBytes || deadBytes * 100 < log.end * deadPercent) return false;
+
+        long next = generation + 1;
+        Path logTemp = dir.resolve(logPath(next).getFileName() + ".tmp");
+        Path indexTemp = dir.resolve(indexPath(next).getFileName() + ".tmp");
+        Map<Integer, long[]> moved = new TreeMap<>();
+        try (FileChannel out = FileChannel.open(logTemp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+             FileChannel entries = FileChannel.open(indexTemp, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer sequence = record(SEQUENCE, lastId, new byte[0]);
+            int sequenceLength = sequence.remaining();
+            writeFully(out, sequence, 0);
+            writeFully(entries, entry(SEQUENCE, lastId, 0, sequenceLength), 0);
+            long position = sequenceLength;
+            for (Map.Entry<Integer, Location> mail : index.entrySet()) {
+                Location location = mail.getValue();
+                writeFully(out, location.segment.read(location.offset, location.length), position);
+                writeFully(entries, entry(MAIL, mail.getKey(), position, location.length), (long) (moved.size() + 1) * ENTRY_SIZE);
+                moved.put(mail.getKey(), new long[]{position, location.length});
+                position += location.length;
+            }
+            out.force(false);
+            entries.force(false);
+        } catch (IOException e) {
+            Files.deleteIfExists(logTemp);
+            Files.deleteIfExists(indexTemp);
+            throw e;
+        }
+        // the log is moved first, a log without index is recovered by scanning it
+        Files.move(logTemp, logPath(next), StandardCopyOption.ATOMIC_MOVE);
+        Files.move(indexTemp, indexPath(next), StandardCopyOption.ATOMIC_MOVE);
+
+        Segment old = log;
+        // map the whole old log, so readers holding old locations never need its channel again
+        boolean mapped = old.mapAll(old.end);
+        log = new Segment(logPath(next));
+        log.end = log.channel.size();
+        indexChannel.close();
+        indexChannel = FileChannel.open(indexPath(next), StandardOpenOption.WRITE);
+        indexChannel.position(indexChannel.size());
+        for (Map.Entry<Integer, long[]> mail : moved.entrySet()) {
+            index.put(mail.getKey(), new Location(log, mail.getValue()[0], (int) mail.getValue()[1]));
+        }
+        if (mapped) {
+            old.close();
+        } else {
+            retired.add(old);
+        }
+        Files.deleteIfExists(logPath(generation));
+        Files.deleteIfExists(indexPath(generation));
+        generation = next;
+        deadBytes = 0;
+        return true;
+    }
+
+    /**
+     * Closes the files of the mailbox.
+     */
+    public synchronized void close() {
+        log.close();
+        retired.forEach(Segment::close);
+        try {
+            indexChannel.close();
+        } catch (IOException e) {
+            // Ignored because we cannot handle it
+        }
+    }
+
+    private void load() throws IOException {
+        long current = -1;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+                if (matcher.matches() && matcher.group(2).equals("log")) {
+                    current = Math.max(current, Long.parseLong(matcher.group(1)));
+                }
+            }
+        }
+        generation = Math.max(current, 0);
+        // leftovers of an interrupted compaction
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                Matcher matcher = FILE_NAME.matcher(name);
+                if (name.endsWith(".tmp") || (matcher.matches() && Long.parseLong(matcher.group(1)) != generation)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+
+        log = new Segment(logPath(generation));
+        long logSize = log.channel.size();
+        indexChannel = FileChannel.open(indexPath(generation), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        // apply the index, a torn entry at its end is cut off
+        long entries = indexChannel.size() / ENTRY_SIZE;
+        long indexed = 0;
+        if (entries > 0) {
+            MappedByteBuffer buffer = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, entries * ENTRY_SIZE);
+            for (long i = 0; i < entries; i++) {
+                byte type = buffer.get();
+                int id = buffer.getInt();
+                long offset = buffer.getLong();
+                int length = buffer.getInt();
+                if (offset + length > logSize) {
+                    entries = i;
+                    break;
+                }
+                apply(type, id, new Location(log, offset, length));
+                indexed = Math.max(indexed, offset + length);
+            }
+        }
+        indexChannel.truncate(entries * ENTRY_SIZE);
+        indexChannel.position(entries * ENTRY_SIZE);
+
+        // records written after the last index entry, the index is not forced to disk
+        long valid = indexed;
+        if (logSize > indexed) {
+            MappedByteBuffer buffer = log.channel.map(FileChannel.MapMode.READ_ONLY, indexed, logSize - indexed);
+            CRC32 crc = new CRC32();
+            while (buffer.remaining() >= HEADER_SIZE + TRAILER_SIZE) {
+                int start = buffer.position();
+                int length = buffer.getInt();
+                if (length < HEADER_SIZE - 4 || length > buffer.remaining() - TRAILER_SIZE) break;
+                ByteBuffer body = buffer.slice();
+                body.limit(length);
+                crc.reset();
+                crc.update(body.duplicate());
+                buffer.position(buffer.position() + length);
+                if ((int) crc.getValue() != buffer.getInt()) break;
+                long offset = indexed + start;
+                int recordLength = buffer.position() - start;
+                byte type = body.get();
+                int id = body.getInt();
+                apply(type, id, new Location(log, offset, recordLength));
+                writeFully(indexChannel, entry(type, id, offset, recordLength), indexChannel.position());
+                indexChannel.position(indexChannel.position() + ENTRY_SIZE);
+                valid = offset + recordLength;
+            }
+        }
+        if (logSize > valid) {
+            logger.warn("Cutting off torn record at the end of mailbox log " + logPath(generation));
+            log.channel.truncate(valid);
+        }
+        log.end = valid;
+
+        long live = 0;
+        for (Location location : index.values()) {
+            live += location.length;
+        }
+        deadBytes = valid - live;
+    }
+
+    /**
+     * Returns a view of the given part of the index that reads the mails on iteration.
+     */
+    private static Collection<Mail> view(NavigableMap<Integer, Location> index) {
+        return new AbstractCollection<Mail>() {
+            @Override
+            public Iterator<Mail> iterator() {
+                Iterator<Map.Entry<Integer, Location>> entries = index.entrySet().iterator();
+                return new Iterator<Mail>() {
+                    @Override
+                    public boolean hasNext() {
+                        return entries.hasNext();
+                    }
+
+                    @Override
+                    public Mail next() {
+                        Map.Entry<Integer, Location> entry = entries.next();
+                        return entry.getValue().read(entry.getKey());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return index.size();
+            }
+        };
+    }
+
+    private void apply(byte type, int id, Location location) {
+        lastId = Math.max(lastId, id);
+        if (type == MAIL) {
+            index.put(id, location);
+        } else if (type == DELETE) {
+            index.remove(id);
+        }
+    }
+
+    /**
+     * Appends a record to the log and forces it to disk, then adds its index entry.
+     */
+    private Location append(byte type, int id, byte[] payload) throws IOException {
+        ByteBuffer record = record(type, id, payload);
+        int length = record.remaining();
+        long offset = log.append(record);
+        writeFully(indexChannel, entry(type, id, offset, length), indexChannel.position());
+        indexChannel.position(indexChannel.position() + ENTRY_SIZE);
+        return new Location(log, offset, length);
+    }
+
+    private Path logPath(long generation) {
+        return dir.resolve(String.format("mails-%08d.log", generation));
+    }
+
+    private Path indexPath(long generation) {
+        return dir.resolve(String.format("mails-%08d.idx", generation));
+    }
+
+    private static ByteBuffer record(byte type, int id, byte[] payload) {
+        int length = 1 + 4 + payload.length;
+        ByteBuffer record = ByteBuffer.allocate(4 + length + TRAILER_SIZE);
+        record.putInt(length).put(type).putInt(id).put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, length);
+        record.putInt((int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    private static ByteBuffer entry(byte type, int id, long offset, int length) {
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+        entry.put(type).putInt(id).putLong(offset).putInt(length);
+        entry.flip();
+        return entry;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * A log file. Appends are done through its channel, reads through a read-only mapping of its start. The mapping is
+     * replaced by one of the whole file once a read reaches twice its size, so a growing log is mapped a logarithmic
+     * number of times. Records behind the mapping, usually the latest ones, are read through the channel.
+     */
+    private static class Segment {
+        // a mapping is indexed by int
+        private static final long MAX_MAP_BYTES = Integer.MAX_VALUE;
+
+        private final FileChannel channel;
+        private volatile MappedByteBuffer map;
+        private long end;
+
+        Segment(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        /**
+         * Writes the record at the end of the log and forces it to disk. A partially written record is cut off again,
+         * so it cannot hide the records appended after it.
+         */
+        long append(ByteBuffer record) throws IOException {
+            long offset = end;
+            try {
+                writeFully(channel, record, offset);
+                channel.force(false);
+            } catch (IOException e) {
+                try {
+                    channel.truncate(offset);
+                } catch (IOException truncateException) {
+                    // the torn record is cut off on the next start
+                }
+                throw e;
+            }
+            end = offset + record.limit();
+            return offset;
+        }
+
+        ByteBuffer read(long offset, int length) {
+            long recordEnd = offset + length;
+            MappedByteBuffer current = map;
+            try {
+                if ((current == null || recordEnd >= 2L * current.capacity()) && recordEnd <= MAX_MAP_BYTES) {
+                    current = remap(recordEnd);
+                }
+                if (current != null && recordEnd <= current.capacity()) {
+                    ByteBuffer buffer = current.duplicate();
+                    buffer.position((int) offset).limit((int) recordEnd);
+                    return buffer.slice();
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) {
+                        throw new IOException("unexpected end of mailbox log");
+                    }
+                }
+                buffer.flip();
+                return buffer;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Maps the first {@code size} bytes of the log, to be used once nothing is appended anymore.
+         *
+         * @return false if the log is too large to be mapped as a whole
+         */
+        boolean mapAll(long size) throws IOException {
+            if (size > MAX_MAP_BYTES) return false;
+            MappedByteBuffer current = map;
+            return (current != null && current.capacity() >= size) || remap(size).capacity() >= size;
+        }
+
+        /**
+         * Maps the whole file, at most {@link #MAX_MAP_BYTES}, unless a concurrent reader already mapped enough.
+         */
+        private synchronized MappedByteBuffer remap(long size) throws IOException {
+            MappedByteBuffer current = map;
+            if (current != null && current.capacity() >= size) return current;
+            // never beyond the end of the file, the channel is writable and would grow the file
+            long fileSize = Math.min(channel.size(), MAX_MAP_BYTES);
+            current = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            map = current;
+            return current;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignored because we cannot handle it
+            }
+        }
+    }
+
+    /**
+     * The position of a mail record in a log.
+     */
+    private static class Location {
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+
+        Location(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        Mail read(int messageId) {
+            ByteBuffer record = segment.read(offset, length);
+            record.position(HEADER_SIZE).limit(length - TRAILER_SIZE);
+            Mail mail = MailCodec.decode(record);
+            mail.setMessageId(messageId);
+            return mail;
+        }
+    }
+}
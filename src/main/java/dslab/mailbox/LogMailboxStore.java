@@ -0,0 +1,116 @@
+package dslab.mailbox;
+
+import dslab.util.AsyncLog;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keeps every mailbox as a {@link LogMailbox} in its own directory below the store directory. Mailboxes are opened
+ * lazily on their first access, so starting the server does not depend on the amount of stored mail. A background
+ * task periodically compacts the logs of the open mailboxes.
+ */
+public class LogMailboxStore implements MailboxStore {
+
+    private final Path dir;
+    private final AsyncLog.Logger log;
+    private final ConcurrentHashMap<String, LogMailbox> mailboxes = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mailbox-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Creates a new store.
+     *
+     * @param dir the directory holding the mailbox directories
+     * @param compactionInterval the time in milliseconds between two compaction runs
+     * @param compactionMinBytes the minimum number of bytes of deleted mails before a log is compacted
+     * @param compactionDeadPercent the minimum share of deleted mails in percent of the log before it is compacted
+     * @param log the logger for compaction and mailbox errors
+     * @throws IOException if the directory could not be created
+     */
+    public LogMailboxStore(Path dir, long compactionInterval, long compactionMinBytes, int compactionDeadPercent,
+                           AsyncLog.Logger log) throws IOException {
+        this.dir = dir;
+        this.log = log;
+        Files.createDirectories(dir);
+        compactor.scheduleWithFixedDelay(() -> compact(compactionMinBytes, compactionDeadPercent),
+                compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Mailbox get(String user) {
+        if (!isValidName(user)) return null;
+        try {
+            return mailboxes.computeIfAbsent(user, name -> Files.isDirectory(dir.resolve(name)) ? open(name) : null);
+        } catch (UncheckedIOException e) {
+            log.error("Could not open mailbox of " + user + ": " + e.getCause().getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public Mailbox getOrCreate(String user) throws IOException {
+        if (!isValidName(user)) {
+            throw new IOException("invalid user name " + user);
+        }
+        try {
+            return mailboxes.computeIfAbsent(user, this::open);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public Collection<String> users() {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(Files::isDirectory).map(path -> path.getFileName().toString())
+                    .filter(LogMailboxStore::isValidName).collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        compactor.shutdownNow();
+        mailboxes.values().forEach(LogMailbox::close);
+        mailboxes.clear();
+    }
+
+    private LogMailbox open(String user) {
+        try {
+            return new LogMailbox(dir.resolve(user), log);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void compact(long minBytes, int deadPercent) {
+        mailboxes.forEach((user, mailbox) -> {
+            try {
+                if (mailbox.compactIfNeeded(minBytes, deadPercent)) {
+                    log.info("Compacted mailbox of " + user);
+                }
+            } catch (IOException e) {
+                log.error("Could not compact mailbox of " + user + ": " + e.getMessage());
+            }
+        });
+    }
+
+    static boolean isValidName(String user) {
+        // user names become directory names
+        return user.matches("[\\w.-]+") && !user.startsWith(".");
+    }
+}
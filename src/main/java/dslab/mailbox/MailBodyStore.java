@@ -0,0 +1,148 @@
+package dslab.mailbox;
+
+import dslab.util.Mail;
+import dslab.util.MailCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content-addressed, reference-counted mail bodies shared by the mailboxes of a {@link MemoryMailboxStore}. A mail
+ * delivered to several users, or delivered again with the same content, is kept once, every mailbox only holds a
+ * small {@link SharedMail} envelope with its own message id. Bodies are addressed by the SHA-256 digest of their
+ * encoding and are freed when the last envelope is released.
+ */
+class MailBodyStore {
+
+    private final ConcurrentHashMap<ByteBuffer, Body> bodies = new ConcurrentHashMap<>();
+    private final SlabAllocator slabs;
+
+    /**
+     * Creates a new body store.
+     *
+     * @param slabs the allocator for the mail data, or null to keep it on the heap
+     */
+    MailBodyStore(SlabAllocator slabs) {
+        this.slabs = slabs;
+    }
+
+    /**
+     * Returns a new envelope for the given mail, sharing the body with all mails of the same content.
+     */
+    SharedMail acquire(Mail mail) {
+        ByteBuffer key = ByteBuffer.wrap(digest(MailCodec.encode(mail)));
+        // the reference count is only changed inside compute, which runs atomically per key
+        Body body = bodies.compute(key, (k, existing) -> {
+            if (existing != null) {
+                existing.references++;
+                return existing;
+            }
+            SlabAllocator.Region region = slabs == null || mail.getData() == null
+                    ? null : slabs.store(mail.getData().getBytes(StandardCharsets.UTF_8));
+            return new Body(k, mail, region);
+        });
+        return new SharedMail(body);
+    }
+
+    /**
+     * Drops the reference of the given envelope and frees the body once it was the last one.
+     */
+    void release(SharedMail mail) {
+        bodies.computeIfPresent(mail.body.key, (k, body) -> {
+            if (--body.references > 0) return body;
+            if (body.region != null) slabs.free(body.region);
+            return null;
+        });
+    }
+
+    /**
+     * Returns the number of distinct bodies.
+     */
+    int size() {
+        return bodies.size();
+    }
+
+    void clear() {
+        bodies.clear();
+    }
+
+    private static byte[] digest(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * The shared part of a mail, everything but the message id.
+     */
+    private static class Body {
+        private final ByteBuffer key;
+        private final String sender;
+        private final List<String> recipients;
+        private final String subject;
+        private final String data;
+        private final String hash;
+        private final SlabAllocator.Region region;
+        private int references = 1;
+
+        Body(ByteBuffer key, Mail mail, SlabAllocator.Region region) {
+            this.key = key;
+            this.sender = mail.getSender();
+            this.recipients = mail.getRecipients();
+            this.subject = mail.getSubject();
+            // with a region the data lives off the heap only
+            this.data = region == null ? mail.getData() : null;
+            this.hash = mail.getHash();
+            this.region = region;
+        }
+    }
+
+    /**
+     * The envelope of a mail in a single mailbox. It only holds the message id, everything else is read from the
+     * shared body.
+     */
+    static class SharedMail extends Mail {
+
+        private final Body body;
+
+        private SharedMail(Body body) {
+            this.body = body;
+        }
+
+        @Override
+        public String getSender() {
+            return body.sender;
+        }
+
+        @Override
+        public List<String> getRecipients() {
+            return body.recipients;
+        }
+
+        @Override
+        public String getSubject() {
+            return body.subject;
+        }
+
+        @Override
+        public String getData() {
+            return body.region == null ? body.data : new String(body.region.read(), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String getHash() {
+            return body.hash;
+        }
+
+        @Override
+        public String toString() {
+            return getMessageId() + " " + getSender() + " " + getSubject();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package dslab.mailbox;
+
+import dslab.util.Mail;
+import dslab.util.MailCodec;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * The mails of a single user, indexed by message id. Ids are taken from a per-mailbox sequence and are never reused,
+ * not even after the mail with the highest id was deleted.
+ *
+ * Implementations are safe for concurrent use. Adding is linearizable per mailbox: once a mail is visible, all mails
+ * with a lower id are visible as well.
+ */
+public interface Mailbox {
+
+    /**
+     * Stores the mail under the next message id.
+     *
+     * @param mail the mail, its message id is overwritten
+     * @return the assigned message id
+     * @throws IOException if the mail could not be stored
+     */
+    int add(Mail mail) throws IOException;
+
+    /**
+     * Returns the mail with the given id, or null if there is none.
+     */
+    Mail get(int messageId);
+
+    /**
+     * Removes the mail with the given id.
+     *
+     * @return false if there was no such mail
+     * @throws IOException if the removal could not be stored
+     */
+    boolean remove(int messageId) throws IOException;
+
+    /**
+     * Returns the mails ordered by message id. The view reflects concurrent deliveries and deletes.
+     */
+    Collection<Mail> mails();
+
+    /**
+     * Returns the mails with an id greater than the given one, ordered by message id.
+     */
+    Collection<Mail> mailsAfter(int messageId);
+
+    int size();
+
+    /**
+     * Returns the total encoded size of the stored mails, see {@link MailCodec#encodedLength}. Stores that keep the
+     * lengths of their records override this instead of reading every mail.
+     */
+    default long bytes() {
+        long bytes = 0;
+        for (Mail mail : mails()) {
+            bytes += MailCodec.encodedLength(mail);
+        }
+        return bytes;
+    }
+
+    boolean isEmpty();
+}
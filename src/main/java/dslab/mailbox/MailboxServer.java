@@ -1,25 +1,39 @@
 package dslab.mailbox;
 
 import java.io.*;
+import java.net.InetAddress;
 import java.net.ServerSocket;
-import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.rmi.NotBoundException;
+import java.security.PrivateKey;
+import java.rmi.registry.LocateRegistry;
 
 import at.ac.tuwien.dsg.orvell.Shell;
 import at.ac.tuwien.dsg.orvell.StopShellException;
 import at.ac.tuwien.dsg.orvell.annotation.Command;
 import dslab.ComponentFactory;
+import dslab.nameserver.AlreadyRegisteredException;
+import dslab.nameserver.INameserverRemote;
+import dslab.nameserver.InvalidDomainException;
 import dslab.util.*;
 
 public class MailboxServer implements IMailboxServer, Runnable {
 
+    private static final String[] PROTOCOLS = {"dmtp", "dmap"};
+
     private String componentId;
     private Config config;
     private InputStream in;
     private PrintStream out;
     private ServerSocket dmtpServerSocket;
     private ServerSocket dmapServerSocket;
-    private ConcurrentHashMap<String, List<Mail>> mailBoxes;
+    private QuotaMailboxStore mailBoxes;
+    private SlabAllocator slabs;
+    private ConnectionExecutor dmtpConnections;
+    private ConnectionExecutor dmapConnections;
+    private AsyncLog log;
+    private Compression compression;
     private Shell shell;
 
     /**
@@ -42,18 +56,207 @@ public class MailboxServer implements IMailboxServer, Runnable {
 
     @Override
     public void run() {
+        log = newLog();
+        compression = newCompression();
         Config userConfig = new Config(config.getString("users.config"));
         String domain = config.getString("domain");
-        mailBoxes = new ConcurrentHashMap<>();
         try {
+            MailboxStore store;
+            Path totalsFile = null;
+            if (config.containsKey("mailbox.store") && config.getString("mailbox.store").equals("log")) {
+                store = new LogMailboxStore(Paths.get(config.getString("mailbox.store.dir")),
+                        config.containsKey("mailbox.compaction.interval.ms") ? config.getInt("mailbox.compaction.interval.ms") : 60000,
+                        config.containsKey("mailbox.compaction.min.bytes") ? config.getInt("mailbox.compaction.min.bytes") : 1024 * 1024,
+                        config.containsKey("mailbox.compaction.dead.percent") ? config.getInt("mailbox.compaction.dead.percent") : 50,
+                        logger("store"));
+                // not a valid user name, so it never clashes with a mailbox directory
+                totalsFile = Paths.get(config.getString("mailbox.store.dir"), ".quota");
+            } else if (config.containsKey("mailbox.store") && config.getString("mailbox.store").equals("offheap")) {
+                slabs = new SlabAllocator(config.containsKey("mailbox.slab.bytes") ? config.getInt("mailbox.slab.bytes") : 4 * 1024 * 1024);
+                store = new MemoryMailboxStore(slabs);
+            } else {
+                store = new MemoryMailboxStore(null);
+            }
+            IndexedMailboxStore searchIndex = new IndexedMailboxStore(store);
+            mailBoxes = new QuotaMailboxStore(searchIndex,
+                    config.containsKey("mailbox.quota.policy") && config.getString("mailbox.quota.policy").equals("archive")
+                            ? QuotaMailboxStore.Policy.ARCHIVE : QuotaMailboxStore.Policy.REJECT,
+                    Paths.get(config.containsKey("mailbox.archive.dir") ? config.getString("mailbox.archive.dir") : "archive"),
+                    totalsFile,
+                    config.containsKey("mailbox.quota.user.mails") ? config.getInt("mailbox.quota.user.mails") : 0,
+                    config.containsKey("mailbox.quota.user.bytes") ? config.getInt("mailbox.quota.user.bytes") : 0,
+                    config.containsKey("mailbox.quota.total.mails") ? config.getInt("mailbox.quota.total.mails") : 0,
+                    config.containsKey("mailbox.quota.total.bytes") ? config.getInt("mailbox.quota.total.bytes") : 0,
+                    logger("store"));
             dmtpServerSocket = new ServerSocket(config.getInt("dmtp.tcp.port"));
             dmapServerSocket = new ServerSocket(config.getInt("dmap.tcp.port"));
-            new Thread(new DMTPMailboxListenerThread(dmtpServerSocket, userConfig, mailBoxes, domain)).start();
-            new Thread(new DMAPListenerThread(dmapServerSocket, userConfig, mailBoxes, componentId)).start();
-        } catch (IOException e) {}
+            dmtpConnections = newConnectionExecutor("dmtp");
+            dmapConnections = newConnectionExecutor("dmap");
+            new Thread(new DMTPMailboxListenerThread(dmtpServerSocket, userConfig, mailBoxes, domain, dmtpConnections, compression, logger("dmtp"))).start();
+            new Thread(new DMAPListenerThread(dmapServerSocket, userConfig, mailBoxes, searchIndex, componentId,
+                    readPrivateKey(), new SessionTickets(
+                            config.containsKey("dmap.ticket.lifetime.ms") ? config.getInt("dmap.ticket.lifetime.ms") : 600000,
+                            config.containsKey("dmap.ticket.key.rotation.ms") ? config.getInt("dmap.ticket.key.rotation.ms") : 3600000),
+                    dmapConnections, compression, logger("dmap"))).start();
+        } catch (IOException e) {
+            logger("server").error("Could not start mailbox server: " + e.getMessage());
+        }
+        registerAtNameserver(domain);
         shell.run();
     }
 
+    /**
+     * Reads the private key of this server once for all DMAP connections. Without it, startsecure is refused.
+     */
+    private PrivateKey readPrivateKey() {
+        try {
+            return Keys.readPrivateKey(new File("./keys/server/" + componentId + ".der"));
+        } catch (IOException | IllegalStateException e) {
+            logger("dmap").warn("Could not read the private key (no secure connections): " + e.getMessage());
+            return null;
+        }
+    }
+
+    private ConnectionExecutor newConnectionExecutor(String name) {
+        return new ConnectionExecutor(name,
+                config.containsKey("connection.executor") ? config.getString("connection.executor") : "thread",
+                config.containsKey("connection.max") ? config.getInt("connection.max") : 200,
+                config.containsKey("connection.queue") ? config.getInt("connection.queue") : 100,
+                "error server busy", logger(name));
+    }
+
+    private Compression newCompression() {
+        return new Compression(
+                config.containsKey("compression") && config.getString("compression").equals(Compression.DEFLATE),
+                config.containsKey("compression.threshold.bytes") ? config.getInt("compression.threshold.bytes") : 256);
+    }
+
+    private AsyncLog newLog() {
+        return new AsyncLog(componentId,
+                Paths.get(config.containsKey("log.file") ? config.getString("log.file") : "logs/" + componentId + ".log"),
+                config.containsKey("log.buffer.size") ? config.getInt("log.buffer.size") : 8192,
+                config.containsKey("log.file.bytes") ? config.getInt("log.file.bytes") : 10 * 1024 * 1024,
+                config.containsKey("log.file.count") ? config.getInt("log.file.count") : 5,
+                configuredLevel(""));
+    }
+
+    /**
+     * Returns the logger of the given part of this server, with the level of {@code log.level.<component>} if set.
+     */
+    private AsyncLog.Logger logger(String component) {
+        AsyncLog.Logger logger = log.logger(component);
+        logger.setLevel(configuredLevel(component));
+        return logger;
+    }
+
+    private AsyncLog.Level configuredLevel(String component) {
+        String key = component.isEmpty() ? "log.level" : "log.level." + component;
+        if (config.containsKey(key)) return AsyncLog.Level.parse(config.getString(key));
+        return component.isEmpty() ? AsyncLog.Level.INFO : configuredLevel("");
+    }
+
+    /**
+     * Registers the DMTP address of this server at the root nameserver, so transfer servers can resolve the domain.
+     * The server keeps running without the registration, transfer servers then fall back to their static domains.
+     */
+    private void registerAtNameserver(String domain) {
+        if (!config.containsKey("root_id")) return;
+        try {
+            INameserverRemote root = (INameserverRemote) LocateRegistry
+                    .getRegistry(config.getString("registry.host"), config.getInt("registry.port"))
+                    .lookup(config.getString("root_id"));
+            root.registerMailboxServer(domain, InetAddress.getLocalHost().getHostAddress() + ":" + config.getInt("dmtp.tcp.port"));
+        } catch (IOException | NotBoundException | AlreadyRegisteredException | InvalidDomainException e) {
+            logger("dmtp").warn("Could not register mailbox server at nameserver: " + e.getMessage());
+        }
+    }
+
+    /**
+     * CLI command to show the occupancy of the off-heap slabs holding the mail data.
+     */
+    @Command
+    public void slabs() {
+        if (slabs == null) {
+            shell.out().println("mail data is not stored off-heap");
+        } else {
+            shell.out().println(slabs.stats());
+        }
+    }
+
+    /**
+     * CLI command to show the number and size of the stored mails, counted against the quotas.
+     */
+    @Command
+    public void quota() {
+        if (mailBoxes == null) {
+            shell.out().println("mailbox server is not running");
+        } else {
+            shell.out().println(mailBoxes.stats());
+        }
+    }
+
+    /**
+     * CLI command to show the active and queued connections of the DMTP and DMAP listeners.
+     */
+    @Command
+    public void connections() {
+        if (dmtpConnections == null) {
+            shell.out().println("mailbox server is not running");
+        } else {
+            shell.out().println(dmtpConnections.stats());
+            shell.out().println(dmapConnections.stats());
+        }
+    }
+
+    /**
+     * CLI command to show how much the compressed messages shrank and the CPU time spent on compression.
+     */
+    @Command
+    public void compression() {
+        shell.out().println(compression.stats());
+    }
+
+    /**
+     * CLI command to switch the tracing of every protocol line on or off. Off restores the configured levels, or debug
+     * where trace is configured.
+     */
+    @Command
+    public void trace(String mode) {
+        if (!mode.equals("on") && !mode.equals("off")) {
+            shell.out().println("usage: trace on|off");
+            return;
+        }
+        for (String component : PROTOCOLS) {
+            AsyncLog.Level level = mode.equals("on") ? AsyncLog.Level.TRACE : configuredLevel(component);
+            if (mode.equals("off") && level == AsyncLog.Level.TRACE) {
+                level = AsyncLog.Level.DEBUG;
+            }
+            log.logger(component).setLevel(level);
+        }
+        shell.out().println(log.stats());
+    }
+
+    /**
+     * CLI command to set the level of a single logger, one of trace, debug, info, warn, error and off.
+     */
+    @Command
+    public void loglevel(String component, String level) {
+        try {
+            log.logger(component).setLevel(AsyncLog.Level.parse(level));
+            shell.out().println(log.stats());
+        } catch (IllegalArgumentException e) {
+            shell.out().println("unknown log level " + level);
+        }
+    }
+
+    /**
+     * CLI command to show the log levels and how many log entries were written and dropped.
+     */
+    @Command
+    public void logs() {
+        shell.out().println(log.stats());
+    }
+
     @Command
     @Override
     public void shutdown() {
@@ -75,6 +278,16 @@ public class MailboxServer implements IMailboxServer, Runnable {
             in.close();
             out.close();
         } catch (IOException e) {}
+        if (dmtpConnections != null) {
+            dmtpConnections.shutdown();
+            dmapConnections.shutdown();
+        }
+        if (mailBoxes != null) {
+            mailBoxes.close();
+        }
+        if (log != null) {
+            log.close();
+        }
         throw new StopShellException();
     }
 
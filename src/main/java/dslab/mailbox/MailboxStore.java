@@ -0,0 +1,39 @@
+package dslab.mailbox;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Storage engine holding the mailboxes of all users of a mailbox server.
+ */
+public interface MailboxStore extends Closeable {
+
+    /**
+     * Returns the mailbox of the given user.
+     *
+     * @param user the user name
+     * @return the mailbox, or null if the user has never received a mail
+     */
+    Mailbox get(String user);
+
+    /**
+     * Returns the mailbox of the given user, creating it on first use.
+     *
+     * @param user the user name
+     * @return the mailbox
+     * @throws IOException if the mailbox could not be created
+     */
+    Mailbox getOrCreate(String user) throws IOException;
+
+    /**
+     * Returns the names of the users that have a mailbox, including the mailboxes that were not opened yet.
+     */
+    Collection<String> users();
+
+    /**
+     * Releases all resources held by the store.
+     */
+    @Override
+    void close();
+}
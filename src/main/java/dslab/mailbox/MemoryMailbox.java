@@ -0,0 +1,78 @@
+package dslab.mailbox;
+
+import dslab.util.Mail;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A mailbox that keeps its mails in memory, indexed by message id. The mailbox only holds an envelope per mail, the
+ * bodies are shared with the other mailboxes of the store through a {@link MailBodyStore}.
+ *
+ * Reads never block. Deliveries only lock this mailbox, and only to take the next id and insert the mail, so
+ * deliveries to different users run in parallel.
+ */
+public class MemoryMailbox implements Mailbox {
+
+    private final ConcurrentSkipListMap<Integer, MailBodyStore.SharedMail> mails = new ConcurrentSkipListMap<>();
+    private final Object addLock = new Object();
+    private int lastId = 0;
+    private final MailBodyStore bodies;
+
+    /**
+     * Creates a new mailbox.
+     *
+     * @param bodies the store of the mail bodies
+     */
+    MemoryMailbox(MailBodyStore bodies) {
+        this.bodies = bodies;
+    }
+
+    @Override
+    public int add(Mail mail) {
+        MailBodyStore.SharedMail stored = bodies.acquire(mail);
+        // a mail becomes visible together with its id, so no reader sees a higher id before a lower one
+        synchronized (addLock) {
+            int id = ++lastId;
+            mail.setMessageId(id);
+            stored.setMessageId(id);
+            mails.put(id, stored);
+            return id;
+        }
+    }
+
+    @Override
+    public Mail get(int messageId) {
+        return mails.get(messageId);
+    }
+
+    @Override
+    public boolean remove(int messageId) {
+        MailBodyStore.SharedMail mail = mails.remove(messageId);
+        if (mail != null) {
+            bodies.release(mail);
+        }
+        return mail != null;
+    }
+
+    @Override
+    public Collection<Mail> mails() {
+        return Collections.unmodifiableCollection(mails.values());
+    }
+
+    @Override
+    public Collection<Mail> mailsAfter(int messageId) {
+        return Collections.unmodifiableCollection(mails.tailMap(messageId, false).values());
+    }
+
+    @Override
+    public int size() {
+        return mails.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return mails.isEmpty();
+    }
+}
@@ -0,0 +1,45 @@
+package dslab.mailbox;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps all mailboxes in memory. Their contents are lost on shutdown. Mails with the same content, like a mail to
+ * several users of this server, share a single body.
+ */
+public class MemoryMailboxStore implements MailboxStore {
+
+    private final ConcurrentHashMap<String, MemoryMailbox> mailboxes = new ConcurrentHashMap<>();
+    private final MailBodyStore bodies;
+
+    /**
+     * Creates a new store.
+     *
+     * @param slabs the allocator for the mail data of all mailboxes, or null to keep it on the heap
+     */
+    public MemoryMailboxStore(SlabAllocator slabs) {
+        this.bodies = new MailBodyStore(slabs);
+    }
+
+
+    @Override
+    public Mailbox get(String user) {
+        return mailboxes.get(user);
+    }
+
+    @Override
+    public Mailbox getOrCreate(String user) {
+        return mailboxes.computeIfAbsent(user, name -> new MemoryMailbox(bodies));
+    }
+
+    @Override
+    public Collection<String> users() {
+        return mailboxes.keySet();
+    }
+
+    @Override
+    public void close() {
+        mailboxes.clear();
+        bodies.clear();
+    }
+}
@@ -0,0 +1,316 @@
+package dslab.mailbox;
+
+import dslab.util.AsyncLog;
+import dslab.util.Mail;
+import dslab.util.MailCodec;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Enforces per-user and global quotas on top of another store. The number of mails and their size are counted on every
+ * add and remove, so checking a quota never walks a mailbox. The size of a mail is the size of its encoding, see
+ * {@link MailCodec#encodedLength}.
+ *
+ * With the {@link Policy#REJECT} policy recipients with a full mailbox are rejected when the mail is addressed to them
+ * and again before it is stored, mails in flight at that moment may still exceed the quota slightly. With the
+ * {@link Policy#ARCHIVE} policy the oldest mails of the receiving user are moved to an archive file before the new mail
+ * is stored, until the quota of the user is met again. The mails of other users are never archived, so with both
+ * policies a mail is rejected if the global quota is exceeded. The archive file of a user holds one
+ * {@code int length | encoded mail} record per mail.
+ *
+ * Stores that keep their mails across restarts open mailboxes lazily, so the totals of every user are written to a
+ * file on close and read on the next start. The file is deleted once it is read. After a crash there is no file and
+ * every stored mailbox is opened once. Its totals are taken from {@link Mailbox#bytes}, which the log store answers
+ * from its index without reading the mails.
+ */
+public class QuotaMailboxStore implements MailboxStore {
+
+    /**
+     * What happens when a quota is exceeded.
+     */
+    public enum Policy {
+        REJECT, ARCHIVE
+    }
+
+    private final MailboxStore store;
+    private final Policy policy;
+    private final Path archiveDir;
+    private final Path totalsFile;
+    private final int userMails;
+    private final long userBytes;
+    private final int totalMails;
+    private final long totalBytes;
+    private final AsyncLog.Logger log;
+
+    private final ConcurrentHashMap<String, QuotaMailbox> mailboxes = new ConcurrentHashMap<>();
+    private final AtomicInteger mailCount = new AtomicInteger();
+    private final AtomicLong byteCount = new AtomicLong();
+    private final AtomicLong archived = new AtomicLong();
+    // the totals of the users whose mailbox was not opened since the start, as mails and bytes
+    private final ConcurrentHashMap<String, long[]> stored = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new store. A limit of 0 means no limit.
+     *
+     * @param store the store holding the mails
+     * @param policy what happens when a quota is exceeded
+     * @param archiveDir the directory of the archive files, only used with {@link Policy#ARCHIVE}
+     * @param totalsFile the file keeping the totals of the users across restarts, or null if the store does not keep
+     *                   its mails
+     * @param userMails the maximum number of mails per user
+     * @param userBytes the maximum size of the mails per user
+     * @param totalMails the maximum number of mails of all users
+     * @param totalBytes the maximum size of the mails of all users
+     * @param log the logger for errors while saving the totals
+     * @throws IOException if the stored totals could not be read
+     */
+    public QuotaMailboxStore(MailboxStore store, Policy policy, Path archiveDir, Path totalsFile, int userMails, long userBytes,
+                             int totalMails, long totalBytes, AsyncLog.Logger log) throws IOException {
+        this.store = store;
+        this.policy = policy;
+        this.archiveDir = archiveDir;
+        this.totalsFile = totalsFile;
+        this.userMails = userMails;
+        this.userBytes = userBytes;
+        this.totalMails = totalMails;
+        this.totalBytes = totalBytes;
+        this.log = log;
+        if (totalsFile != null) {
+            loadTotals();
+        }
+    }
+
+    @Override
+    public Mailbox get(String user) {
+        QuotaMailbox mailbox = mailboxes.get(user);
+        if (mailbox != null) return mailbox;
+        // the underlying store may hold mailboxes from an earlier run
+        Mailbox stored = store.get(user);
+        return stored == null ? null : wrap(user, stored);
+    }
+
+    @Override
+    public Mailbox getOrCreate(String user) throws IOException {
+        QuotaMailbox mailbox = mailboxes.get(user);
+        return mailbox != null ? mailbox : wrap(user, store.getOrCreate(user));
+    }
+
+    @Override
+    public Collection<String> users() {
+        return store.users();
+    }
+
+    /**
+     * Checks whether a mail of the given size to the given user is accepted. Called when the mail is addressed to the
+     * user, with a size of 0 as the data is not known yet, and again with the size of the mail before it is stored.
+     *
+     * @param user the user name
+     * @param size the size of the mail, see {@link #sizeOf(Mail)}
+     * @return null if the mail is accepted, otherwise the error to answer
+     */
+    public String checkQuota(String user, long size) {
+        if (exceeded(mailCount.get() + 1, byteCount.get() + size, totalMails, totalBytes)) {
+            return "error mailbox server is full";
+        }
+        if (policy == Policy.ARCHIVE) {
+            // archiving the older mails makes room for any mail that fits into the quota on its own
+            return exceeded(1, size, userMails, userBytes) ? "error mail is too large" : null;
+        }
+        QuotaMailbox mailbox = (QuotaMailbox) get(user);
+        long mails = mailbox == null ? 0 : mailbox.mails.get();
+        long bytes = mailbox == null ? 0 : mailbox.bytes.get();
+        if (exceeded(mails + 1, bytes + size, userMails, userBytes)) {
+            return "error mailbox of " + user + " is full";
+        }
+        return null;
+    }
+
+    /**
+     * Returns a short summary of the stored mails.
+     */
+    public String stats() {
+        return String.format("mails %d, bytes %d, archived %d", mailCount.get(), byteCount.get(), archived.get());
+    }
+
+    @Override
+    public void close() {
+        if (totalsFile != null) {
+            try {
+                saveTotals();
+            } catch (IOException e) {
+                log.error("Could not save mailbox totals: " + e.getMessage());
+            }
+        }
+        store.close();
+        mailboxes.clear();
+    }
+
+    private QuotaMailbox wrap(String user, Mailbox mailbox) {
+        return mailboxes.computeIfAbsent(user, name -> {
+            // the mailbox is counted from its mails from now on
+            long[] totals = stored.remove(name);
+            if (totals != null) {
+                mailCount.addAndGet((int) -totals[0]);
+                byteCount.addAndGet(-totals[1]);
+            }
+            return new QuotaMailbox(name, mailbox);
+        });
+    }
+
+    private void loadTotals() throws IOException {
+        if (!Files.exists(totalsFile)) {
+            for (String user : store.users()) {
+                get(user);
+            }
+            return;
+        }
+        for (String line : Files.readAllLines(totalsFile, StandardCharsets.UTF_8)) {
+            String[] parts = line.split(" ");
+            if (parts.length != 3) continue;
+            long[] totals = {Long.parseLong(parts[1]), Long.parseLong(parts[2])};
+            stored.put(parts[0], totals);
+            mailCount.addAndGet((int) totals[0]);
+            byteCount.addAndGet(totals[1]);
+        }
+        // the totals are only valid until the next delivery
+        Files.delete(totalsFile);
+    }
+
+    private void saveTotals() throws IOException {
+        List<String> lines = new ArrayList<>();
+        stored.forEach((user, totals) -> lines.add(user + " " + totals[0] + " " + totals[1]));
+        mailboxes.forEach((user, mailbox) -> lines.add(user + " " + mailbox.mails.get() + " " + mailbox.bytes.get()));
+        Path temp = totalsFile.resolveSibling(totalsFile.getFileName() + ".tmp");
+        Files.write(temp, lines, StandardCharsets.UTF_8);
+        Files.move(temp, totalsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static boolean exceeded(long mails, long bytes, int maxMails, long maxBytes) {
+        return (maxMails > 0 && mails > maxMails) || (maxBytes > 0 && bytes > maxBytes);
+    }
+
+    /**
+     * Returns the size of a mail as counted against the quotas, the size of its encoding in the stores.
+     */
+    static long sizeOf(Mail mail) {
+        return MailCodec.encodedLength(mail);
+    }
+
+    /**
+     * Counts the mails of a single user and archives the oldest ones when a quota is exceeded.
+     */
+    private class QuotaMailbox implements Mailbox {
+
+        private final String user;
+        private final Mailbox mailbox;
+        private final AtomicInteger mails = new AtomicInteger();
+        private final AtomicLong bytes = new AtomicLong();
+
+        QuotaMailbox(String user, Mailbox mailbox) {
+            this.user = user;
+            this.mailbox = mailbox;
+            // mailboxes reopened from disk are counted once, from the record lengths the store keeps
+            count(mailbox.size(), mailbox.bytes());
+        }
+
+        @Override
+        public int add(Mail mail) throws IOException {
+            long size = sizeOf(mail);
+            if (policy == Policy.ARCHIVE) {
+                synchronized (this) {
+                    // room is made before the mail is stored, so the new mail itself is never archived
+                    archiveOldest(size);
+                    return store(mail, size);
+                }
+            }
+            return store(mail, size);
+        }
+
+        private int store(Mail mail, long size) throws IOException {
+            int id = mailbox.add(mail);
+            count(1, size);
+            return id;
+        }
+
+        @Override
+        public Mail get(int messageId) {
+            return mailbox.get(messageId);
+        }
+
+        @Override
+        public boolean remove(int messageId) throws IOException {
+            Mail mail = mailbox.get(messageId);
+            if (mail == null || !mailbox.remove(messageId)) return false;
+            count(-1, -sizeOf(mail));
+            return true;
+        }
+
+        @Override
+        public Collection<Mail> mails() {
+            return mailbox.mails();
+        }
+
+        @Override
+        public Collection<Mail> mailsAfter(int messageId) {
+            return mailbox.mailsAfter(messageId);
+        }
+
+        @Override
+        public int size() {
+            return mails.get();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return mailbox.isEmpty();
+        }
+
+        private void count(int mailDelta, long byteDelta) {
+            mails.addAndGet(mailDelta);
+            bytes.addAndGet(byteDelta);
+            mailCount.addAndGet(mailDelta);
+            byteCount.addAndGet(byteDelta);
+        }
+
+        /**
+         * Archives the oldest mails of this user until a mail of the given size fits into the quota of the user.
+         */
+        private void archiveOldest(long size) throws IOException {
+            while (exceeded(mails.get() + 1, bytes.get() + size, userMails, userBytes)) {
+                Iterator<Mail> oldest = mailbox.mails().iterator();
+                if (!oldest.hasNext()) return;
+                Mail mail = oldest.next();
+                archive(mail);
+                if (remove(mail.getMessageId())) archived.incrementAndGet();
+            }
+        }
+
+        private void archive(Mail mail) throws IOException {
+            if (!LogMailboxStore.isValidName(user)) {
+                throw new IOException("invalid user name " + user);
+            }
+            Files.createDirectories(archiveDir);
+            byte[] encoded = MailCodec.encode(mail);
+            try (OutputStream out = Files.newOutputStream(archiveDir.resolve(user + ".archive"),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                 DataOutputStream data = new DataOutputStream(out)) {
+                data.writeInt(encoded.length);
+                data.write(encoded);
+            }
+        }
+    }
+}
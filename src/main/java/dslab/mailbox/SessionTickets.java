@@ -0,0 +1,155 @@
+package dslab.mailbox;
+
+import dslab.util.AesSession;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Issues and redeems DMAP session tickets. A ticket holds the AES key and IV of a secured session, sealed with
+ * AES/GCM under a ticket key that only this server knows, so a client can resume the session on a new connection
+ * without another RSA handshake.
+ *
+ * The ticket key is replaced after every rotation interval, tickets sealed with the previous key stay readable until
+ * they expire. Every ticket can be redeemed once, redeemed ticket ids are remembered until the ticket would have
+ * expired anyway.
+ *
+ * Layout: {@code int keyId | 12 byte GCM nonce | sealed(16 byte ticket id | long issuedAt | byte keyLength | key | iv)}
+ */
+public class SessionTickets {
+
+    private static final int NONCE_BYTES = 12;
+    private static final int ID_BYTES = 16;
+
+    private final long lifetime;
+    private final long rotationInterval;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<ByteBuffer, Long> redeemed = new ConcurrentHashMap<>();
+
+    private TicketKey current;
+    private TicketKey previous;
+
+    /**
+     * Creates a new ticket issuer with a fresh ticket key.
+     *
+     * @param lifetime the time in milliseconds a ticket can be redeemed after it was issued
+     * @param rotationInterval the time in milliseconds after which the ticket key is replaced, at least the lifetime
+     */
+    public SessionTickets(long lifetime, long rotationInterval) {
+        this.lifetime = lifetime;
+        this.rotationInterval = Math.max(rotationInterval, lifetime);
+        this.current = new TicketKey(0, newKey(), System.currentTimeMillis());
+    }
+
+    /**
+     * Seals the key and IV of the given session into a new ticket.
+     *
+     * @param session the secured session
+     * @return the Base64 encoded ticket
+     */
+    public String issue(AesSession session) throws GeneralSecurityException {
+        TicketKey key = currentKey();
+        byte[] id = new byte[ID_BYTES];
+        random.nextBytes(id);
+        byte[] sessionKey = session.getKey().getEncoded();
+        byte[] iv = session.getIv().getIV();
+        ByteBuffer plain = ByteBuffer.allocate(ID_BYTES + 8 + 1 + sessionKey.length + iv.length);
+        plain.put(id).putLong(System.currentTimeMillis()).put((byte) sessionKey.length).put(sessionKey).put(iv);
+
+        byte[] nonce = new byte[NONCE_BYTES];
+        random.nextBytes(nonce);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, key.key, new GCMParameterSpec(128, nonce));
+        byte[] sealed = cipher.doFinal(plain.array());
+
+        ByteBuffer ticket = ByteBuffer.allocate(4 + NONCE_BYTES + sealed.length);
+        ticket.putInt(key.id).put(nonce).put(sealed);
+        return Base64.getEncoder().encodeToString(ticket.array());
+    }
+
+    /**
+     * Opens the given ticket and marks it as used.
+     *
+     * @param ticket the Base64 encoded ticket
+     * @return the session sealed in the ticket, or null if the ticket is invalid, expired or was already redeemed
+     */
+    public AesSession redeem(String ticket) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(ticket));
+            TicketKey key = keyById(buffer.getInt());
+            if (key == null) return null;
+            byte[] nonce = new byte[NONCE_BYTES];
+            buffer.get(nonce);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, key.key, new GCMParameterSpec(128, nonce));
+            ByteBuffer plain = ByteBuffer.wrap(cipher.doFinal(buffer.array(), buffer.position(), buffer.remaining()));
+
+            byte[] id = new byte[ID_BYTES];
+            plain.get(id);
+            long expiresAt = plain.getLong() + lifetime;
+            if (expiresAt < System.currentTimeMillis()) return null;
+            if (redeemed.putIfAbsent(ByteBuffer.wrap(id), expiresAt) != null) return null;
+
+            byte[] sessionKey = new byte[plain.get()];
+            plain.get(sessionKey);
+            byte[] iv = new byte[plain.remaining()];
+            plain.get(iv);
+            return new AesSession(new SecretKeySpec(sessionKey, "AES"), new IvParameterSpec(iv));
+        } catch (GeneralSecurityException | RuntimeException e) {
+            // forged, truncated or garbled tickets are simply not accepted
+            return null;
+        }
+    }
+
+    private synchronized TicketKey currentKey() {
+        long now = System.currentTimeMillis();
+        if (now - current.createdAt >= rotationInterval) {
+            previous = current;
+            current = new TicketKey(previous.id + 1, newKey(), now);
+            // ids of expired tickets are not needed anymore, those tickets are rejected by their age
+            redeemed.values().removeIf(expiresAt -> expiresAt < now);
+        }
+        return current;
+    }
+
+    private TicketKey keyById(int id) {
+        TicketKey key = currentKey();
+        if (key.id == id) return key;
+        synchronized (this) {
+            return previous != null && previous.id == id ? previous : null;
+        }
+    }
+
+    private static SecretKey newKey() {
+        try {
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(256);
+            return generator.generateKey();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES is not available", e);
+        }
+    }
+
+    private static class TicketKey {
+        private final int id;
+        private final SecretKey key;
+        private final long createdAt;
+
+        TicketKey(int id, SecretKey key, long createdAt) {
+            this.id = id;
+            this.key = key;
+            this.createdAt = createdAt;
+        }
+    }
+}
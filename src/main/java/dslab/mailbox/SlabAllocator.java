@@ -0,0 +1,121 @@
+package dslab.mailbox;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Stores byte arrays outside of the Java heap, in direct buffers of a fixed size (slabs). Regions are allocated one
+ * after the other in the current slab. Freed regions are not reused, a slab is dropped once all of its regions are
+ * freed. Bytes freed in slabs that still hold live regions show up as fragmentation.
+ *
+ * Freed regions are never overwritten, so a reader that still holds a region while it is freed reads consistent data.
+ */
+public class SlabAllocator {
+
+    private final int slabBytes;
+    private final Set<Slab> slabs = Collections.newSetFromMap(new IdentityHashMap<>());
+    private Slab current;
+
+    /**
+     * Creates a new allocator.
+     *
+     * @param slabBytes the size of a slab, larger regions get a slab of their own
+     */
+    public SlabAllocator(int slabBytes) {
+        this.slabBytes = slabBytes;
+    }
+
+    /**
+     * Copies the given bytes into a slab.
+     *
+     * @param bytes the bytes to store
+     * @return the region holding the bytes
+     */
+    public synchronized Region store(byte[] bytes) {
+        Slab slab;
+        if (bytes.length > slabBytes) {
+            slab = new Slab(bytes.length);
+        } else {
+            if (current == null || current.buffer.remaining() < bytes.length) {
+                if (current != null && current.live == 0) slabs.remove(current);
+                current = new Slab(slabBytes);
+            }
+            slab = current;
+        }
+        slabs.add(slab);
+        int offset = slab.buffer.position();
+        slab.buffer.put(bytes);
+        slab.live += bytes.length;
+        return new Region(slab, offset, bytes.length);
+    }
+
+    /**
+     * Frees the given region.
+     */
+    public synchronized void free(Region region) {
+        Slab slab = region.slab;
+        slab.live -= region.length;
+        if (slab.live == 0 && slab != current) {
+            // the direct buffer is released once the last reader drops the region
+            slabs.remove(slab);
+        }
+    }
+
+    /**
+     * Returns a short summary of the slab occupancy.
+     */
+    public synchronized String stats() {
+        long capacity = 0;
+        long used = 0;
+        long live = 0;
+        for (Slab slab : slabs) {
+            capacity += slab.buffer.capacity();
+            used += slab.buffer.position();
+            live += slab.live;
+        }
+        long fragmentation = used == 0 ? 0 : (used - live) * 100 / used;
+        return String.format("slabs %d, capacity %d bytes, used %d bytes, live %d bytes, fragmentation %d%%",
+                slabs.size(), capacity, used, live, fragmentation);
+    }
+
+    private static class Slab {
+        private final ByteBuffer buffer;
+        private long live = 0;
+
+        Slab(int size) {
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    /**
+     * A stored byte array.
+     */
+    public static class Region {
+        private final Slab slab;
+        private final int offset;
+        private final int length;
+
+        private Region(Slab slab, int offset, int length) {
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Copies the stored bytes back onto the heap.
+         */
+        public byte[] read() {
+            byte[] bytes = new byte[length];
+            ByteBuffer buffer = slab.buffer.duplicate();
+            buffer.position(offset);
+            buffer.get(bytes);
+            return bytes;
+        }
+
+        public int length() {
+            return length;
+        }
+    }
+}
@@ -4,8 +4,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.net.DatagramSocket;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import at.ac.tuwien.dsg.orvell.Shell;
 import at.ac.tuwien.dsg.orvell.StopShellException;
@@ -45,8 +45,9 @@ public class MonitoringServer implements IMonitoringServer {
     @Override
     public void run() {
         int udpPort = config.getInt("udp.port");
-        addresses = new HashMap<>();
-        servers = new HashMap<>();
+        // updated by the UDP thread while the shell reads them
+        addresses = new ConcurrentHashMap<>();
+        servers = new ConcurrentHashMap<>();
         try {
             datagramSocket = new DatagramSocket(udpPort);
             new UDPConnectionThread(datagramSocket, addresses, servers).start();
@@ -19,32 +19,39 @@ public class UDPConnectionThread extends Thread {
         this.servers = servers;
     }
 
+    /**
+     * Receives monitoring packets. A packet holds one record per line, either {@code <server> <sender>} for a single
+     * mail or {@code <server> <sender> <count>} for the aggregated reports of a transfer server.
+     */
     public void run() {
-        byte[] buffer;
-        DatagramPacket packet;
+        // large enough for any UDP payload, so batched reports are never truncated
+        byte[] buffer = new byte[65535];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
         try {
             while (true) {
-                buffer = new byte[1024];
-                packet = new DatagramPacket(buffer, buffer.length);
+                packet.setLength(buffer.length);
 
                 // wait for incoming packets from client
                 datagramSocket.receive(packet);
 
                 String message = new String(packet.getData(), 0, packet.getLength());
 
-                String server = message.split(" ")[0];
-                String address = message.split(" ")[1];
+                for (String record : message.split("\n")) {
+                    String[] parts = record.trim().split(" ");
+                    if (parts.length < 2) continue;
 
-                if (servers.containsKey(server)) {
-                    servers.put(server, servers.get(server) + 1);
-                } else {
-                    servers.put(server, 1);
-                }
+                    int count = 1;
+                    if (parts.length > 2) {
+                        try {
+                            count = Integer.parseInt(parts[2]);
+                        } catch (NumberFormatException e) {
+                            System.out.println("Ignoring malformed monitoring record: " + record);
+                            continue;
+                        }
+                    }
 
-                if (addresses.containsKey(address)) {
-                    addresses.put(address, addresses.get(address) + 1);
-                } else {
-                    addresses.put(address, 1);
+                    servers.merge(parts[0], count, Integer::sum);
+                    addresses.merge(parts[1], count, Integer::sum);
                 }
             }
         } catch (SocketException e) {
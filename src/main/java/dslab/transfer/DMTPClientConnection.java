@@ -0,0 +1,138 @@
+package dslab.transfer;
+
+import dslab.util.Compression;
+import dslab.util.DMTPPipeline;
+import dslab.util.DeflateCodec;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.List;
+
+/**
+ * A long-lived DMTP connection to a mailbox server that can be used for any number of begin...send cycles. The
+ * commands are pipelined and the data is compressed if the server supports it.
+ */
+public class DMTPClientConnection {
+
+    private final String address;
+    private Socket socket;
+    private BufferedReader reader;
+    private PrintWriter writer;
+    private boolean pipelining;
+    private DeflateCodec codec;
+    private long lastUsed;
+    private boolean reused = false;
+
+    /**
+     * Connects to the given mailbox server, consumes its greeting and asks for its capabilities.
+     *
+     * @param address the mailbox server address in the form host:port
+     * @param compression the compression settings of the transfer server
+     * @throws IOException if the connection cannot be established
+     */
+    public DMTPClientConnection(String address, Compression compression) throws IOException {
+        this.address = address;
+        connect();
+        writer.println(DMTPPipeline.CAPABILITIES);
+        writer.flush();
+        String response = reader.readLine();
+        pipelining = DMTPPipeline.supportsPipelining(response);
+        if (compression.isEnabled() && DMTPPipeline.supportsDeflate(response)) {
+            codec = compression.newCodec();
+        }
+        if (response == null || response.startsWith("error")) {
+            // servers without the extension end the session on the unknown command
+            socket.close();
+            connect();
+        }
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    private void connect() throws IOException {
+        socket = new Socket(address.split(":")[0], Integer.parseInt(address.split(":")[1]));
+        reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        writer = new PrintWriter(socket.getOutputStream());
+        //skip ok DMTP line
+        if (reader.readLine() == null) {
+            socket.close();
+            throw new IOException("connection closed by mailbox server");
+        }
+    }
+
+    /**
+     * Sends one begin...send block per mail, pipelined if possible.
+     *
+     * @param blocks the DMTP commands of every mail
+     * @param results receives the first error response of every completed block, or null if the block succeeded
+     * @throws IOException if the connection was lost
+     * @see DMTPPipeline#execute(BufferedReader, PrintWriter, List, boolean, DeflateCodec, List)
+     */
+    public void execute(List<List<String>> blocks, List<String> results) throws IOException {
+        DMTPPipeline.execute(reader, writer, blocks, pipelining, codec, results);
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Checks that the server has not closed the connection in the meantime. Waits at most one millisecond for the
+     * end of stream, so this should only be called for connections that have been idle for a while.
+     *
+     * @return true if the connection can still be used
+     */
+    public boolean isHealthy() {
+        if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) return false;
+        try {
+            socket.setSoTimeout(1);
+            // a healthy server does not send anything between two commands
+            reader.read();
+            return false;
+        } catch (SocketTimeoutException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                socket.setSoTimeout(0);
+            } catch (IOException e) {
+                // Ignored because the connection is discarded anyway
+            }
+        }
+    }
+
+    /**
+     * Ends the DMTP session and closes the socket.
+     */
+    public void close() {
+        if (codec != null) codec.close();
+        if (socket.isClosed()) return;
+        writer.println("quit");
+        writer.flush();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignored because we cannot handle it
+        }
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Returns whether this connection was taken from the pool instead of being opened for the current delivery.
+     */
+    public boolean isReused() {
+        return reused;
+    }
+
+    void setReused(boolean reused) {
+        this.reused = reused;
+    }
+}
@@ -0,0 +1,117 @@
+package dslab.transfer;
+
+import dslab.util.Compression;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of {@link DMTPClientConnection}s, keyed by mailbox server address. At most {@code maxPerHost} connections to the
+ * same server are in use at the same time, idle connections are closed after {@code idleTimeout} milliseconds and
+ * connections that were idle for longer than {@code validateAfter} milliseconds are checked before they are handed out.
+ */
+public class DMTPConnectionPool {
+
+    private final ConcurrentHashMap<String, HostPool> hosts = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor();
+    private final int maxPerHost;
+    private final long idleTimeout;
+    private final long validateAfter;
+    private final Compression compression;
+
+    public DMTPConnectionPool(int maxPerHost, long idleTimeout, long validateAfter, Compression compression) {
+        this.maxPerHost = Math.max(1, maxPerHost);
+        this.idleTimeout = idleTimeout;
+        this.validateAfter = validateAfter;
+        this.compression = compression;
+        long evictionInterval = Math.max(1000, idleTimeout / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns an idle connection to the given server, or opens a new one. Blocks while {@code maxPerHost} connections
+     * to this server are in use. Every borrowed connection has to be handed back with {@link #release} or
+     * {@link #invalidate}.
+     *
+     * @param address the mailbox server address in the form host:port
+     * @return a connection that is ready for the next begin command
+     * @throws IOException if a new connection cannot be established
+     * @throws InterruptedException if interrupted while waiting for a free connection
+     */
+    public DMTPClientConnection borrow(String address) throws IOException, InterruptedException {
+        HostPool host = hosts.computeIfAbsent(address, a -> new HostPool(maxPerHost));
+        host.permits.acquire();
+
+        DMTPClientConnection connection;
+        while ((connection = host.idle.pollFirst()) != null) {
+            if (System.currentTimeMillis() - connection.getLastUsed() < validateAfter || connection.isHealthy()) {
+                connection.setReused(true);
+                return connection;
+            }
+            connection.close();
+        }
+
+        try {
+            return new DMTPClientConnection(address, compression);
+        } catch (IOException e) {
+            host.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Hands a connection back that can be used for further mails.
+     */
+    public void release(DMTPClientConnection connection) {
+        HostPool host = hosts.get(connection.getAddress());
+        host.idle.addFirst(connection);
+        host.permits.release();
+    }
+
+    /**
+     * Closes a connection that must not be used any more, e.g. because of an I/O error.
+     */
+    public void invalidate(DMTPClientConnection connection) {
+        connection.close();
+        hosts.get(connection.getAddress()).permits.release();
+    }
+
+    /**
+     * Closes all idle connections and stops the eviction.
+     */
+    public void close() {
+        evictor.shutdownNow();
+        for (HostPool host : hosts.values()) {
+            DMTPClientConnection connection;
+            while ((connection = host.idle.pollFirst()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (HostPool host : hosts.values()) {
+            for (DMTPClientConnection connection : host.idle) {
+                // only close the connection if no worker has borrowed it in the meantime
+                if (now - connection.getLastUsed() >= idleTimeout && host.idle.remove(connection)) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private static class HostPool {
+        private final Semaphore permits;
+        private final ConcurrentLinkedDeque<DMTPClientConnection> idle = new ConcurrentLinkedDeque<>();
+
+        HostPool(int maxConnections) {
+            this.permits = new Semaphore(maxConnections);
+        }
+    }
+}
@@ -1,20 +1,28 @@
 package dslab.transfer;
 
-import dslab.util.Mail;
+import dslab.util.AsyncLog;
+import dslab.util.Compression;
+import dslab.util.ConnectionExecutor;
+import dslab.util.DMTPConnectionThread;
 
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.LinkedBlockingQueue;
 
 public class DMTPTransferListenerThread implements Runnable {
 
     private final ServerSocket serverSocket;
-    private final LinkedBlockingQueue<Mail> mailQueue;
+    private final MailQueue mailQueue;
+    private final ConnectionExecutor connections;
+    private final Compression compression;
+    private final AsyncLog.Logger log;
 
-    public DMTPTransferListenerThread(ServerSocket serverSocket, LinkedBlockingQueue<Mail> mailQueue) {
+    public DMTPTransferListenerThread(ServerSocket serverSocket, MailQueue mailQueue, ConnectionExecutor connections, Compression compression, AsyncLog.Logger log) {
         this.serverSocket = serverSocket;
         this.mailQueue = mailQueue;
+        this.connections = connections;
+        this.compression = compression;
+        this.log = log;
     }
 
     public void run() {
@@ -23,10 +31,10 @@ public class DMTPTransferListenerThread implements Runnable {
             while (true) {
                 // wait for Client to connect
                 socket = serverSocket.accept();
-                new DMTPTransferConnectionThread(socket, mailQueue).start();
+                connections.execute(socket, new DMTPConnectionThread(socket, new DMTPTransferSession(mailQueue, compression, log), log));
             }
         } catch (IOException e) {
-            System.out.println("IOException while running DMTP listener: " + e.getMessage());
+            log.warn("IOException while running DMTP listener: " + e.getMessage());
         }
     }
 }
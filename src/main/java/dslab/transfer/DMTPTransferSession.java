@@ -0,0 +1,66 @@
+package dslab.transfer;
+
+import dslab.util.AsyncLog;
+import dslab.util.Compression;
+import dslab.util.DMTPSession;
+import dslab.util.Mail;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class DMTPTransferSession extends DMTPSession {
+
+    private final MailQueue mailQueue;
+    private final AsyncLog.Logger log;
+
+    public DMTPTransferSession(MailQueue mailQueue, Compression compression, AsyncLog.Logger log) {
+        super(compression);
+        this.mailQueue = mailQueue;
+        this.log = log;
+    }
+
+    protected String to(String recipients) {
+        int acceptCounter = 0;
+        List<String> recipientList = Arrays.asList(recipients.trim().split("\\s*,\\s*"));
+        try {
+            for (String recipient : recipientList) {
+                String domain = recipient.split("@")[1];
+                acceptCounter++;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // keep the recipients unset, so a pipelined send fails as well
+            return "error recipient is not a valid email address";
+        }
+        mail.setRecipients(recipientList);
+        return "ok " + acceptCounter;
+    }
+
+    protected String send() {
+        if (mail.getRecipients() == null) {
+            return "error no recipients";
+        }
+        else if (mail.getSender() == null) {
+            return "error no sender";
+        }
+        else if (mail.getSubject() == null) {
+            return "error no subject";
+        }
+        else if (mail.getData() == null) {
+            return "error no data";
+        }
+        else {
+            Mail sentEmail = new Mail(mail);
+            try {
+                // only confirm the mail once it is journaled
+                if (!mailQueue.offer(sentEmail)) {
+                    // temporary, the client keeps its mail and may send it again later
+                    return "error busy, retry later";
+                }
+            } catch (Exception e) {
+                log.error("Could not add mail to the queue: " + e.getMessage());
+                return "error could not queue mail";
+            }
+        }
+        return "ok";
+    }
+}
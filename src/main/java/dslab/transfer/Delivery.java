@@ -0,0 +1,46 @@
+package dslab.transfer;
+
+import dslab.util.Mail;
+
+/**
+ * A mail that has to be delivered to the mailbox server of one particular domain.
+ */
+public class Delivery {
+
+    private final QueuedMail queuedMail;
+    private final String domain;
+    private int attempts = 0;
+
+    public Delivery(QueuedMail queuedMail, String domain) {
+        this.queuedMail = queuedMail;
+        this.domain = domain;
+    }
+
+    public QueuedMail getQueuedMail() {
+        return queuedMail;
+    }
+
+    public Mail getMail() {
+        return queuedMail.getMail();
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    /**
+     * Returns the number of failed attempts so far.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Counts a failed attempt.
+     *
+     * @return the number of failed attempts including this one
+     */
+    int failedAttempt() {
+        return ++attempts;
+    }
+}
@@ -0,0 +1,65 @@
+package dslab.transfer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Keeps a separate queue for every destination domain, each drained by its own workers. A slow or unreachable mailbox
+ * server therefore only delays the mails for its own domain. Workers stop once their domain has been idle for a while,
+ * so domains that only receive the occasional mail do not hold on to threads.
+ */
+public class DeliveryScheduler {
+
+    private final ConcurrentHashMap<String, DomainQueue> queues = new ConcurrentHashMap<>();
+    // the threads of stopped workers time out in the cached pool
+    private final ExecutorService workers = Executors.newCachedThreadPool();
+    private final int workersPerDomain;
+    private final long idleTimeout;
+    private final Function<DomainQueue, Runnable> workerFactory;
+
+    /**
+     * Creates a new scheduler.
+     *
+     * @param workersPerDomain the number of workers that deliver mails to the same domain concurrently
+     * @param idleTimeout the milliseconds a worker waits for mails of its domain before it stops
+     * @param workerFactory creates a worker that delivers the mails of the given domain queue
+     */
+    public DeliveryScheduler(int workersPerDomain, long idleTimeout, Function<DomainQueue, Runnable> workerFactory) {
+        this.workersPerDomain = Math.max(1, workersPerDomain);
+        this.idleTimeout = idleTimeout;
+        this.workerFactory = workerFactory;
+    }
+
+    /**
+     * Queues the delivery for its domain, starting another worker for the domain if it has fewer than the configured
+     * number.
+     *
+     * @param delivery the delivery to schedule
+     */
+    public void submit(Delivery delivery) {
+        DomainQueue queue = queues.computeIfAbsent(delivery.getDomain(), domain -> new DomainQueue(idleTimeout));
+        if (queue.add(delivery, workersPerDomain)) {
+            workers.execute(workerFactory.apply(queue));
+        }
+    }
+
+    /**
+     * Returns the number of workers currently running for the domain.
+     *
+     * @param domain the domain
+     * @return the number of workers
+     */
+    public int workers(String domain) {
+        DomainQueue queue = queues.get(domain);
+        return queue == null ? 0 : queue.workers();
+    }
+
+    /**
+     * Stops all workers. Deliveries that are still queued are dropped.
+     */
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+}
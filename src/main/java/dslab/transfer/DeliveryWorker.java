@@ -0,0 +1,160 @@
+package dslab.transfer;
+
+import dslab.util.AsyncLog;
+import dslab.util.DMTPPipeline;
+import dslab.util.Mail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Delivers the mails of one domain queue to the domain's mailbox server via DMTP. Mails that arrive close together are
+ * collected into a batch and sent back to back over one pooled session. The worker stops when the queue stays empty for
+ * its idle timeout.
+ */
+public class DeliveryWorker implements Runnable {
+
+    private final DomainQueue deliveries;
+    private final MailQueue mailQueue;
+    private final DomainResolver domainResolver;
+    private final DMTPConnectionPool connectionPool;
+    private final RetryScheduler retryScheduler;
+    private final int batchSize;
+    private final long batchWait;
+    private final MonitoringReporter monitoringReporter;
+    private final String currentAddress;
+    private final AsyncLog.Logger log;
+
+    public DeliveryWorker(DomainQueue deliveries, MailQueue mailQueue, DomainResolver domainResolver,
+                          DMTPConnectionPool connectionPool, RetryScheduler retryScheduler, int batchSize, long batchWait,
+                          MonitoringReporter monitoringReporter, String currentAddress, AsyncLog.Logger log) {
+        this.deliveries = deliveries;
+        this.mailQueue = mailQueue;
+        this.domainResolver = domainResolver;
+        this.connectionPool = connectionPool;
+        this.retryScheduler = retryScheduler;
+        this.batchSize = Math.max(1, batchSize);
+        this.batchWait = batchWait;
+        this.monitoringReporter = monitoringReporter;
+        this.currentAddress = currentAddress;
+        this.log = log;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                List<Delivery> batch = nextBatch();
+                if (batch == null) return;
+                String domain = batch.get(0).getDomain();
+                String address = domainResolver.resolve(domain);
+                if (address == null) {
+                    for (Delivery delivery : batch) {
+                        bounce(delivery.getMail(), "error domain not found");
+                        mailQueue.deliveryFinished(delivery.getQueuedMail());
+                    }
+                    continue;
+                }
+                for (Delivery delivery : deliver(batch, address)) {
+                    // connection problems are usually transient, only bounce once all attempts are used up
+                    if (retryScheduler.retry(delivery)) continue;
+                    bounce(delivery.getMail(), "error could not deliver mail to " + domain
+                            + " after " + delivery.getAttempts() + " attempts");
+                    mailQueue.deliveryFinished(delivery.getQueuedMail());
+                }
+            }
+        } catch (InterruptedException e) {
+            log.debug("Interrupted in TransferServer-MailboxServer connection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Waits for the next delivery and collects up to {@code batchSize} deliveries that arrive within {@code batchWait}
+     * milliseconds after it.
+     *
+     * @return the batch, or null if the queue stayed idle and the worker has to stop
+     */
+    List<Delivery> nextBatch() throws InterruptedException {
+        Delivery first = deliveries.take();
+        if (first == null) return null;
+        List<Delivery> batch = new ArrayList<>();
+        batch.add(first);
+        deliveries.drainTo(batch, batchSize - 1);
+        long deadline = System.currentTimeMillis() + batchWait;
+        while (batch.size() < batchSize) {
+            Delivery next = deliveries.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+            if (next == null) break;
+            batch.add(next);
+            deliveries.drainTo(batch, batchSize - batch.size());
+        }
+        return batch;
+    }
+
+    /**
+     * Runs one begin...send cycle per mail of the batch on a pooled connection and finishes every mail the mailbox
+     * server answered, either as delivered or bounced.
+     *
+     * @return the deliveries that could not be sent because the connection failed
+     */
+    private List<Delivery> deliver(List<Delivery> batch, String address) throws InterruptedException {
+        List<Delivery> remaining = batch;
+        boolean retried = false;
+        while (true) {
+            List<String> results = new ArrayList<>();
+            DMTPClientConnection connection = null;
+            try {
+                connection = connectionPool.borrow(address);
+                connection.execute(remaining.stream().map(d -> DMTPPipeline.commands(d.getMail())).collect(Collectors.toList()), results);
+            } catch (IOException e) {
+                if (connection != null) connectionPool.invalidate(connection);
+                finish(remaining.subList(0, results.size()), results);
+                remaining = remaining.subList(results.size(), remaining.size());
+                if (remaining.isEmpty()) return remaining;
+                if (connection != null && connection.isReused() && !retried) {
+                    // the pooled connection went stale while it was idle, try once more on a fresh one
+                    retried = true;
+                    continue;
+                }
+                log.warn("Could not deliver " + remaining.size() + " mails to " + address + ": " + e.getMessage());
+                // one failed connection is one failure of the domain, however many mails were waiting for it
+                retryScheduler.domainFailed(remaining.get(0).getDomain());
+                return remaining;
+            }
+            // the server ends the session on protocol errors, any other error only affects its mail
+            if (results.stream().anyMatch(r -> r != null && r.startsWith("error protocol error"))) connectionPool.invalidate(connection);
+            else connectionPool.release(connection);
+            finish(remaining, results);
+            return List.of();
+        }
+    }
+
+    /**
+     * Completes the deliveries the mailbox server has answered.
+     *
+     * @param answered the deliveries
+     * @param results the first error response for every delivery, or null if the mail was accepted
+     */
+    private void finish(List<Delivery> answered, List<String> results) throws InterruptedException {
+        if (answered.isEmpty()) return;
+        retryScheduler.succeeded(answered.get(0).getDomain());
+        for (int i = 0; i < answered.size(); i++) {
+            Delivery delivery = answered.get(i);
+            if (results.get(i) == null) monitoringReporter.record(delivery.getMail().getSender());
+            else bounce(delivery.getMail(), results.get(i));
+            mailQueue.deliveryFinished(delivery.getQueuedMail());
+        }
+    }
+
+    private void bounce(Mail mail, String reason) throws InterruptedException {
+        // never answer a failed error mail with another error mail
+        if (mail.getSender().equals(currentAddress)) return;
+        try {
+            mailQueue.put(new Mail(currentAddress, List.of(mail.getSender()), "delivery failed", reason));
+        } catch (IOException e) {
+            log.error("Could not queue error mail: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package dslab.transfer;
+
+import java.util.Collection;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The pending deliveries of one domain, together with the number of workers draining them. Workers that find the queue
+ * empty for longer than the idle timeout stop, the {@link DeliveryScheduler} starts new ones when mails arrive again.
+ */
+public class DomainQueue {
+
+    private final LinkedBlockingQueue<Delivery> deliveries = new LinkedBlockingQueue<>();
+    private final long idleTimeout;
+    private int workers = 0;
+
+    /**
+     * Creates a new queue.
+     *
+     * @param idleTimeout the milliseconds a worker waits for a delivery before it stops
+     */
+    public DomainQueue(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Queues the delivery and registers a new worker if fewer than {@code maxWorkers} are running.
+     *
+     * @param delivery the delivery
+     * @param maxWorkers the number of workers the domain may have
+     * @return true if the caller has to start a worker for this queue
+     */
+    synchronized boolean add(Delivery delivery, int maxWorkers) {
+        deliveries.add(delivery);
+        if (workers >= maxWorkers) return false;
+        workers++;
+        return true;
+    }
+
+    /**
+     * Waits up to the idle timeout for the next delivery. If none arrives the calling worker is deregistered and has to
+     * stop, a delivery added afterwards starts a new one.
+     *
+     * @return the next delivery, or null if the worker has to stop
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Delivery take() throws InterruptedException {
+        Delivery next = deliveries.poll(idleTimeout, TimeUnit.MILLISECONDS);
+        if (next != null) return next;
+        synchronized (this) {
+            // checked again under the lock, add does not start a worker while this one is still registered
+            next = deliveries.poll();
+            if (next == null) workers--;
+            return next;
+        }
+    }
+
+    public Delivery poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return deliveries.poll(timeout, unit);
+    }
+
+    public int drainTo(Collection<? super Delivery> batch, int maxElements) {
+        return deliveries.drainTo(batch, maxElements);
+    }
+
+    synchronized int workers() {
+        return workers;
+    }
+}
@@ -0,0 +1,212 @@
+package dslab.transfer;
+
+import dslab.nameserver.INameserverRemote;
+import dslab.util.AsyncLog;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.rmi.registry.LocateRegistry;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Resolves mail domains to mailbox server addresses through the nameserver hierarchy, starting at the root nameserver
+ * and following {@link INameserverRemote#getNameserver} down to the zone that knows the mailbox server.
+ *
+ * Results are cached, found addresses for {@code ttl} and unknown domains for {@code negativeTtl} milliseconds.
+ * Concurrent lookups of the same domain share one RMI call, and entries that are still in use are refreshed in the
+ * background shortly before they expire, so deliveries only wait for the nameservers on the very first lookup.
+ * An expired address is still returned while its refresh runs, and no caller waits longer than {@code lookupTimeout}
+ * for the nameservers. If the nameservers cannot be reached, do not answer in time or do not know the domain, the
+ * statically configured domains are used.
+ */
+public class DomainResolver {
+
+    private final String registryHost;
+    private final int registryPort;
+    private final String rootId;
+    private final Map<String, String> staticDomains;
+    private final long ttl;
+    private final long negativeTtl;
+    private final long lookupTimeout;
+    private final AsyncLog.Logger log;
+
+    private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+    private final ExecutorService lookups = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "domain-lookup");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "domain-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile INameserverRemote root;
+    private volatile long registryRetryAt = 0;
+
+    /**
+     * Creates a new resolver.
+     *
+     * @param registryHost the host of the RMI registry
+     * @param registryPort the port of the RMI registry
+     * @param rootId the name of the root nameserver in the registry
+     * @param staticDomains the fallback domain to address mapping
+     * @param ttl the time in milliseconds a found address is cached
+     * @param negativeTtl the time in milliseconds an unknown domain is cached
+     * @param lookupTimeout the time in milliseconds a caller waits for the nameservers
+     * @param log the logger for failed lookups
+     */
+    public DomainResolver(String registryHost, int registryPort, String rootId, Map<String, String> staticDomains,
+                          long ttl, long negativeTtl, long lookupTimeout, AsyncLog.Logger log) {
+        this.registryHost = registryHost;
+        this.registryPort = registryPort;
+        this.rootId = rootId;
+        this.staticDomains = staticDomains;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.lookupTimeout = lookupTimeout;
+        this.log = log;
+        long refreshInterval = Math.max(100, Math.min(ttl, negativeTtl) / 4);
+        refresher.scheduleWithFixedDelay(this::refreshExpiring, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the address of the mailbox server of the given domain.
+     *
+     * @param domain the mail domain, e.g. earth.planet
+     * @return the address in the form host:port, or null if the domain is unknown
+     * @throws InterruptedException if interrupted while waiting for the nameservers
+     */
+    public String resolve(String domain) throws InterruptedException {
+        Entry entry = cache.get(domain);
+        long now = System.currentTimeMillis();
+        if (entry != null && entry.expires > now) {
+            entry.used = true;
+            return entry.address;
+        }
+        CompletableFuture<String> lookup = lookup(domain);
+        if (entry != null && entry.address != null) {
+            // the last known address is most likely still right, do not hold up the delivery for the refresh
+            return entry.address;
+        }
+        try {
+            return lookup.get(lookupTimeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            return staticDomains.get(domain);
+        } catch (TimeoutException e) {
+            log.warn("Nameserver lookup of " + domain + " did not finish within " + lookupTimeout + " ms");
+            return staticDomains.get(domain);
+        }
+    }
+
+    public void shutdown() {
+        refresher.shutdownNow();
+        lookups.shutdownNow();
+    }
+
+    /**
+     * Returns the number of lookups that are still running.
+     */
+    int lookupsInFlight() {
+        return inFlight.size();
+    }
+
+    /**
+     * Starts a lookup for the domain unless one is running already.
+     */
+    private CompletableFuture<String> lookup(String domain) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CompletableFuture<String> running = inFlight.putIfAbsent(domain, future);
+        if (running != null) return running;
+        // registered before the lookup starts, so the removal cannot run ahead of the put
+        future.whenComplete((address, e) -> inFlight.remove(domain, future));
+        try {
+            lookups.execute(() -> {
+                try {
+                    String address = queryNameservers(domain);
+                    if (address == null) address = staticDomains.get(domain);
+                    long expires = System.currentTimeMillis() + (address != null ? ttl : negativeTtl);
+                    cache.put(domain, new Entry(address, expires));
+                    future.complete(address);
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the resolver was shut down
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Refreshes entries that were used since they were loaded and expire within the next quarter of their lifetime.
+     */
+    private void refreshExpiring() {
+        long now = System.currentTimeMillis();
+        cache.forEach((domain, entry) -> {
+            long lifetime = entry.address != null ? ttl : negativeTtl;
+            if (entry.used && entry.expires - now < lifetime / 4) {
+                lookup(domain);
+            } else if (entry.expires < now) {
+                cache.remove(domain, entry);
+            }
+        });
+    }
+
+    private String queryNameservers(String domain) {
+        INameserverRemote nameserver = root();
+        if (nameserver == null) return null;
+
+        String[] parts = domain.split("\\.");
+        try {
+            for (int i = parts.length - 1; i > 0 && nameserver != null; i--) {
+                nameserver = nameserver.getNameserver(parts[i]);
+            }
+            return nameserver == null ? null : nameserver.lookup(parts[0]);
+        } catch (ServerException e) {
+            // thrown by the nameserver itself if a zone or the mailbox server is unknown
+            return null;
+        } catch (RemoteException e) {
+            log.warn("Nameserver lookup of " + domain + " failed: " + e.getMessage());
+            root = null;
+            return null;
+        }
+    }
+
+    private INameserverRemote root() {
+        INameserverRemote current = root;
+        if (current != null || System.currentTimeMillis() < registryRetryAt) return current;
+        try {
+            current = (INameserverRemote) LocateRegistry.getRegistry(registryHost, registryPort).lookup(rootId);
+            root = current;
+        } catch (RemoteException | NotBoundException e) {
+            // do not ask the registry again for every lookup while it is down
+            registryRetryAt = System.currentTimeMillis() + negativeTtl;
+        }
+        return current;
+    }
+
+    private static class Entry {
+        private final String address;
+        private final long expires;
+        private volatile boolean used = false;
+
+        Entry(String address, long expires) {
+            this.address = address;
+            this.expires = expires;
+        }
+    }
+}
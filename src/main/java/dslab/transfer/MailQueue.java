@@ -0,0 +1,170 @@
+package dslab.transfer;
+
+import dslab.util.AsyncLog;
+import dslab.util.Mail;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue of the mails accepted by the transfer server. If a {@link MailSpool} is configured, every mail is journaled
+ * before it is queued and marked done once all of its domain deliveries have finished, so accepted mails survive a
+ * restart.
+ *
+ * Mails count against the queue limits from the moment they are accepted until all of their deliveries have finished.
+ * Once the number of pending mails or their size reaches a high watermark, {@link #offer(Mail)} rejects new mails until
+ * both have dropped below the low watermarks again.
+ */
+public class MailQueue {
+
+    private final LinkedBlockingQueue<QueuedMail> queue = new LinkedBlockingQueue<>();
+    private final MailSpool spool;
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    private final int highWatermarkMails;
+    private final int lowWatermarkMails;
+    private final long highWatermarkBytes;
+    private final long lowWatermarkBytes;
+    private final AtomicInteger pendingMails = new AtomicInteger();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile boolean saturated = false;
+
+    /**
+     * Creates a new queue and fills it with the mails the spool recovered from the last run.
+     *
+     * @param spool the spool to journal to, or null to keep the mails in memory only
+     * @param highWatermarkMails the number of pending mails at which new mails are rejected
+     * @param lowWatermarkMails the number of pending mails below which new mails are accepted again
+     * @param highWatermarkBytes the size of the pending mails at which new mails are rejected
+     * @param lowWatermarkBytes the size of the pending mails below which new mails are accepted again
+     * @param log the logger for the recovery
+     */
+    public MailQueue(MailSpool spool, int highWatermarkMails, int lowWatermarkMails, long highWatermarkBytes,
+                     long lowWatermarkBytes, AsyncLog.Logger log) {
+        this.spool = spool;
+        this.highWatermarkMails = highWatermarkMails;
+        this.lowWatermarkMails = Math.min(lowWatermarkMails, highWatermarkMails);
+        this.highWatermarkBytes = highWatermarkBytes;
+        this.lowWatermarkBytes = Math.min(lowWatermarkBytes, highWatermarkBytes);
+        if (spool != null) {
+            spool.recovered().forEach((id, mail) -> enqueue(new QueuedMail(id, mail)));
+            if (!queue.isEmpty()) {
+                log.info("Recovered " + queue.size() + " undelivered mails from spool");
+            }
+        }
+    }
+
+    /**
+     * Accepts the mail unless the queue is saturated. Returns only after the mail is on disk.
+     *
+     * @param mail the mail received from a client
+     * @return false if the mail was rejected because the queue is full
+     * @throws IOException if the mail could not be journaled
+     * @throws InterruptedException if interrupted while waiting for the journal
+     */
+    public boolean offer(Mail mail) throws IOException, InterruptedException {
+        if (isSaturated()) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        put(mail);
+        accepted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Journals the mail and queues it for delivery regardless of the watermarks. Used for the error mails of the server
+     * itself, which must not be lost because clients filled up the queue.
+     *
+     * @param mail the mail to queue
+     * @throws IOException if the mail could not be journaled
+     * @throws InterruptedException if interrupted while waiting for the journal
+     */
+    public void put(Mail mail) throws IOException, InterruptedException {
+        long id = spool != null ? spool.append(mail) : nextId.getAndIncrement();
+        enqueue(new QueuedMail(id, mail));
+    }
+
+    public QueuedMail take() throws InterruptedException {
+        return queue.take();
+    }
+
+    /**
+     * Sets the number of domain deliveries the mail is waiting for.
+     */
+    public void expectDeliveries(QueuedMail mail, int deliveries) {
+        if (mail.getPendingDeliveries().addAndGet(deliveries) == 0) {
+            done(mail);
+        }
+    }
+
+    /**
+     * Called when one domain delivery of the mail has finished, either delivered or bounced.
+     */
+    public void deliveryFinished(QueuedMail mail) {
+        if (mail.getPendingDeliveries().decrementAndGet() == 0) {
+            done(mail);
+        }
+    }
+
+    /**
+     * Returns the number of mails waiting to be handed to the delivery workers.
+     */
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of accepted mails whose deliveries have not finished yet.
+     */
+    public int pendingMails() {
+        return pendingMails.get();
+    }
+
+    /**
+     * Returns the approximate size in bytes of the accepted mails whose deliveries have not finished yet.
+     */
+    public long pendingBytes() {
+        return pendingBytes.get();
+    }
+
+    public long acceptedMails() {
+        return accepted.get();
+    }
+
+    public long rejectedMails() {
+        return rejected.get();
+    }
+
+    /**
+     * Returns whether new mails are currently rejected, switching state at the high and low watermarks.
+     */
+    public boolean isSaturated() {
+        int mails = pendingMails.get();
+        long bytes = pendingBytes.get();
+        if (saturated) {
+            if (mails < lowWatermarkMails && bytes < lowWatermarkBytes) saturated = false;
+        } else if (mails >= highWatermarkMails || bytes >= highWatermarkBytes) {
+            saturated = true;
+        }
+        return saturated;
+    }
+
+    private void enqueue(QueuedMail mail) {
+        pendingMails.incrementAndGet();
+        pendingBytes.addAndGet(mail.getSize());
+        queue.add(mail);
+    }
+
+    private void done(QueuedMail mail) {
+        pendingMails.decrementAndGet();
+        pendingBytes.addAndGet(-mail.getSize());
+        if (spool != null) {
+            spool.markDone(mail.getId());
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package dslab.transfer;
+
+import dslab.util.AsyncLog;
+import dslab.util.Mail;
+import dslab.util.MailCodec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the mails accepted by the transfer server, split into numbered segment files.
+ *
+ * Every accepted mail is written as an APPEND record and every finished mail as a DONE record. A single writer thread
+ * collects all pending records, writes them with one call and forces them to disk once per batch (group commit), so
+ * {@link #append} returns only after the mail is durable. On startup all segments are replayed and the mails without a
+ * DONE record are handed out again via {@link #recovered()}.
+ *
+ * Segments are deleted oldest first as soon as all of their mails are done. If more than {@code maxSegments} segments
+ * exist, the mails still pending in the oldest segment are copied to the current one, so a single long-lived mail does
+ * not keep old segments alive.
+ *
+ * Record layout: {@code int length | byte type | long id | payload | int crc32}, where length covers type, id and
+ * payload and the checksum is computed over the same bytes. A torn record at the end of a segment is cut off on replay.
+ */
+public class MailSpool implements Closeable {
+
+    private static final byte APPEND = 1;
+    private static final byte DONE = 2;
+    private static final int HEADER_SIZE = 4;
+    private static final int TRAILER_SIZE = 4;
+    private static final int MAX_BATCH = 4096;
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final int maxSegments;
+    private final AsyncLog.Logger log;
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final LinkedBlockingQueue<Write> writes = new LinkedBlockingQueue<>();
+    private final Map<Long, Mail> recovered = new TreeMap<>();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    // owned by the writer thread after startup
+    private final Map<Long, Long> segmentOf = new HashMap<>();
+    private final TreeMap<Long, Integer> liveMails = new TreeMap<>();
+    private long currentSegment;
+    private FileChannel channel;
+
+    /**
+     * Opens the spool in the given directory and replays all existing segments.
+     *
+     * @param dir the spool directory, created if necessary
+     * @param segmentBytes the size after which a new segment is started
+     * @param maxSegments the number of segments above which pending mails are moved out of the oldest segment
+     * @param log the logger for write errors and recovery
+     * @throws IOException if the spool cannot be read or created
+     */
+    public MailSpool(Path dir, long segmentBytes, int maxSegments, AsyncLog.Logger log) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = Math.max(2, maxSegments);
+        this.log = log;
+        Files.createDirectories(dir);
+        replay();
+        openSegment(liveMails.isEmpty() ? 1 : liveMails.lastKey());
+        compact();
+        writer = new Thread(this::writeLoop, "mail-spool-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Returns the mails that were accepted but not finished before the last shutdown, ordered by id.
+     */
+    public Map<Long, Mail> recovered() {
+        return recovered;
+    }
+
+    /**
+     * Journals the given mail and waits until it is on disk.
+     *
+     * @param mail the accepted mail
+     * @return the spool id of the mail
+     * @throws IOException if the mail could not be written
+     * @throws InterruptedException if interrupted while waiting for the write
+     */
+    public long append(Mail mail) throws IOException, InterruptedException {
+        long id = nextId.getAndIncrement();
+        Write write = new Write(APPEND, id, record(APPEND, id, MailCodec.encode(mail)));
+        writes.put(write);
+        try {
+            write.done.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Could not write mail to spool", e.getCause());
+        }
+        return id;
+    }
+
+    /**
+     * Records that the mail with the given id is finished. Does not wait for the disk, if the record is lost the mail
+     * is delivered once more after a restart.
+     *
+     * @param id the spool id of the mail
+     */
+    public void markDone(long id) {
+        writes.add(new Write(DONE, id, record(DONE, id, new byte[0])));
+    }
+
+    /**
+     * Writes all pending records and closes the current segment.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.error("Error while closing mail spool: " + e.getMessage());
+        }
+    }
+
+    private void writeLoop() {
+        List<Write> batch = new ArrayList<>();
+        while (running || !writes.isEmpty()) {
+            try {
+                Write first = writes.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                writes.drainTo(batch, MAX_BATCH - 1);
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                // only close() ends the loop, so that no accepted mail is left unwritten
+            } catch (IOException e) {
+                log.error("Error while writing mail spool: " + e.getMessage());
+                batch.forEach(write -> write.done.completeExceptionally(e));
+                startNewSegment();
+            }
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<Write> batch) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = batch.get(i).record;
+        }
+        long remaining = batch.stream().mapToLong(write -> write.record.remaining()).sum();
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+        channel.force(false);
+
+        for (Write write : batch) {
+            if (write.type == APPEND) {
+                segmentOf.put(write.id, currentSegment);
+                liveMails.merge(currentSegment, 1, Integer::sum);
+            } else {
+                mailDone(write.id);
+            }
+            write.done.complete(null);
+        }
+
+        if (channel.size() >= segmentBytes) {
+            channel.close();
+            openSegment(currentSegment + 1);
+            compact();
+        }
+    }
+
+    /**
+     * Continues in a fresh segment after a failed write, since replay stops at the first torn record of a segment.
+     */
+    private void startNewSegment() {
+        try {
+            channel.close();
+            openSegment(currentSegment + 1);
+        } catch (IOException e) {
+            log.error("Could not start new spool segment: " + e.getMessage());
+        }
+    }
+
+    private void mailDone(long id) {
+        Long segment = segmentOf.remove(id);
+        if (segment != null) {
+            liveMails.merge(segment, -1, Integer::sum);
+        }
+    }
+
+    /**
+     * Deletes finished segments, oldest first. A DONE record may refer to a mail in an older segment, so a segment is
+     * only deleted once all older segments are gone.
+     */
+    private void compact() throws IOException {
+        while (liveMails.firstKey() < currentSegment) {
+            long oldest = liveMails.firstKey();
+            if (liveMails.get(oldest) > 0) {
+                if (liveMails.size() <= maxSegments) return;
+                moveLiveMails(oldest);
+            }
+            Files.deleteIfExists(segmentPath(oldest));
+            liveMails.remove(oldest);
+        }
+    }
+
+    /**
+     * Copies the APPEND records of all unfinished mails of the given segment to the current segment.
+     */
+    private void moveLiveMails(long segment) throws IOException {
+        List<ByteBuffer> records = new ArrayList<>();
+        readSegment(segment, (type, id, payload, record) -> {
+            if (type == APPEND && Long.valueOf(segment).equals(segmentOf.get(id))) {
+                records.add(record);
+            }
+        });
+        for (ByteBuffer record : records) {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+        }
+        channel.force(false);
+        for (Map.Entry<Long, Long> entry : segmentOf.entrySet()) {
+            if (entry.getValue() == segment) {
+                entry.setValue(currentSegment);
+                liveMails.merge(currentSegment, 1, Integer::sum);
+            }
+        }
+        liveMails.put(segment, 0);
+    }
+
+    private void replay() throws IOException {
+        List<Long> segments;
+        try (Stream<Path> files = Files.list(dir)) {
+            segments = files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.matches("segment-\\d+\\.log"))
+                    .map(name -> Long.parseLong(name.substring(8, name.length() - 4)))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        long[] maxId = {0};
+        for (long segment : segments) {
+            liveMails.put(segment, 0);
+            long validBytes = readSegment(segment, (type, id, payload, record) -> {
+                maxId[0] = Math.max(maxId[0], id);
+                if (type == APPEND) {
+                    recovered.put(id, MailCodec.decode(payload));
+                    Long previous = segmentOf.put(id, segment);
+                    if (previous != null) liveMails.merge(previous, -1, Integer::sum);
+                    liveMails.merge(segment, 1, Integer::sum);
+                } else if (recovered.remove(id) != null) {
+                    mailDone(id);
+                }
+            });
+            try (FileChannel file = FileChannel.open(segmentPath(segment), StandardOpenOption.WRITE)) {
+                if (file.size() > validBytes) {
+                    log.warn("Cutting off torn record at the end of spool segment " + segment);
+                    file.truncate(validBytes);
+                }
+            }
+        }
+        nextId.set(maxId[0] + 1);
+    }
+
+    /**
+     * Reads all valid records of a segment through a read-only mapping.
+     *
+     * @return the number of bytes up to the end of the last valid record
+     */
+    private long readSegment(long segment, RecordConsumer consumer) throws IOException {
+        try (FileChannel file = FileChannel.open(segmentPath(segment), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+            CRC32 crc = new CRC32();
+            while (buffer.remaining() >= HEADER_SIZE) {
+                int start = buffer.position();
+                int length = buffer.getInt();
+                // a garbage length near Integer.MAX_VALUE must not overflow the comparison
+                if (length < 9 || length > buffer.remaining() - TRAILER_SIZE) {
+                    return start;
+                }
+                ByteBuffer body = buffer.slice();
+                body.limit(length);
+                crc.reset();
+                crc.update(body.duplicate());
+                buffer.position(buffer.position() + length);
+                if ((int) crc.getValue() != buffer.getInt()) {
+                    return start;
+                }
+                byte type = body.get();
+                long id = body.getLong();
+                ByteBuffer record = buffer.duplicate();
+                record.position(start).limit(buffer.position());
+                consumer.accept(type, id, body, record);
+            }
+            return buffer.position();
+        }
+    }
+
+    private void openSegment(long segment) throws IOException {
+        currentSegment = segment;
+        liveMails.putIfAbsent(segment, 0);
+        channel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private Path segmentPath(long segment) {
+        return dir.resolve(String.format("segment-%08d.log", segment));
+    }
+
+    private static ByteBuffer record(byte type, long id, byte[] payload) {
+        int length = 1 + 8 + payload.length;
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + length + TRAILER_SIZE);
+        record.putInt(length).put(type).putLong(id).put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER_SIZE, length);
+        record.putInt((int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    private interface RecordConsumer {
+        void accept(byte type, long id, ByteBuffer payload, ByteBuffer record);
+    }
+
+    private static class Write {
+        private final byte type;
+        private final long id;
+        private final ByteBuffer record;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Write(byte type, long id, ByteBuffer record) {
+            this.type = type;
+            this.id = id;
+            this.record = record;
+        }
+    }
+}
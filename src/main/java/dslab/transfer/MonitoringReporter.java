@@ -0,0 +1,128 @@
+package dslab.transfer;
+
+import dslab.util.AsyncLog;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts the delivered mails per sender and sends the counts to the monitoring server in batches. Every datagram holds
+ * one {@code <server> <sender> <count>} line per sender. The counts are flushed periodically and as soon as they would
+ * fill a datagram.
+ */
+public class MonitoringReporter {
+
+    private final String server;
+    private final int maxDatagramBytes;
+    private final Map<String, Integer> counts = new HashMap<>();
+    private int pendingBytes = 0;
+    private DatagramSocket socket;
+    private InetAddress monitoringAddress;
+    private final int monitoringPort;
+    private final AsyncLog.Logger log;
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "monitoring-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Creates a new reporter. The monitoring server address is resolved once here, if that fails nothing is reported.
+     *
+     * @param server the address of this transfer server in the form host:port
+     * @param monitoringHost the host of the monitoring server
+     * @param monitoringPort the UDP port of the monitoring server
+     * @param flushInterval the time in milliseconds after which the counts are sent at the latest
+     * @param maxDatagramBytes the maximum payload of a single datagram
+     * @param log the logger for failures to reach the monitoring server
+     */
+    public MonitoringReporter(String server, String monitoringHost, int monitoringPort, long flushInterval, int maxDatagramBytes,
+                              AsyncLog.Logger log) {
+        this.server = server;
+        this.log = log;
+        this.monitoringPort = monitoringPort;
+        this.maxDatagramBytes = maxDatagramBytes;
+        try {
+            monitoringAddress = InetAddress.getByName(monitoringHost);
+            socket = new DatagramSocket();
+        } catch (UnknownHostException | SocketException e) {
+            log.warn("Could not set up monitoring (no monitoring): " + e.getMessage());
+            return;
+        }
+        flusher.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Counts a delivered mail.
+     *
+     * @param sender the sender of the mail
+     */
+    public void record(String sender) {
+        if (socket == null) return;
+        boolean full;
+        synchronized (this) {
+            if (counts.merge(sender, 1, Integer::sum) == 1) {
+                pendingBytes += record(sender, 1).length() + 1;
+            }
+            full = pendingBytes >= maxDatagramBytes;
+        }
+        if (full) flush();
+    }
+
+    /**
+     * Sends all counts collected since the last flush.
+     */
+    public void flush() {
+        Map<String, Integer> snapshot;
+        synchronized (this) {
+            if (counts.isEmpty()) return;
+            snapshot = new HashMap<>(counts);
+            counts.clear();
+            pendingBytes = 0;
+        }
+
+        StringBuilder datagram = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : snapshot.entrySet()) {
+            String line = record(entry.getKey(), entry.getValue());
+            if (datagram.length() > 0 && datagram.length() + line.length() + 1 > maxDatagramBytes) {
+                send(datagram.toString());
+                datagram.setLength(0);
+            }
+            if (datagram.length() > 0) datagram.append('\n');
+            datagram.append(line);
+        }
+        send(datagram.toString());
+    }
+
+    /**
+     * Sends the remaining counts and closes the socket.
+     */
+    public void close() {
+        flusher.shutdownNow();
+        if (socket == null) return;
+        flush();
+        socket.close();
+    }
+
+    private String record(String sender, int count) {
+        return server + " " + sender + " " + count;
+    }
+
+    private void send(String message) {
+        byte[] buffer = message.getBytes();
+        try {
+            socket.send(new DatagramPacket(buffer, buffer.length, monitoringAddress, monitoringPort));
+        } catch (IOException e) {
+            log.warn("Could not send statistics to monitoring server: " + e.getMessage());
+        }
+    }
+}
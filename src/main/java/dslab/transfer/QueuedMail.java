@@ -0,0 +1,57 @@
+package dslab.transfer;
+
+import dslab.util.Mail;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A mail accepted by the transfer server, together with its spool id and the number of domain deliveries that have not
+ * finished yet.
+ */
+public class QueuedMail {
+
+    private final long id;
+    private final Mail mail;
+    private final long size;
+    private final AtomicInteger pendingDeliveries = new AtomicInteger();
+
+    public QueuedMail(long id, Mail mail) {
+        this.id = id;
+        this.mail = mail;
+        this.size = estimateSize(mail);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Mail getMail() {
+        return mail;
+    }
+
+    /**
+     * Returns the approximate number of bytes the mail occupies on the heap.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    AtomicInteger getPendingDeliveries() {
+        return pendingDeliveries;
+    }
+
+    private static long estimateSize(Mail mail) {
+        long chars = length(mail.getSender()) + length(mail.getSubject()) + length(mail.getData()) + length(mail.getHash());
+        if (mail.getRecipients() != null) {
+            for (String recipient : mail.getRecipients()) {
+                chars += length(recipient);
+            }
+        }
+        // two bytes per char plus a rough allowance for the object headers
+        return 2 * chars + 128;
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+}
@@ -0,0 +1,143 @@
+package dslab.transfer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Delays deliveries that failed for a transient reason, e.g. because the mailbox server could not be reached.
+ *
+ * The delay grows exponentially with the number of failed attempts of the delivery and with the number of consecutive
+ * failed connection attempts to its domain, so a domain that is down is not hammered by all of its queued mails. A
+ * batch of mails that failed on one connection counts as a single failure of the domain. A random jitter of up to
+ * half the delay spreads the retries of mails that failed at the same time.
+ */
+public class RetryScheduler {
+
+    private final DelayQueue<Retry> retries = new DelayQueue<>();
+    private final ConcurrentHashMap<String, Integer> domainFailures = new ConcurrentHashMap<>();
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+    private Thread thread;
+
+    /**
+     * Creates a new retry scheduler.
+     *
+     * @param maxAttempts the number of attempts after which a delivery is given up
+     * @param baseDelay the delay in milliseconds before the first retry
+     * @param maxDelay the upper bound for the delay in milliseconds
+     */
+    public RetryScheduler(int maxAttempts, long baseDelay, long maxDelay) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Starts handing deliveries whose delay has expired to the given consumer.
+     *
+     * @param resubmit receives the deliveries that are due again
+     */
+    public void start(Consumer<Delivery> resubmit) {
+        thread = new Thread(() -> {
+            try {
+                while (true) {
+                    resubmit.accept(retries.take().delivery);
+                }
+            } catch (InterruptedException e) {
+                // shutdown
+            }
+        }, "delivery-retries");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void shutdown() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Records a failed connection attempt to the domain, before its deliveries are handed to {@link #retry}.
+     *
+     * @param domain the domain whose mailbox server could not be reached
+     */
+    public void domainFailed(String domain) {
+        domainFailures.merge(domain, 1, Integer::sum);
+    }
+
+    /**
+     * Records a failed attempt of the delivery and schedules the next one, backed off by the attempts of the delivery
+     * and the consecutive failures of its domain.
+     *
+     * @param delivery the delivery that failed
+     * @return false if the delivery has used up all of its attempts and has to be bounced
+     */
+    public boolean retry(Delivery delivery) {
+        int attempts = delivery.failedAttempt();
+        if (attempts >= maxAttempts) {
+            return false;
+        }
+        int failures = domainFailures.getOrDefault(delivery.getDomain(), 0);
+        retries.add(new Retry(delivery, System.currentTimeMillis() + delay(Math.max(attempts, failures))));
+        return true;
+    }
+
+    /**
+     * Returns the delay before the next attempt after the given number of failures, with jitter.
+     */
+    long delay(int failures) {
+        int exponent = Math.min(Math.max(failures, 1) - 1, 30);
+        long delay = Math.min(maxDelay, baseDelay << exponent);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Resets the backoff of a domain after a successful delivery.
+     */
+    public void succeeded(String domain) {
+        domainFailures.remove(domain);
+    }
+
+    /**
+     * Returns a line per delivery that is waiting for its next attempt.
+     */
+    public List<String> describe() {
+        long now = System.currentTimeMillis();
+        List<String> lines = new ArrayList<>();
+        for (Retry retry : retries) {
+            Delivery delivery = retry.delivery;
+            lines.add(String.format("%s attempt %d/%d in %ds from %s subject %s", delivery.getDomain(),
+                    delivery.getAttempts() + 1, maxAttempts, Math.max(0, (retry.due - now) / 1000),
+                    delivery.getMail().getSender(), delivery.getMail().getSubject()));
+        }
+        return lines;
+    }
+
+    private static class Retry implements Delayed {
+        private final Delivery delivery;
+        private final long due;
+
+        Retry(Delivery delivery, long due) {
+            this.delivery = delivery;
+            this.due = due;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(due, ((Retry) other).due);
+        }
+    }
+}
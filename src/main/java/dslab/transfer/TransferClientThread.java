@@ -1,169 +1,107 @@
 package dslab.transfer;
 
+import dslab.util.AsyncLog;
+import dslab.util.Compression;
 import dslab.util.Config;
 import dslab.util.Mail;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.io.UncheckedIOException;
 import java.net.*;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 
 /**
- * Client application that connects to a Server via TCP to send provided user-input.
+ * Takes accepted mails off the mail queue and hands them to the {@link DeliveryScheduler}, once per destination domain.
  */
 public class TransferClientThread implements Runnable {
 
-    private final LinkedBlockingQueue<Mail> mailQueue;
-    private final Map<String, String> domains;
+    private final MailQueue mailQueue;
+    private final DomainResolver domainResolver;
+    private final RetryScheduler retryScheduler;
     private final Config config;
+    private final Compression compression;
+    private final AsyncLog.Logger log;
 
-    public TransferClientThread(LinkedBlockingQueue<Mail> mailQueue, Map<String, String> domains, Config config) {
+    public TransferClientThread(MailQueue mailQueue, DomainResolver domainResolver, RetryScheduler retryScheduler, Config config, Compression compression, AsyncLog.Logger log) {
         this.mailQueue = mailQueue;
-        this.domains = domains;
+        this.retryScheduler = retryScheduler;
+        this.domainResolver = domainResolver;
         this.config = config;
+        this.compression = compression;
+        this.log = log;
     }
 
     @Override
     public void run() {
-        Socket mailServerSocket = null;
-        DatagramSocket monitoringServerSocket = null;
-        byte[] buffer;
-        DatagramPacket packet;
-        Mail mailToSend;
-        String[] commandOrder = {"begin", "to", "from", "subject", "data", "hash", "send", "quit"};
-        String monitoringServerAddress = config.getString("monitoring.host");
-        int monitoringServerPort = config.getInt("monitoring.port");
-
-        try {
-            monitoringServerSocket = new DatagramSocket();
-        } catch (SocketException e) {
-            System.out.println("Could not create datagram socket (no monitoring)");
-        }
+        QueuedMail queuedMail;
+        int workersPerDomain = config.containsKey("delivery.workers.per.domain") ? config.getInt("delivery.workers.per.domain") : 1;
+        DMTPConnectionPool connectionPool = new DMTPConnectionPool(
+                config.containsKey("delivery.pool.max.per.host") ? config.getInt("delivery.pool.max.per.host") : workersPerDomain,
+                config.containsKey("delivery.pool.idle.timeout.ms") ? config.getInt("delivery.pool.idle.timeout.ms") : 30000,
+                config.containsKey("delivery.pool.validate.after.ms") ? config.getInt("delivery.pool.validate.after.ms") : 2000,
+                compression);
 
         // fallback/default address
         String currentAddress = "mailer@[transferserver]";
         try {
             currentAddress = "mailer@" + InetAddress.getLocalHost().getHostAddress();
         } catch (UnknownHostException e) {
-            System.out.println("Could not get current IP address in TransferClient" + e.getMessage());
+            log.warn("Could not get current IP address in TransferClient: " + e.getMessage());
         }
 
+        final String mailerAddress = currentAddress;
+        MonitoringReporter monitoringReporter = new MonitoringReporter(
+                currentAddress.split("@")[1] + ":" + config.getString("tcp.port"),
+                config.getString("monitoring.host"), config.getInt("monitoring.port"),
+                config.containsKey("monitoring.flush.interval.ms") ? config.getInt("monitoring.flush.interval.ms") : 1000,
+                config.containsKey("monitoring.datagram.bytes") ? config.getInt("monitoring.datagram.bytes") : 1400, log);
+        int batchSize = config.containsKey("delivery.batch.max.mails") ? config.getInt("delivery.batch.max.mails") : 1;
+        int batchWait = config.containsKey("delivery.batch.max.wait.ms") ? config.getInt("delivery.batch.max.wait.ms") : 0;
+        int workerIdleTimeout = config.containsKey("delivery.worker.idle.timeout.ms") ? config.getInt("delivery.worker.idle.timeout.ms") : 60000;
+        DeliveryScheduler scheduler = new DeliveryScheduler(workersPerDomain, workerIdleTimeout, deliveries ->
+                new DeliveryWorker(deliveries, mailQueue, domainResolver, connectionPool, retryScheduler, batchSize, batchWait,
+                        monitoringReporter, mailerAddress, log));
+        retryScheduler.start(scheduler::submit);
 
         try {
             while (true) {
-                mailToSend = mailQueue.take();
+                queuedMail = mailQueue.take();
+                Mail mailToSend = queuedMail.getMail();
                 List<String> domainList = new ArrayList<>();
                 // get domains
                 for (String recipient : mailToSend.getRecipients()) {
                     String domain = recipient.split("@")[1];
                     if (!domainList.contains(domain)) domainList.add(domain);
                 }
-                // send to every mailserver
+                mailQueue.expectDeliveries(queuedMail, domainList.size());
+                // hand over to the workers of every mailserver
                 for (String domain : domainList) {
-                    boolean success = true;
                     String sender = mailToSend.getSender();
 
-                    String recipientList = Arrays.toString(mailToSend.getRecipients().toArray());
-
-                    if (domains.get(domain) == null) {
-                        if (mailToSend.getSender().equals(currentAddress)) continue;
-                        Mail errorMail = new Mail(currentAddress, List.of(sender), "delivery failed", "error domain not found");
-                        mailQueue.put(errorMail);
-                        continue;
-                    }
-
-                    String address = domains.get(domain).split(":")[0];
-                    int port = Integer.parseInt(domains.get(domain).split(":")[1]);
-
-                    mailServerSocket = new Socket(address, port);
-
-                    BufferedReader serverReader = new BufferedReader(new InputStreamReader(mailServerSocket.getInputStream()));
-                    PrintWriter serverWriter = new PrintWriter(mailServerSocket.getOutputStream());
-                    //skip ok DMTP line
-                    serverReader.readLine();
-
-                    // DMTP command loop
-                    for (String command : commandOrder) {
-                        String message = command;
-                        switch (command) {
-                            case "to":
-                                message = command + " " + recipientList.substring(1, recipientList.length() - 1);
-                                break;
-                            case "from":
-                                message = command + " " + mailToSend.getSender();
-                                break;
-                            case "subject":
-                                message = command + " " + mailToSend.getSubject();
-                                break;
-                            case "data":
-                                message = command + " " + mailToSend.getData();
-                                break;
-                            case "hash":
-                                if (mailToSend.getHash() != null) {
-                                    message = command + " " + mailToSend.getHash();
-                                    break;
-                                } else {
-                                    continue;
-                                }
-                        }
-                        serverWriter.println(message);
-                        serverWriter.flush();
-                        // read server response and write it to console
-                        String mailServerResponse = serverReader.readLine();
-                        if (mailServerResponse.startsWith("error")) {
-                            success = false;
-                            if (mailToSend.getSender().equals(currentAddress)) break;
-                            serverWriter.println("quit");
-                            serverWriter.flush();
-                            Mail errorMail = new Mail(currentAddress, List.of(sender), "delivery failed", mailServerResponse);
-                            mailQueue.put(errorMail);
-                            break;
+                    // answered from the cache except for the first mail to a domain
+                    if (domainResolver.resolve(domain) == null) {
+                        if (!mailToSend.getSender().equals(currentAddress)) {
+                            Mail errorMail = new Mail(currentAddress, List.of(sender), "delivery failed", "error domain not found");
+                            try {
+                                mailQueue.put(errorMail);
+                            } catch (IOException e) {
+                                log.error("Could not queue error mail: " + e.getMessage());
+                            }
                         }
+                        mailQueue.deliveryFinished(queuedMail);
+                        continue;
                     }
 
-                    // send statistics to monitoring server
-                    if (success) {
-                        String message = currentAddress.split("@")[1] + ":" + config.getString("tcp.port") + " " + mailToSend.getSender();
-                        buffer = message.getBytes();
-
-                        packet = new DatagramPacket(buffer, buffer.length,
-                                InetAddress.getByName(monitoringServerAddress),
-                                monitoringServerPort);
-
-                        if (monitoringServerSocket != null) {
-                            monitoringServerSocket.send(packet);
-                        }
-                    }
+                    scheduler.submit(new Delivery(queuedMail, domain));
                 }
             }
-        } catch (UnknownHostException e) {
-            System.out.println("Cannot connect to host: " + e.getMessage());
-        } catch (SocketException e) {
-            // when the socket is closed, the I/O methods of the Socket will throw a SocketException
-            // almost all SocketException cases indicate that the socket was closed
-            System.out.println("SocketException while handling socket: " + e.getMessage());
-        } catch (IOException e) {
-            // you should properly handle all other exceptions
-            throw new UncheckedIOException(e);
         } catch (InterruptedException e) {
-            System.out.println("Interrupted in TransferServer-MailboxServer connection: " + e.getMessage());
+            log.debug("Interrupted in TransferServer-MailboxServer connection: " + e.getMessage());
         } finally {
-            if (mailServerSocket != null && !mailServerSocket.isClosed()) {
-                try {
-                    mailServerSocket.close();
-                } catch (IOException e) {
-                    // Ignored because we cannot handle it
-                }
-            }
-            if (monitoringServerSocket != null && !monitoringServerSocket.isClosed()) {
-                monitoringServerSocket.close();
-            }
+            retryScheduler.shutdown();
+            scheduler.shutdown();
+            connectionPool.close();
+            domainResolver.shutdown();
+            monitoringReporter.close();
         }
     }
 }
@@ -1,32 +1,45 @@
 package dslab.transfer;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import at.ac.tuwien.dsg.orvell.Shell;
 import at.ac.tuwien.dsg.orvell.StopShellException;
 import at.ac.tuwien.dsg.orvell.annotation.Command;
 import dslab.ComponentFactory;
+import dslab.util.AsyncLog;
+import dslab.util.Compression;
 import dslab.util.Config;
-import dslab.util.Mail;
+import dslab.util.ConnectionExecutor;
+import dslab.util.DMTPSelectorListenerThread;
 
 public class TransferServer implements ITransferServer, Runnable {
 
+    private static final String[] PROTOCOLS = {"dmtp"};
+
     private String componentId;
     private Config config;
     private InputStream in;
     private PrintStream out;
     private ServerSocket dmtpServerSocket;
-    private LinkedBlockingQueue<Mail> mailQueue;
+    private MailQueue mailQueue;
+    private MailSpool mailSpool;
+    private RetryScheduler retryScheduler;
     private Shell shell;
     private final Map<String, String> domains;
     ExecutorService pool;
+    private ConnectionExecutor dmtpConnections;
+    private AsyncLog log;
+    private Compression compression;
 
     /**
      * Creates a new server instance.
@@ -49,25 +62,142 @@ public class TransferServer implements ITransferServer, Runnable {
 
     @Override
     public void run() {
+        log = newLog();
+        compression = newCompression();
         try {
-            dmtpServerSocket = new ServerSocket(config.getInt("tcp.port"));
-            mailQueue = new LinkedBlockingQueue<>();
+            if (config.containsKey("spool.dir")) {
+                mailSpool = new MailSpool(Paths.get(config.getString("spool.dir")),
+                        config.containsKey("spool.segment.bytes") ? config.getInt("spool.segment.bytes") : 16 * 1024 * 1024,
+                        config.containsKey("spool.max.segments") ? config.getInt("spool.max.segments") : 8, logger("spool"));
+            }
+            mailQueue = new MailQueue(mailSpool,
+                    config.containsKey("queue.high.watermark.mails") ? config.getInt("queue.high.watermark.mails") : 10000,
+                    config.containsKey("queue.low.watermark.mails") ? config.getInt("queue.low.watermark.mails") : 8000,
+                    config.containsKey("queue.high.watermark.bytes") ? config.getInt("queue.high.watermark.bytes") : 64 * 1024 * 1024,
+                    config.containsKey("queue.low.watermark.bytes") ? config.getInt("queue.low.watermark.bytes") : 48 * 1024 * 1024,
+                    logger("spool"));
             Config domainConfig = new Config("domains");
             domainConfig.listKeys().forEach(domain -> domains.put(domain, domainConfig.getString(domain)));
 
             pool = Executors.newFixedThreadPool(2);
-            pool.execute(new Thread(new DMTPTransferListenerThread(dmtpServerSocket, mailQueue)));
-            pool.execute(new Thread(new TransferClientThread(mailQueue, domains, config)));
+            if (config.containsKey("dmtp.mode") && config.getString("dmtp.mode").equals("selector")) {
+                // non-blocking connection handling with a fixed number of event loops
+                ServerSocketChannel dmtpServerChannel = ServerSocketChannel.open();
+                dmtpServerChannel.bind(new InetSocketAddress(config.getInt("tcp.port")));
+                dmtpServerSocket = dmtpServerChannel.socket();
+                int threads = config.containsKey("dmtp.selector.threads") ? config.getInt("dmtp.selector.threads") : 2;
+                int workers = config.containsKey("dmtp.selector.workers") ? config.getInt("dmtp.selector.workers") : 4;
+                AsyncLog.Logger dmtpLog = logger("dmtp");
+                pool.execute(new Thread(new DMTPSelectorListenerThread(dmtpServerChannel, () -> new DMTPTransferSession(mailQueue, compression, dmtpLog), threads, workers, dmtpLog)));
+            } else {
+                dmtpServerSocket = new ServerSocket(config.getInt("tcp.port"));
+                dmtpConnections = newConnectionExecutor("dmtp");
+                pool.execute(new Thread(new DMTPTransferListenerThread(dmtpServerSocket, mailQueue, dmtpConnections, compression, logger("dmtp"))));
+            }
+            retryScheduler = new RetryScheduler(
+                    config.containsKey("delivery.retry.max.attempts") ? config.getInt("delivery.retry.max.attempts") : 5,
+                    config.containsKey("delivery.retry.base.delay.ms") ? config.getInt("delivery.retry.base.delay.ms") : 1000,
+                    config.containsKey("delivery.retry.max.delay.ms") ? config.getInt("delivery.retry.max.delay.ms") : 60000);
+            DomainResolver domainResolver = new DomainResolver(config.getString("registry.host"), config.getInt("registry.port"),
+                    config.getString("root_id"), domains,
+                    config.containsKey("resolver.ttl.ms") ? config.getInt("resolver.ttl.ms") : 60000,
+                    config.containsKey("resolver.negative.ttl.ms") ? config.getInt("resolver.negative.ttl.ms") : 5000,
+                    config.containsKey("resolver.lookup.timeout.ms") ? config.getInt("resolver.lookup.timeout.ms") : 2000,
+                    logger("delivery"));
+            pool.execute(new Thread(new TransferClientThread(mailQueue, domainResolver, retryScheduler, config, compression, logger("delivery"))));
         } catch (Exception e) {
             try {
                 throw e;
             } catch (IOException ex) {
-                ex.printStackTrace();
+                logger("server").error("Could not start transfer server: " + ex.getMessage());
             }
         }
         shell.run();
     }
 
+    /**
+     * CLI command to show the depth of the mail queue and how many mails were turned away because it was full.
+     */
+    @Command
+    public void queue() {
+        shell.out().println("waiting " + mailQueue.size() + ", pending " + mailQueue.pendingMails()
+                + " mails (" + mailQueue.pendingBytes() + " bytes)" + (mailQueue.isSaturated() ? ", saturated" : ""));
+        shell.out().println("accepted " + mailQueue.acceptedMails() + ", rejected " + mailQueue.rejectedMails());
+    }
+
+    /**
+     * CLI command to show the active and queued DMTP connections.
+     */
+    @Command
+    public void connections() {
+        if (dmtpConnections == null) {
+            shell.out().println("connections are handled by the selector loops");
+        } else {
+            shell.out().println(dmtpConnections.stats());
+        }
+    }
+
+    /**
+     * CLI command to list the deliveries that are waiting for their next attempt.
+     */
+    @Command
+    public void retries() {
+        List<String> lines = retryScheduler.describe();
+        if (lines.isEmpty()) {
+            shell.out().println("no pending retries");
+        }
+        lines.forEach(line -> shell.out().println(line));
+    }
+
+    /**
+     * CLI command to show how much the compressed messages shrank and the CPU time spent on compression.
+     */
+    @Command
+    public void compression() {
+        shell.out().println(compression.stats());
+    }
+
+    /**
+     * CLI command to switch the tracing of every protocol line on or off. Off restores the configured levels, or debug
+     * where trace is configured.
+     */
+    @Command
+    public void trace(String mode) {
+        if (!mode.equals("on") && !mode.equals("off")) {
+            shell.out().println("usage: trace on|off");
+            return;
+        }
+        for (String component : PROTOCOLS) {
+            AsyncLog.Level level = mode.equals("on") ? AsyncLog.Level.TRACE : configuredLevel(component);
+            if (mode.equals("off") && level == AsyncLog.Level.TRACE) {
+                level = AsyncLog.Level.DEBUG;
+            }
+            log.logger(component).setLevel(level);
+        }
+        shell.out().println(log.stats());
+    }
+
+    /**
+     * CLI command to set the level of a single logger, one of trace, debug, info, warn, error and off.
+     */
+    @Command
+    public void loglevel(String component, String level) {
+        try {
+            log.logger(component).setLevel(AsyncLog.Level.parse(level));
+            shell.out().println(log.stats());
+        } catch (IllegalArgumentException e) {
+            shell.out().println("unknown log level " + level);
+        }
+    }
+
+    /**
+     * CLI command to show the log levels and how many log entries were written and dropped.
+     */
+    @Command
+    public void logs() {
+        shell.out().println(log.stats());
+    }
+
     @Command
     @Override
     public void shutdown() {
@@ -83,9 +213,56 @@ public class TransferServer implements ITransferServer, Runnable {
             out.close();
         } catch (IOException e) {}
         pool.shutdownNow();
+        if (dmtpConnections != null) {
+            dmtpConnections.shutdown();
+        }
+        if (mailSpool != null) {
+            mailSpool.close();
+        }
+        if (log != null) {
+            log.close();
+        }
         throw new StopShellException();
     }
 
+    private ConnectionExecutor newConnectionExecutor(String name) {
+        return new ConnectionExecutor(name,
+                config.containsKey("connection.executor") ? config.getString("connection.executor") : "thread",
+                config.containsKey("connection.max") ? config.getInt("connection.max") : 200,
+                config.containsKey("connection.queue") ? config.getInt("connection.queue") : 100,
+                "error server busy", logger(name));
+    }
+
+    private Compression newCompression() {
+        return new Compression(
+                config.containsKey("compression") && config.getString("compression").equals(Compression.DEFLATE),
+                config.containsKey("compression.threshold.bytes") ? config.getInt("compression.threshold.bytes") : 256);
+    }
+
+    private AsyncLog newLog() {
+        return new AsyncLog(componentId,
+                Paths.get(config.containsKey("log.file") ? config.getString("log.file") : "logs/" + componentId + ".log"),
+                config.containsKey("log.buffer.size") ? config.getInt("log.buffer.size") : 8192,
+                config.containsKey("log.file.bytes") ? config.getInt("log.file.bytes") : 10 * 1024 * 1024,
+                config.containsKey("log.file.count") ? config.getInt("log.file.count") : 5,
+                configuredLevel(""));
+    }
+
+    /**
+     * Returns the logger of the given part of this server, with the level of {@code log.level.<component>} if set.
+     */
+    private AsyncLog.Logger logger(String component) {
+        AsyncLog.Logger logger = log.logger(component);
+        logger.setLevel(configuredLevel(component));
+        return logger;
+    }
+
+    private AsyncLog.Level configuredLevel(String component) {
+        String key = component.isEmpty() ? "log.level" : "log.level." + component;
+        if (config.containsKey(key)) return AsyncLog.Level.parse(config.getString(key));
+        return component.isEmpty() ? AsyncLog.Level.INFO : configuredLevel("");
+    }
+
     public static void main(String[] args) throws Exception {
         ITransferServer server = ComponentFactory.createTransferServer(args[0], System.in, System.out);
         server.run();
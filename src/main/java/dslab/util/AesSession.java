@@ -0,0 +1,143 @@
+package dslab.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The AES encryption of a secured DMAP connection. Every line is encrypted on its own with AES/CTR under the session
+ * key and IV and sent in Base64.
+ *
+ * The ciphers are looked up and initialized once per session. A cipher resets to its initialized state after every
+ * {@code doFinal}, so each line starts at the beginning of the key stream again without a new {@code init}. Lines are
+ * encrypted in place and the Base64 text goes through a buffer that is reused across lines. A session is not
+ * thread-safe.
+ */
+public class AesSession {
+
+    private static final String TRANSFORMATION = "AES/CTR/NoPadding";
+
+    private final SecretKey key;
+    private final IvParameterSpec iv;
+    private final Cipher encryptCipher;
+    private final Cipher decryptCipher;
+    private final Base64.Encoder encoder = Base64.getEncoder();
+    private final Base64.Decoder decoder = Base64.getDecoder();
+    private byte[] buffer = new byte[512];
+
+    /**
+     * Creates a new session.
+     *
+     * @param key the AES session key
+     * @param iv the initialization vector
+     * @throws GeneralSecurityException if the ciphers could not be initialized
+     */
+    public AesSession(SecretKey key, IvParameterSpec iv) throws GeneralSecurityException {
+        this.key = key;
+        this.iv = iv;
+        encryptCipher = Cipher.getInstance(TRANSFORMATION);
+        encryptCipher.init(Cipher.ENCRYPT_MODE, key, iv);
+        decryptCipher = Cipher.getInstance(TRANSFORMATION);
+        decryptCipher.init(Cipher.DECRYPT_MODE, key, iv);
+    }
+
+    /**
+     * Derives the session of a resumed connection. Both sides compute the new key and IV from the key of this session
+     * and the nonce the client sent with its resume request, so the new connection does not reuse the key stream.
+     *
+     * @param nonce the nonce of the resume request
+     * @return the new session
+     * @throws GeneralSecurityException if the new session could not be initialized
+     */
+    public AesSession resume(byte[] nonce) throws GeneralSecurityException {
+        return derive("dmap resume", nonce);
+    }
+
+    /**
+     * Creates the cipher of one direction of a framed connection. The frames of each direction are encrypted as one
+     * continuous AES/CTR stream under a key derived from this session, so no part of a key stream is used twice.
+     *
+     * @param direction the side that encrypts, "client" or "server"
+     * @param mode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     * @return the initialized cipher, to be used with {@code update} only
+     * @throws GeneralSecurityException if the cipher could not be initialized
+     */
+    public Cipher streamCipher(String direction, int mode) throws GeneralSecurityException {
+        AesSession derived = derive("dmap frames " + direction, new byte[0]);
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(mode, derived.key, derived.iv);
+        return cipher;
+    }
+
+    public SecretKey getKey() {
+        return key;
+    }
+
+    public IvParameterSpec getIv() {
+        return iv;
+    }
+
+    /**
+     * Encrypts a line.
+     *
+     * @param line the plain text
+     * @return the Base64 encoded cipher text
+     */
+    public String encrypt(String line) throws IllegalBlockSizeException, BadPaddingException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        // CTR does not change the length, so the bytes are encrypted in place
+        doFinal(encryptCipher, bytes, bytes.length);
+        int length = 4 * ((bytes.length + 2) / 3);
+        if (buffer.length < length) {
+            buffer = new byte[length];
+        }
+        length = encoder.encode(bytes, buffer);
+        return new String(buffer, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Decrypts a line.
+     *
+     * @param line the Base64 encoded cipher text, may be null
+     * @return the plain text, or null if the line was null
+     */
+    public String decrypt(String line) throws IllegalBlockSizeException, BadPaddingException {
+        if (line == null) return null;
+        byte[] encoded = line.getBytes(StandardCharsets.ISO_8859_1);
+        if (buffer.length < encoded.length) {
+            buffer = new byte[encoded.length];
+        }
+        int length = doFinal(decryptCipher, buffer, decoder.decode(encoded, buffer));
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private AesSession derive(String label, byte[] nonce) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+        mac.update((label + " key ").getBytes(StandardCharsets.UTF_8));
+        byte[] newKey = Arrays.copyOf(mac.doFinal(nonce), key.getEncoded().length);
+        mac.update((label + " iv ").getBytes(StandardCharsets.UTF_8));
+        mac.update(iv.getIV());
+        byte[] newIv = Arrays.copyOf(mac.doFinal(nonce), iv.getIV().length);
+        return new AesSession(new SecretKeySpec(newKey, "AES"), new IvParameterSpec(newIv));
+    }
+
+    private static int doFinal(Cipher cipher, byte[] bytes, int length) throws IllegalBlockSizeException, BadPaddingException {
+        try {
+            return cipher.doFinal(bytes, 0, length, bytes);
+        } catch (ShortBufferException e) {
+            // cannot happen, CTR output is as long as its input
+            throw new IllegalStateException(e);
+        }
+    }
+}
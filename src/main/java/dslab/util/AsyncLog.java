@@ -0,0 +1,323 @@
+package dslab.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The log of a server component. Threads that log only put an entry into a bounded ring buffer, a background thread
+ * formats the entries and writes them to a rolling log file. Logging never blocks: when the buffer is full the entry
+ * is dropped and counted.
+ *
+ * Every part of a component, e.g. "dmtp" or "dmap", logs through its own {@link Logger} with its own level, which can
+ * be changed at runtime. Protocol traces are logged at {@link Level#TRACE}.
+ *
+ * The log file is rolled over once it grows beyond the maximum size: {@code name.log} becomes {@code name.log.1},
+ * {@code name.log.1} becomes {@code name.log.2} and so on, the oldest file is deleted.
+ */
+public class AsyncLog implements AutoCloseable {
+
+    /**
+     * The severity of a log entry.
+     */
+    public enum Level {
+        TRACE, DEBUG, INFO, WARN, ERROR, OFF;
+
+        /**
+         * Returns the level with the given name, case-insensitive.
+         *
+         * @throws IllegalArgumentException if there is no such level
+         */
+        public static Level parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final DateTimeFormatter TIMESTAMP =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.").withZone(ZoneId.systemDefault());
+
+    private final Path file;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final Level defaultLevel;
+    private final Map<String, Logger> loggers = new ConcurrentHashMap<>();
+
+    // ring buffer: producers claim a sequence number, the writer consumes in sequence order
+    private final AtomicReferenceArray<Entry> ring;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long head;
+
+    private final Thread writerThread;
+    private volatile boolean closed;
+    private Writer writer;
+    private long fileBytes;
+    private volatile long written;
+    // the formatted second of the last entry, entries mostly arrive within the same second
+    private long second = -1;
+    private String secondText;
+
+    /**
+     * Creates a new log and starts its writer thread.
+     *
+     * @param name the name of the component, used for the thread name
+     * @param file the log file
+     * @param bufferSize the number of entries the ring buffer holds, rounded up to a power of two
+     * @param maxFileBytes the size after which the log file is rolled over
+     * @param maxFiles the number of rolled over files that are kept
+     * @param defaultLevel the level of loggers without their own level
+     */
+    public AsyncLog(String name, Path file, int bufferSize, long maxFileBytes, int maxFiles, Level defaultLevel) {
+        this.file = file;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        this.defaultLevel = defaultLevel;
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize) - 1) << 1;
+        this.ring = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.writerThread = new Thread(this::drain, name + "-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Returns the logger of the given part of the component, with the default level if it is new.
+     */
+    public Logger logger(String component) {
+        return loggers.computeIfAbsent(component, name -> new Logger(name, defaultLevel));
+    }
+
+    /**
+     * Returns the current level of every logger and how many entries were written and dropped.
+     */
+    public String stats() {
+        StringBuilder stats = new StringBuilder();
+        loggers.values().stream().sorted((a, b) -> a.name.compareTo(b.name))
+                .forEach(logger -> stats.append(logger.name).append(' ').append(logger.level).append(", "));
+        return stats.append("written ").append(written).append(", dropped ").append(dropped.get())
+                .append(", file ").append(file).toString();
+    }
+
+    /**
+     * Writes the remaining entries and stops the writer thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void append(Entry entry) {
+        if (closed) return;
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head > mask) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+        ring.set((int) sequence & mask, entry);
+        if (sequence - head == (mask >> 1)) {
+            // wake the writer early once the buffer is half full instead of waiting for its next round
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    private void drain() {
+        StringBuilder line = new StringBuilder(256);
+        while (true) {
+            boolean done = closed;
+            long sequence = head;
+            int count = 0;
+            while (sequence < tail.get()) {
+                int slot = (int) sequence & mask;
+                Entry entry = ring.get(slot);
+                if (entry == null) {
+                    // the producer claimed the slot but has not stored its entry yet
+                    Thread.onSpinWait();
+                    continue;
+                }
+                ring.set(slot, null);
+                head = ++sequence;
+                line.setLength(0);
+                format(entry, line);
+                write(line);
+                count++;
+            }
+            if (done) break;
+            if (count == 0) {
+                // flushed only once the buffer runs empty, so bursts are written in large chunks
+                flush();
+                LockSupport.parkNanos(1_000_000);
+            }
+        }
+        flush();
+        closeWriter();
+    }
+
+    private void format(Entry entry, StringBuilder line) {
+        if (entry.time / 1000 != second) {
+            second = entry.time / 1000;
+            secondText = TIMESTAMP.format(Instant.ofEpochMilli(entry.time));
+        }
+        int millis = (int) (entry.time % 1000);
+        line.append(secondText).append((char) ('0' + millis / 100)).append((char) ('0' + millis / 10 % 10))
+                .append((char) ('0' + millis % 10)).append(' ').append(entry.level).append(' ').append(entry.component)
+                .append(" [").append(entry.thread).append("] ").append(entry.message);
+    }
+
+    private void write(StringBuilder line) {
+        try {
+            if (writer == null || fileBytes >= maxFileBytes) {
+                roll();
+            }
+            line.append(System.lineSeparator());
+            writer.append(line);
+            fileBytes += line.length();
+            written++;
+        } catch (IOException e) {
+            System.out.println("Could not write log file " + file + ": " + e.getMessage());
+            dropped.incrementAndGet();
+            closeWriter();
+        }
+    }
+
+    private void flush() {
+        try {
+            if (writer != null) writer.flush();
+        } catch (IOException e) {
+            System.out.println("Could not write log file " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void roll() throws IOException {
+        if (writer != null && fileBytes >= maxFileBytes) {
+            closeWriter();
+            Files.deleteIfExists(rolled(maxFiles));
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                if (Files.exists(rolled(i))) {
+                    Files.move(rolled(i), rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            if (maxFiles > 0) {
+                Files.move(file, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.deleteIfExists(file);
+            }
+        }
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        writer = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), 64 * 1024);
+        fileBytes = Files.size(file);
+    }
+
+    private Path rolled(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private void closeWriter() {
+        if (writer == null) return;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            // nothing left to do with a broken log file
+        }
+        writer = null;
+    }
+
+    /**
+     * Logs the entries of one part of a component at or above its level. The level check is a single volatile
+     * read, so callers building expensive messages should check {@link #isEnabled(Level)} first.
+     */
+    public class Logger {
+
+        private final String name;
+        private volatile Level level;
+
+        Logger(String name, Level level) {
+            this.name = name;
+            this.level = level;
+        }
+
+        public Level getLevel() {
+            return level;
+        }
+
+        public void setLevel(Level level) {
+            this.level = level;
+        }
+
+        public boolean isEnabled(Level level) {
+            return level.compareTo(this.level) >= 0 && level != Level.OFF;
+        }
+
+        public boolean isTraceEnabled() {
+            return isEnabled(Level.TRACE);
+        }
+
+        public void trace(String message) {
+            log(Level.TRACE, message);
+        }
+
+        public void debug(String message) {
+            log(Level.DEBUG, message);
+        }
+
+        public void info(String message) {
+            log(Level.INFO, message);
+        }
+
+        public void warn(String message) {
+            log(Level.WARN, message);
+        }
+
+        public void error(String message) {
+            log(Level.ERROR, message);
+        }
+
+        public void log(Level level, String message) {
+            if (isEnabled(level)) {
+                append(new Entry(System.currentTimeMillis(), level, name, Thread.currentThread().getName(), message));
+            }
+        }
+    }
+
+    private static class Entry {
+        private final long time;
+        private final Level level;
+        private final String component;
+        private final String thread;
+        private final String message;
+
+        Entry(long time, Level level, String component, String thread, String message) {
+            this.time = time;
+            this.level = level;
+            this.component = component;
+            this.thread = thread;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package dslab.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The compression settings of a component and the statistics of all of its connections. Every connection that
+ * negotiated compression gets its own {@link DeflateCodec} from {@link #newCodec()}, so each connection keeps its own
+ * DEFLATE context and later messages can refer back to earlier ones.
+ *
+ * Messages shorter than the threshold are sent as they are, compressing them costs more than it saves.
+ */
+public class Compression {
+
+    /**
+     * The capability and command name of the compression extension.
+     */
+    public static final String DEFLATE = "deflate";
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final boolean enabled;
+    private final int threshold;
+
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong compressedIn = new AtomicLong();
+    private final AtomicLong compressedOut = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong skippedBytes = new AtomicLong();
+    private final AtomicLong inflated = new AtomicLong();
+    private final AtomicLong inflatedIn = new AtomicLong();
+    private final AtomicLong inflatedOut = new AtomicLong();
+    private final AtomicLong inflateNanos = new AtomicLong();
+
+    /**
+     * Creates new settings.
+     *
+     * @param enabled whether this component offers and uses compression
+     * @param threshold the size in bytes from which on messages are compressed
+     */
+    public Compression(boolean enabled, int threshold) {
+        this.enabled = enabled;
+        this.threshold = threshold;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Creates the compression context of a new connection.
+     */
+    public DeflateCodec newCodec() {
+        return new DeflateCodec(this);
+    }
+
+    /**
+     * Returns the compression ratio and CPU time spent compressing and inflating.
+     */
+    public String stats() {
+        return String.format("%s, threshold %d bytes: compressed %d (%d -> %d bytes, %.1f%%, %.2f ms cpu), "
+                        + "skipped %d (%d bytes), inflated %d (%d -> %d bytes, %.2f ms cpu)",
+                enabled ? "on" : "off", threshold,
+                compressed.get(), compressedIn.get(), compressedOut.get(),
+                compressedIn.get() == 0 ? 100.0 : 100.0 * compressedOut.get() / compressedIn.get(),
+                compressNanos.get() / 1e6, skipped.get(), skippedBytes.get(),
+                inflated.get(), inflatedIn.get(), inflatedOut.get(), inflateNanos.get() / 1e6);
+    }
+
+    boolean shouldCompress(int length) {
+        if (length >= threshold) return true;
+        skipped.incrementAndGet();
+        skippedBytes.addAndGet(length);
+        return false;
+    }
+
+    void recordCompress(int in, int out, long nanos) {
+        compressed.incrementAndGet();
+        compressedIn.addAndGet(in);
+        compressedOut.addAndGet(out);
+        compressNanos.addAndGet(nanos);
+    }
+
+    void recordInflate(int in, int out, long nanos) {
+        inflated.incrementAndGet();
+        inflatedIn.addAndGet(in);
+        inflatedOut.addAndGet(out);
+        inflateNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Returns the CPU time of the current thread, or the wall clock time if the JVM does not measure it.
+     */
+    static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+}
@@ -0,0 +1,147 @@
+package dslab.util;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the accepted connections of a listener. The mode decides how:
+ * <ul>
+ *     <li>"thread": a new thread per connection, without limits</li>
+ *     <li>"pool": a bounded thread pool, further connections wait in a bounded queue</li>
+ *     <li>"limit": a new thread per connection, up to a maximum number of concurrent connections</li>
+ *     <li>"virtual": a virtual thread per connection, falls back to "thread" if the JDK has no virtual threads</li>
+ * </ul>
+ * Connections that exceed the limits get the reject message and are closed right away.
+ */
+public class ConnectionExecutor {
+
+    private final String name;
+    private final String mode;
+    private final String rejectMessage;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final AsyncLog.Logger log;
+
+    private final AtomicInteger threadCounter = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Creates a new executor.
+     *
+     * @param name the name of the listener, used for the thread names
+     * @param mode one of "thread", "pool", "limit" and "virtual", unknown modes are treated as "thread"
+     * @param maxConnections the maximum number of concurrently handled connections in "pool" and "limit" mode
+     * @param queueSize the number of connections waiting for a pool thread in "pool" mode
+     * @param rejectMessage the line sent to connections that exceed the limits
+     * @param log the logger of the listener
+     */
+    public ConnectionExecutor(String name, String mode, int maxConnections, int queueSize, String rejectMessage,
+                              AsyncLog.Logger log) {
+        this.name = name;
+        this.log = log;
+        this.rejectMessage = rejectMessage;
+        if (mode.equals("pool")) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConnections, maxConnections, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, queueSize)), this::newThread);
+            pool.allowCoreThreadTimeOut(true);
+            this.executor = pool;
+        } else if (mode.equals("virtual")) {
+            this.executor = newVirtualThreadExecutor();
+            if (executor == null) {
+                log.warn("Virtual threads are not available, using a thread per " + name + " connection");
+            }
+        } else {
+            this.executor = null;
+        }
+        this.permits = mode.equals("limit") ? new Semaphore(maxConnections) : null;
+        this.mode = executor == null && permits == null ? "thread" : mode;
+    }
+
+    /**
+     * Runs the given connection, or rejects it if the limits are exceeded.
+     *
+     * @param socket the socket of the connection, closed on reject
+     * @param connection handles the connection
+     */
+    public void execute(Socket socket, Runnable connection) {
+        if (permits != null && !permits.tryAcquire()) {
+            reject(socket);
+            return;
+        }
+        Runnable task = () -> {
+            active.incrementAndGet();
+            try {
+                connection.run();
+            } finally {
+                active.decrementAndGet();
+                completed.incrementAndGet();
+                if (permits != null) permits.release();
+            }
+        };
+        if (executor == null) {
+            newThread(task).start();
+            return;
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            reject(socket);
+        }
+    }
+
+    /**
+     * Returns a short summary of the handled connections.
+     */
+    public String stats() {
+        int queued = executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getQueue().size() : 0;
+        return String.format("%s: mode %s, active %d, queued %d, completed %d, rejected %d",
+                name, mode, active.get(), queued, completed.get(), rejected.get());
+    }
+
+    /**
+     * Stops the pool threads. Connections that are still open keep running until they end.
+     */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    private Thread newThread(Runnable runnable) {
+        return new Thread(runnable, name + "-connection-" + threadCounter.incrementAndGet());
+    }
+
+    private void reject(Socket socket) {
+        rejected.incrementAndGet();
+        try {
+            PrintWriter writer = new PrintWriter(socket.getOutputStream());
+            writer.println(rejectMessage);
+            writer.flush();
+            socket.close();
+        } catch (IOException e) {
+            log.warn("Could not reject " + name + " connection: " + e.getMessage());
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        // looked up at runtime, the sources are built for Java 11
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package dslab.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+
+/**
+ * The binary framing of a secured DMAP connection, negotiated with the "binary" command. Every request and every
+ * complete response is sent as one frame: {@code int length | encrypted payload}. The payload is the UTF-8 text of
+ * the request or response, responses with several lines separate them with '\n'.
+ *
+ * Once compression is negotiated with the "deflate" command, payloads above the threshold are compressed before they
+ * are encrypted. The highest bit of the length marks a compressed frame.
+ *
+ * The frames of each direction are encrypted as one continuous AES/CTR stream, see
+ * {@link AesSession#streamCipher(String, int)}. The streams must not be used for anything else once the framing is
+ * switched on. A channel is not thread-safe.
+ */
+public class DMAPFrameChannel {
+
+    /**
+     * The command that switches a secured connection to binary frames.
+     */
+    public static final String COMMAND = "binary";
+
+    /**
+     * The largest accepted frame, longer frames end the connection.
+     */
+    public static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+    private static final int COMPRESSED = 0x80000000;
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Cipher encryptCipher;
+    private final Cipher decryptCipher;
+    private DeflateCodec codec;
+    private byte[] buffer = new byte[4096];
+
+    /**
+     * Creates a new channel.
+     *
+     * @param in the stream of the connection to read frames from
+     * @param out the stream of the connection to write frames to
+     * @param session the secured session of the connection
+     * @param server whether this is the server side of the connection
+     * @throws GeneralSecurityException if the ciphers could not be initialized
+     */
+    public DMAPFrameChannel(InputStream in, OutputStream out, AesSession session, boolean server) throws GeneralSecurityException {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.encryptCipher = session.streamCipher(server ? "server" : "client", Cipher.ENCRYPT_MODE);
+        this.decryptCipher = session.streamCipher(server ? "client" : "server", Cipher.DECRYPT_MODE);
+    }
+
+    /**
+     * Compresses the frames from now on, both sides switch after the answer to the "deflate" command.
+     *
+     * @param codec the compression context of the connection
+     */
+    public void enableCompression(DeflateCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Releases the compression context.
+     */
+    public void close() {
+        if (codec != null) codec.close();
+    }
+
+    /**
+     * Compresses if enabled, encrypts and sends a frame.
+     *
+     * @param payload the request or response
+     */
+    public void write(String payload) throws IOException {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        boolean compressed = codec != null && codec.shouldCompress(bytes.length);
+        if (compressed) {
+            bytes = codec.compress(bytes);
+        }
+        update(encryptCipher, bytes, bytes.length);
+        out.writeInt(compressed ? bytes.length | COMPRESSED : bytes.length);
+        out.write(bytes);
+        out.flush();
+    }
+
+    /**
+     * Reads and decrypts the next frame.
+     *
+     * @return the request or response, or null at the end of the stream
+     * @throws IOException if the stream ends inside a frame, the frame is too long or cannot be inflated
+     */
+    public String read() throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        boolean compressed = (length & COMPRESSED) != 0;
+        length &= ~COMPRESSED;
+        if (compressed && codec == null) {
+            throw new IOException("compressed frame without compression");
+        }
+        if (length > MAX_FRAME_BYTES) {
+            throw new IOException("invalid frame length " + length);
+        }
+        if (buffer.length < length) {
+            buffer = new byte[Math.max(length, 2 * buffer.length)];
+        }
+        in.readFully(buffer, 0, length);
+        update(decryptCipher, buffer, length);
+        if (compressed) {
+            byte[] payload = codec.inflate(Arrays.copyOf(buffer, length), MAX_FRAME_BYTES);
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static void update(Cipher cipher, byte[] bytes, int length) {
+        try {
+            // CTR keeps its position in the key stream across updates, frames are encrypted in place
+            cipher.update(bytes, 0, length, bytes);
+        } catch (ShortBufferException e) {
+            // cannot happen, CTR output is as long as its input
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -11,15 +11,16 @@ import java.net.SocketException;
 /**
  * Thread to listen for incoming connections on the given socket.
  */
-public abstract class DMTPConnectionThread extends Thread {
+public class DMTPConnectionThread implements Runnable {
 
     protected final Socket socket;
-    private boolean quit = false;
-    private boolean editMode = false;
-    protected Mail mail = new Mail();
+    private final DMTPSession session;
+    private final AsyncLog.Logger log;
 
-    public DMTPConnectionThread(Socket socket) {
+    public DMTPConnectionThread(Socket socket, DMTPSession session, AsyncLog.Logger log) {
         this.socket = socket;
+        this.session = session;
+        this.log = log;
     }
 
     public void run() {
@@ -29,78 +30,40 @@ public abstract class DMTPConnectionThread extends Thread {
 
             String request;
 
-            writer.println("ok DMTP2.0");
+            writer.println(DMTPSession.GREETING);
             writer.flush();
 
             // read client requests
             while ((request = reader.readLine()) != null) {
-                System.out.println("C: " + request);
+                String response = session.handle(request);
 
-                String[] parts = request.split("\\s", 2);
-
-                String response = "error missing parameters";
-
-                if (request.startsWith("begin")) {
-                    response = "ok";
-                    editMode = true;
-                    mail = new Mail();
-                } else if (!request.startsWith("to") && !request.startsWith("from") && !request.startsWith("subject") && !request.startsWith("data") && !request.startsWith("hash") && !request.startsWith("send")) {
-                    response = "error protocol error";
-                    quit = true;
+                // trace request and response
+                if (log.isTraceEnabled()) {
+                    log.trace("C: " + request);
+                    log.trace("S: " + response);
                 }
-
-                if (!editMode) {
-                    response = "error must begin email first";
-                } else if (request.startsWith("send")) {
-                    response = send();
-                    if (response.equals("ok")) editMode = false;
-                } else if (request.startsWith("to") && parts.length >= 2) {
-                    response = to(parts[1]);
-                } else if (request.startsWith("from") && parts.length >= 2) {
-                    mail.setSender(parts[1]);
-                    response = "ok";
-                } else if (request.startsWith("subject") && parts.length >= 2) {
-                    mail.setSubject(parts[1]);
-                    response = "ok";
-                } else if (request.startsWith("data") && parts.length >= 2) {
-                    mail.setData(parts[1]);
-                    response = "ok";
-                } else if (request.startsWith("hash") && parts.length >= 2) {
-                    mail.setHash(parts[1]);
-                    response = "ok";
-                }
-
-                if (request.startsWith("quit")) {
-                    response = "ok bye";
-                    quit = true;
-                }
-
-                // print response
-                System.out.println("S: " + response);
                 writer.println(response);
-                writer.flush();
-                if (quit) break;
+                // answer pipelined commands with as few writes as possible
+                if (session.isQuit() || !reader.ready()) writer.flush();
+                if (session.isQuit()) break;
             }
 
             reader.close();
             writer.close();
 
         } catch (SocketException e) {
-            System.out.println("SocketException while handling socket: " + e.getMessage());
+            log.warn("SocketException while handling socket: " + e.getMessage());
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         } finally {
+            session.close();
             if (socket != null && !socket.isClosed()) {
                 try {
                     socket.close();
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    log.warn("Could not close socket: " + e.getMessage());
                 }
             }
         }
     }
-
-    protected abstract String to(String recipients);
-
-    protected abstract String send();
 }
@@ -0,0 +1,181 @@
+package dslab.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Client side of the DMTP pipelining extension. A server that answers the {@code capabilities} command with
+ * {@code ok pipelining} accepts a whole begin...send block in one write and answers every command in order, so a mail
+ * costs one round trip instead of one per command.
+ *
+ * A server that also announces {@code deflate} accepts {@code zdata <Base64>} instead of {@code data <text>}, with the
+ * text compressed by the {@link DeflateCodec} of the connection.
+ */
+public final class DMTPPipeline {
+
+    public static final String CAPABILITIES = "capabilities";
+    public static final String PIPELINING = "pipelining";
+    public static final String ZDATA = "zdata";
+
+    private static final int MAX_DATA_BYTES = 64 * 1024 * 1024;
+
+    private DMTPPipeline() {
+        // util class
+    }
+
+    /**
+     * Returns the begin...send commands that transmit the given mail.
+     *
+     * @param mail the mail to send
+     * @return the DMTP commands in protocol order
+     */
+    public static List<String> commands(Mail mail) {
+        List<String> commands = new ArrayList<>();
+        commands.add("begin");
+        commands.add("to " + String.join(", ", mail.getRecipients()));
+        commands.add("from " + mail.getSender());
+        commands.add("subject " + mail.getSubject());
+        commands.add("data " + mail.getData());
+        if (mail.getHash() != null) {
+            commands.add("hash " + mail.getHash());
+        }
+        commands.add("send");
+        return commands;
+    }
+
+    /**
+     * Checks whether the response to the {@code capabilities} command announces pipelining.
+     *
+     * @param response the response line, may be null
+     * @return true if the commands may be pipelined
+     */
+    public static boolean supportsPipelining(String response) {
+        return response != null && response.startsWith("ok") && response.contains(PIPELINING);
+    }
+
+    /**
+     * Checks whether the response to the {@code capabilities} command announces compression.
+     *
+     * @param response the response line, may be null
+     * @return true if the data of the mails may be compressed
+     */
+    public static boolean supportsDeflate(String response) {
+        return response != null && response.startsWith("ok") && response.contains(Compression.DEFLATE);
+    }
+
+    /**
+     * Sends the given commands and returns the first error response. With pipelining all commands are written at
+     * once and all responses are read afterwards, so the stream stays in sync even if one of the commands failed.
+     * Without pipelining every command waits for its response and the block is aborted on the first error.
+     *
+     * @param reader the reader of the connection
+     * @param writer the writer of the connection
+     * @param commands the commands to send
+     * @param pipelining whether the server supports pipelining
+     * @param codec compresses the data of the mails, or null if the server does not support compression
+     * @return the first response that is an error, or null if all commands succeeded
+     * @throws IOException if the connection was closed before all responses were read
+     */
+    public static String execute(BufferedReader reader, PrintWriter writer, List<String> commands, boolean pipelining,
+                                 DeflateCodec codec) throws IOException {
+        String error = null;
+        if (pipelining) {
+            for (String command : commands) {
+                writer.println(encode(command, codec));
+            }
+            writer.flush();
+            for (int i = 0; i < commands.size(); i++) {
+                String response = readResponse(reader);
+                if (error == null && response.startsWith("error")) error = response;
+            }
+        } else {
+            for (String command : commands) {
+                writer.println(encode(command, codec));
+                writer.flush();
+                String response = readResponse(reader);
+                if (response.startsWith("error")) return response;
+            }
+        }
+        return error;
+    }
+
+    /**
+     * Sends several begin...send blocks over the same session. With pipelining the commands of all blocks are written
+     * at once, so the whole batch costs a single round trip.
+     *
+     * @param reader the reader of the connection
+     * @param writer the writer of the connection
+     * @param blocks the command blocks to send, one per mail
+     * @param pipelining whether the server supports pipelining
+     * @param codec compresses the data of the mails, or null if the server does not support compression
+     * @param results receives the result of every completed block in order, the first error response of the block or
+     *                null if all of its commands succeeded
+     * @throws IOException if the connection was closed before all responses were read, results then only contains
+     *                     the blocks that were answered completely
+     */
+    public static void execute(BufferedReader reader, PrintWriter writer, List<List<String>> blocks, boolean pipelining,
+                               DeflateCodec codec, List<String> results) throws IOException {
+        if (pipelining) {
+            for (List<String> block : blocks) {
+                for (String command : block) {
+                    writer.println(encode(command, codec));
+                }
+            }
+            writer.flush();
+            for (List<String> block : blocks) {
+                String error = null;
+                for (int i = 0; i < block.size(); i++) {
+                    String response = readResponse(reader);
+                    if (error == null && response.startsWith("error")) error = response;
+                }
+                results.add(error);
+            }
+        } else {
+            for (List<String> block : blocks) {
+                // an aborted block leaves the server in the middle of a mail, the next begin starts over
+                results.add(execute(reader, writer, block, false, codec));
+            }
+        }
+    }
+
+    /**
+     * Replaces a long enough data command with its compressed form. Commands are only compressed right before they are
+     * written, so the server inflates exactly the compressed commands it receives.
+     */
+    private static String encode(String command, DeflateCodec codec) {
+        if (codec == null || !command.startsWith("data ")) return command;
+        byte[] data = command.substring("data ".length()).getBytes(StandardCharsets.UTF_8);
+        if (!codec.shouldCompress(data.length)) return command;
+        return ZDATA + " " + Base64.getEncoder().encodeToString(codec.compress(data));
+    }
+
+    /**
+     * Inflates the data of a {@code zdata} command.
+     *
+     * @param command the command
+     * @param codec the compression context of the connection
+     * @return the equivalent {@code data} command
+     * @throws IOException if the data is corrupt
+     */
+    public static String decode(String command, DeflateCodec codec) throws IOException {
+        try {
+            byte[] data = Base64.getDecoder().decode(command.substring(ZDATA.length()).trim());
+            return "data " + new String(codec.inflate(data, MAX_DATA_BYTES), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("invalid Base64 data", e);
+        }
+    }
+
+    private static String readResponse(BufferedReader reader) throws IOException {
+        String response = reader.readLine();
+        if (response == null) {
+            throw new IOException("connection closed by server");
+        }
+        return response;
+    }
+}
@@ -0,0 +1,59 @@
+package dslab.util;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Accepts DMTP connections on a server channel and distributes them round-robin over a fixed number of
+ * {@link DMTPSelectorLoop}s, instead of starting a new thread per connection. The loops share a pool of worker threads
+ * for the requests that may block.
+ */
+public class DMTPSelectorListenerThread implements Runnable {
+
+    private final ServerSocketChannel serverChannel;
+    private final DMTPSelectorLoop[] loops;
+    private final ThreadPoolExecutor workers;
+    private final AtomicInteger workerCounter = new AtomicInteger();
+    private final AsyncLog.Logger log;
+
+    public DMTPSelectorListenerThread(ServerSocketChannel serverChannel, Supplier<DMTPSession> sessionFactory, int threads, int workerThreads, AsyncLog.Logger log) throws IOException {
+        this.serverChannel = serverChannel;
+        this.log = log;
+        // a connection hands at most one request at a time to the workers, so the queue is bounded by the connections
+        this.workers = new ThreadPoolExecutor(Math.max(1, workerThreads), Math.max(1, workerThreads), 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> new Thread(runnable, "dmtp-worker-" + workerCounter.incrementAndGet()));
+        workers.allowCoreThreadTimeOut(true);
+        this.loops = new DMTPSelectorLoop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new DMTPSelectorLoop(sessionFactory, workers, log);
+        }
+    }
+
+    public void run() {
+        for (int i = 0; i < loops.length; i++) {
+            new Thread(loops[i], "dmtp-selector-" + i).start();
+        }
+        try {
+            int next = 0;
+            while (true) {
+                // wait for Client to connect
+                SocketChannel channel = serverChannel.accept();
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        } catch (IOException e) {
+            log.warn("IOException while running DMTP listener: " + e.getMessage());
+        } finally {
+            for (DMTPSelectorLoop loop : loops) {
+                loop.close();
+            }
+            workers.shutdown();
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package dslab.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Event loop that serves any number of non-blocking DMTP connections from a single thread. Every connection gets its
+ * own {@link DMTPSession}; request lines are decoded from the channel as they arrive and the responses are written
+ * back in order without ever blocking the loop.
+ *
+ * Requests that may block, see {@link DMTPSession#isBlocking(String)}, are handled on a worker thread. Their response is
+ * handed back to the loop, which then goes on with the requests the client sent after it. While a worker handles a
+ * request of a connection, the loop does not read from that connection.
+ */
+public class DMTPSelectorLoop implements Runnable {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Selector selector;
+    private final Supplier<DMTPSession> sessionFactory;
+    private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> completions = new ConcurrentLinkedQueue<>();
+    private final Executor workers;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final AsyncLog.Logger log;
+    private volatile boolean running = true;
+
+    /**
+     * Creates a new loop.
+     *
+     * @param sessionFactory creates the session of every new connection
+     * @param workers runs the requests that may block
+     * @param log the log of the DMTP listener
+     * @throws IOException if the selector could not be opened
+     */
+    public DMTPSelectorLoop(Supplier<DMTPSession> sessionFactory, Executor workers, AsyncLog.Logger log) throws IOException {
+        this.selector = Selector.open();
+        this.sessionFactory = sessionFactory;
+        this.workers = workers;
+        this.log = log;
+    }
+
+    /**
+     * Hands an accepted connection over to this loop. May be called from any thread.
+     *
+     * @param channel the accepted client channel
+     */
+    public void register(SocketChannel channel) {
+        pending.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Stops the loop and closes all of its connections.
+     */
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running && !Thread.currentThread().isInterrupted()) {
+                selector.select();
+                registerPending();
+                Runnable completion;
+                while ((completion = completions.poll()) != null) {
+                    completion.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    } catch (IOException e) {
+                        log.warn("IOException while handling socket: " + e.getMessage());
+                        connection.close();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            log.error("Error in DMTP selector loop: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).close();
+            }
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                closeQuietly(channel);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Ignored because we cannot handle it
+            }
+        }
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = pending.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                Connection connection = new Connection(channel, key, sessionFactory.get());
+                key.attach(connection);
+                connection.respond(DMTPSession.GREETING);
+                connection.write();
+            } catch (IOException e) {
+                log.warn("Could not register DMTP connection: " + e.getMessage());
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignored because we cannot handle it
+        }
+    }
+
+    /**
+     * Per-connection state: the protocol session, the partially received request line, the received requests that
+     * were not handled yet and the responses that could not be written yet.
+     */
+    private class Connection {
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final DMTPSession session;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+        private final ArrayDeque<String> requests = new ArrayDeque<>();
+        // a worker is handling a request, the session belongs to the worker until its response is back
+        private boolean busy;
+        private boolean closed;
+
+        Connection(SocketChannel channel, SelectionKey key, DMTPSession session) {
+            this.channel = channel;
+            this.key = key;
+            this.session = session;
+        }
+
+        void read() throws IOException {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    requests.add(line.toString(StandardCharsets.UTF_8));
+                    line.reset();
+                } else if (b != '\r') {
+                    line.write(b);
+                }
+            }
+            process();
+            write();
+        }
+
+        void write() throws IOException {
+            while (!output.isEmpty()) {
+                ByteBuffer buffer = output.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                output.poll();
+            }
+            if (busy) {
+                // reading resumes once the worker is done
+                key.interestOps(0);
+            } else if (session.isQuit()) {
+                close();
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        void respond(String response) {
+            output.add(ByteBuffer.wrap((response + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+
+        void close() {
+            closed = true;
+            key.cancel();
+            closeQuietly(channel);
+            if (!busy) {
+                session.close();
+            }
+        }
+
+        /**
+         * Handles the received requests in order, until the session quits or a request is handed to a worker.
+         */
+        private void process() {
+            while (!busy && !closed && !session.isQuit() && !requests.isEmpty()) {
+                String request = requests.poll();
+                if (!session.isBlocking(request)) {
+                    reply(request, session.handle(request));
+                    continue;
+                }
+                busy = true;
+                try {
+                    workers.execute(() -> {
+                        String response;
+                        try {
+                            response = session.handle(request);
+                        } catch (RuntimeException e) {
+                            log.error("Error while handling DMTP request: " + e.getMessage());
+                            response = "error could not handle request";
+                        }
+                        String result = response;
+                        completions.add(() -> complete(request, result));
+                        selector.wakeup();
+                    });
+                } catch (RejectedExecutionException e) {
+                    busy = false;
+                    close();
+                }
+            }
+        }
+
+        /**
+         * Runs on the loop once a worker handled a request.
+         */
+        private void complete(String request, String response) {
+            busy = false;
+            if (closed) {
+                session.close();
+                return;
+            }
+            reply(request, response);
+            process();
+            try {
+                write();
+            } catch (IOException e) {
+                log.warn("IOException while handling socket: " + e.getMessage());
+                close();
+            }
+        }
+
+        private void reply(String request, String response) {
+            if (log.isTraceEnabled()) {
+                log.trace("C: " + request);
+                log.trace("S: " + response);
+            }
+            respond(response);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package dslab.util;
+
+import java.io.IOException;
+
+/**
+ * State of a single DMTP conversation (begin, to, from, subject, data, hash, send, quit), independent of how the
+ * request lines are read from and the responses are written to the client.
+ */
+public abstract class DMTPSession {
+
+    public static final String GREETING = "ok DMTP2.0";
+    public static final String CAPABILITIES = "ok " + DMTPPipeline.PIPELINING;
+
+    private final Compression compression;
+    private DeflateCodec codec;
+    private boolean quit = false;
+    private boolean editMode = false;
+    protected Mail mail = new Mail();
+
+    /**
+     * @param compression the compression settings of the server, compressed data is only accepted if enabled
+     */
+    protected DMTPSession(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Handles one request line and returns the response line for it.
+     *
+     * @param request the request line sent by the client
+     * @return the response to send back
+     */
+    public String handle(String request) {
+        if (request.equals(DMTPPipeline.CAPABILITIES)) {
+            return compression.isEnabled() ? CAPABILITIES + " " + Compression.DEFLATE : CAPABILITIES;
+        }
+        if (request.startsWith(DMTPPipeline.ZDATA + " ") && compression.isEnabled()) {
+            // inflated in any state, the compression context has to see every compressed line
+            if (codec == null) codec = compression.newCodec();
+            try {
+                request = DMTPPipeline.decode(request, codec);
+            } catch (IOException e) {
+                quit = true;
+                return "error " + e.getMessage();
+            }
+            if (request.indexOf('\n') >= 0 || request.indexOf('\r') >= 0) {
+                return "error data must be a single line";
+            }
+        }
+
+        String[] parts = request.split("\\s", 2);
+
+        String response = "error missing parameters";
+
+        if (request.startsWith("begin")) {
+            response = "ok";
+            editMode = true;
+            mail = new Mail();
+        } else if (!request.startsWith("to") && !request.startsWith("from") && !request.startsWith("subject") && !request.startsWith("data") && !request.startsWith("hash") && !request.startsWith("send")) {
+            response = "error protocol error";
+            quit = true;
+        }
+
+        if (!editMode) {
+            response = "error must begin email first";
+        } else if (request.startsWith("send")) {
+            response = send();
+            if (response.equals("ok")) editMode = false;
+        } else if (request.startsWith("to") && parts.length >= 2) {
+            response = to(parts[1]);
+        } else if (request.startsWith("from") && parts.length >= 2) {
+            mail.setSender(parts[1]);
+            response = "ok";
+        } else if (request.startsWith("subject") && parts.length >= 2) {
+            mail.setSubject(parts[1]);
+            response = "ok";
+        } else if (request.startsWith("data") && parts.length >= 2) {
+            mail.setData(parts[1]);
+            response = "ok";
+        } else if (request.startsWith("hash") && parts.length >= 2) {
+            mail.setHash(parts[1]);
+            response = "ok";
+        }
+
+        if (request.startsWith("quit")) {
+            response = "ok bye";
+            quit = true;
+        }
+
+        return response;
+    }
+
+    /**
+     * Returns whether handling the given request may block, e.g. because {@code send} waits until the mail is stored.
+     * Event loops handle such requests on a worker thread.
+     *
+     * @param request the request line sent by the client
+     * @return true if the request must not be handled on an event loop
+     */
+    public boolean isBlocking(String request) {
+        return request.startsWith("send");
+    }
+
+    /**
+     * Returns whether the connection has to be closed after the last response was sent.
+     */
+    public boolean isQuit() {
+        return quit;
+    }
+
+    /**
+     * Releases the compression context, called once the connection is closed.
+     */
+    public void close() {
+        if (codec != null) codec.close();
+    }
+
+    protected abstract String to(String recipients);
+
+    protected abstract String send();
+}
@@ -0,0 +1,99 @@
+package dslab.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The DEFLATE context of one connection. Each direction is a single DEFLATE stream that is flushed after every
+ * message, so the receiver can inflate every message as soon as it arrives and both sides keep the history of the
+ * earlier messages as dictionary.
+ *
+ * Both sides have to see exactly the same compressed messages in the same order. A message that was compressed has to
+ * be sent, and a received compressed message has to be inflated even if it is rejected afterwards. A codec is not
+ * thread-safe.
+ */
+public class DeflateCodec {
+
+    private final Compression compression;
+    private Deflater deflater;
+    private Inflater inflater;
+
+    DeflateCodec(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Returns whether a message of the given length is compressed, smaller messages are sent as they are.
+     */
+    public boolean shouldCompress(int length) {
+        return compression.shouldCompress(length);
+    }
+
+    /**
+     * Compresses a message.
+     *
+     * @param data the message
+     * @return the compressed message
+     */
+    public byte[] compress(byte[] data) {
+        long start = Compression.cpuTime();
+        if (deflater == null) {
+            deflater = new Deflater();
+        }
+        deflater.setInput(data);
+        byte[] out = new byte[data.length / 2 + 64];
+        int length = 0;
+        while (true) {
+            length += deflater.deflate(out, length, out.length - length, Deflater.SYNC_FLUSH);
+            // a full buffer means the flush may not be complete yet
+            if (length < out.length) break;
+            out = Arrays.copyOf(out, out.length * 2);
+        }
+        compression.recordCompress(data.length, length, Compression.cpuTime() - start);
+        return Arrays.copyOf(out, length);
+    }
+
+    /**
+     * Inflates a message compressed by the codec on the other side of the connection.
+     *
+     * @param data the compressed message
+     * @param maxLength the maximum length of the inflated message
+     * @return the message
+     * @throws IOException if the data is corrupt or inflates to more than the maximum length
+     */
+    public byte[] inflate(byte[] data, int maxLength) throws IOException {
+        long start = Compression.cpuTime();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        inflater.setInput(data);
+        byte[] out = new byte[Math.min(maxLength, Math.max(64, data.length * 4))];
+        int length = 0;
+        try {
+            while (true) {
+                if (length == out.length) {
+                    if (out.length >= maxLength) throw new IOException("inflated message is too long");
+                    out = Arrays.copyOf(out, (int) Math.min(maxLength, 2L * out.length));
+                }
+                int inflated = inflater.inflate(out, length, out.length - length);
+                length += inflated;
+                if (inflated == 0 && length < out.length) break;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("invalid compressed data: " + e.getMessage(), e);
+        }
+        compression.recordInflate(data.length, length, Compression.cpuTime() - start);
+        return Arrays.copyOf(out, length);
+    }
+
+    /**
+     * Releases the native memory of the DEFLATE streams.
+     */
+    public void close() {
+        if (deflater != null) deflater.end();
+        if (inflater != null) inflater.end();
+    }
+}
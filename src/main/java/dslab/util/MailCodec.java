@@ -0,0 +1,121 @@
+package dslab.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary encoding of mails for the on-disk journals.
+ *
+ * Layout: {@code int recipientCount | sender | subject | data | hash | recipient*}, where every string is written as
+ * {@code int length | UTF-8 bytes} and a length of -1 stands for null. The message id is not part of the encoding.
+ */
+public final class MailCodec {
+
+    private MailCodec() {
+        // util class
+    }
+
+    /**
+     * Encodes the given mail.
+     *
+     * @param mail the mail to encode
+     * @return the encoded mail
+     */
+    public static byte[] encode(Mail mail) {
+        List<byte[]> fields = new ArrayList<>();
+        fields.add(bytes(mail.getSender()));
+        fields.add(bytes(mail.getSubject()));
+        fields.add(bytes(mail.getData()));
+        fields.add(bytes(mail.getHash()));
+        for (String recipient : mail.getRecipients()) {
+            fields.add(bytes(recipient));
+        }
+        int size = 4;
+        for (byte[] field : fields) {
+            size += 4 + (field == null ? 0 : field.length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(mail.getRecipients().size());
+        for (byte[] field : fields) {
+            if (field == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(field.length).put(field);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Returns the length of the encoding of the given mail without encoding it.
+     *
+     * @param mail the mail
+     * @return the number of bytes {@link #encode} returns for the mail
+     */
+    public static int encodedLength(Mail mail) {
+        int size = 4 + length(mail.getSender()) + length(mail.getSubject()) + length(mail.getData())
+                + length(mail.getHash());
+        if (mail.getRecipients() != null) {
+            for (String recipient : mail.getRecipients()) {
+                size += length(recipient);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Decodes a mail starting at the position of the given buffer and advances the position past it.
+     *
+     * @param buffer the buffer holding an encoded mail
+     * @return the decoded mail
+     */
+    public static Mail decode(ByteBuffer buffer) {
+        int recipientCount = buffer.getInt();
+        Mail mail = new Mail(string(buffer), null, string(buffer), string(buffer));
+        mail.setHash(string(buffer));
+        List<String> recipients = new ArrayList<>(recipientCount);
+        for (int i = 0; i < recipientCount; i++) {
+            recipients.add(string(buffer));
+        }
+        mail.setRecipients(recipients);
+        return mail;
+    }
+
+    /**
+     * Returns the length of an encoded string field, its UTF-8 bytes plus the length prefix.
+     */
+    private static int length(String value) {
+        if (value == null) return 4;
+        int length = 4;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                // lone surrogates are encoded as '?'
+                length += Character.isSurrogate(c) ? 1 : 3;
+            }
+        }
+        return length;
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) return null;
+        byte[] value = new byte[length];
+        buffer.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+}
@@ -2,8 +2,17 @@ package dslab.client;
 
 import static org.hamcrest.CoreMatchers.is;
 
+import java.io.File;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -17,7 +26,9 @@ import dslab.SimpleTcpServer;
 import dslab.Sockets;
 import dslab.TestInputStream;
 import dslab.TestOutputStream;
+import dslab.util.AesSession;
 import dslab.util.Config;
+import dslab.util.Keys;
 
 /**
  * Tests that the message client connects to the configured DMAP server at startup and sends the startsecure command.
@@ -36,11 +47,18 @@ public class MessageClientStartupTest {
         Config clientConfig = new Config(clientId);
         int port = clientConfig.getInt("mailbox.port");
         dmapServer = new SimpleTcpServer(port);
+        // the connection that checks for the socket must not reach the acceptor of the test
+        CountDownLatch probed = new CountDownLatch(1);
+        dmapServer.setSocketAcceptor(socket -> {
+            socket.close();
+            probed.countDown();
+        });
 
         serverThread = new Thread(dmapServer);
         serverThread.start();
 
         Sockets.waitForSocket("localhost", port, Constants.COMPONENT_STARTUP_WAIT);
+        probed.await();
     }
 
     @After
@@ -84,4 +102,70 @@ public class MessageClientStartupTest {
             // ignore
         }
     }
+
+    @Test(timeout = 15000)
+    public void startClient_withServerWithoutExtensions_reconnectsWithoutThem() throws Exception {
+        final CountDownLatch loggedIn = new CountDownLatch(1);
+        final List<List<String>> connections = new ArrayList<>();
+
+        // a server that only knows the commands of the original protocol and ends the session on anything else
+        dmapServer.setSocketAcceptor(socket -> {
+            List<String> requests = new ArrayList<>();
+            synchronized (connections) {
+                connections.add(requests);
+            }
+            try (JunitSocketClient client = new JunitSocketClient(socket)) {
+                client.send("ok DMAP2.0");
+                err.checkThat(client.read(), is("startsecure"));
+                client.send("ok mailbox-earth-planet");
+
+                Cipher rsa = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+                rsa.init(Cipher.DECRYPT_MODE, Keys.readPrivateKey(new File("keys/server/mailbox-earth-planet.der")));
+                Base64.Decoder base64 = Base64.getDecoder();
+                String[] init = new String(rsa.doFinal(base64.decode(client.read()))).split(" ");
+                AesSession aes = new AesSession(new SecretKeySpec(base64.decode(init[2]), "AES"),
+                        new IvParameterSpec(base64.decode(init[3])));
+                client.send(aes.encrypt("ok " + init[1]));
+                err.checkThat(aes.decrypt(client.read()), is("ok"));
+
+                String request;
+                while ((request = aes.decrypt(client.read())) != null) {
+                    synchronized (connections) {
+                        requests.add(request);
+                    }
+                    if (!request.startsWith("login")) {
+                        client.send(aes.encrypt("error protocol error"));
+                        break;
+                    }
+                    client.send(aes.encrypt("ok"));
+                    loggedIn.countDown();
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        TestInputStream messageClientIn = new TestInputStream();
+        TestOutputStream messageClientOut = new TestOutputStream();
+
+        Runnable messageClient = ComponentFactory.createMessageClient(clientId, messageClientIn, messageClientOut);
+        Thread messClientThread = new Thread(messageClient);
+        messClientThread.start();
+
+        // each refused extension costs one connection, after that the client no longer asks for it
+        loggedIn.await();
+        synchronized (connections) {
+            err.checkThat(connections.size(), is(3));
+            err.checkThat(connections.get(0), is(List.of("ticket")));
+            err.checkThat(connections.get(1), is(List.of("binary")));
+            err.checkThat(connections.get(2), is(List.of("login trillian 12345")));
+        }
+        messageClientIn.addLine("shutdown");
+
+        try {
+            messClientThread.join(Constants.COMPONENT_TEARDOWN_WAIT);
+        } catch (InterruptedException e) {
+            // ignore
+        }
+    }
 }
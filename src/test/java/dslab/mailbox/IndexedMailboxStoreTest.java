@@ -0,0 +1,137 @@
+package dslab.mailbox;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import dslab.util.Mail;
+
+/**
+ * Searches mailboxes whose index is built on the first search.
+ */
+public class IndexedMailboxStoreTest {
+
+    private final AtomicInteger scans = new AtomicInteger();
+    private final MemoryMailboxStore memory = new MemoryMailboxStore(null);
+
+    @Test
+    public void openingAndDelivering_doesNotReadStoredMails() throws Exception {
+        // mails from an earlier run, stored before the index knows the mailbox
+        memory.getOrCreate("trillian").add(mail("hello from the restaurant"));
+        memory.getOrCreate("trillian").add(mail("the end of the universe"));
+        IndexedMailboxStore store = new IndexedMailboxStore(new CountingStore());
+
+        store.get("trillian");
+        store.getOrCreate("trillian").add(mail("a towel"));
+        store.get("trillian").remove(1);
+        assertThat(scans.get(), is(0));
+
+        assertThat(store.search("trillian", "universe"), is(ids(2)));
+        assertThat(store.search("trillian", "hello"), is(ids()));
+        assertThat(store.search("trillian", "towel"), is(ids(3)));
+        assertThat(scans.get(), is(1));
+    }
+
+    @Test
+    public void changesAfterTheFirstSearch_updateTheIndex() throws Exception {
+        IndexedMailboxStore store = new IndexedMailboxStore(new CountingStore());
+        store.getOrCreate("trillian").add(mail("hello from vogsphere"));
+        assertThat(store.search("trillian", "hello"), is(ids(1)));
+
+        store.getOrCreate("trillian").add(mail("hello from magrathea"));
+        assertThat(store.search("trillian", "hello"), is(ids(1, 2)));
+        assertThat(store.search("trillian", "hello magrathea"), is(ids(2)));
+        store.get("trillian").remove(1);
+        assertThat(store.search("trillian", "hello"), is(ids(2)));
+        assertThat(store.search("trillian", "vogsphere"), is(ids()));
+        assertThat(scans.get(), is(1));
+    }
+
+    private static Set<Integer> ids(Integer... ids) {
+        return new TreeSet<>(Arrays.asList(ids));
+    }
+
+    private static Mail mail(String data) {
+        return new Mail("arthur@earth.planet", Arrays.asList("trillian@earth.planet"), "search", data);
+    }
+
+    /**
+     * Counts how often a whole mailbox is read.
+     */
+    private class CountingStore implements MailboxStore {
+
+        @Override
+        public Mailbox get(String user) {
+            Mailbox mailbox = memory.get(user);
+            return mailbox == null ? null : new CountingMailbox(mailbox);
+        }
+
+        @Override
+        public Mailbox getOrCreate(String user) throws IOException {
+            return new CountingMailbox(memory.getOrCreate(user));
+        }
+
+        @Override
+        public Collection<String> users() {
+            return memory.users();
+        }
+
+        @Override
+        public void close() {
+            memory.close();
+        }
+    }
+
+    private class CountingMailbox implements Mailbox {
+
+        private final Mailbox mailbox;
+
+        CountingMailbox(Mailbox mailbox) {
+            this.mailbox = mailbox;
+        }
+
+        @Override
+        public int add(Mail mail) throws IOException {
+            return mailbox.add(mail);
+        }
+
+        @Override
+        public Mail get(int messageId) {
+            return mailbox.get(messageId);
+        }
+
+        @Override
+        public boolean remove(int messageId) throws IOException {
+            return mailbox.remove(messageId);
+        }
+
+        @Override
+        public Collection<Mail> mails() {
+            scans.incrementAndGet();
+            return mailbox.mails();
+        }
+
+        @Override
+        public Collection<Mail> mailsAfter(int messageId) {
+            return mailbox.mailsAfter(messageId);
+        }
+
+        @Override
+        public int size() {
+            return mailbox.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return mailbox.isEmpty();
+        }
+    }
+}
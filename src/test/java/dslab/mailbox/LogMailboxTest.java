@@ -0,0 +1,179 @@
+package dslab.mailbox;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import dslab.util.AsyncLog;
+import dslab.util.Mail;
+import dslab.util.MailCodec;
+
+/**
+ * Reopens log mailboxes on the files a previous instance left behind.
+ */
+public class LogMailboxTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AsyncLog log;
+
+    @Before
+    public void setUp() {
+        log = new AsyncLog("test", folder.getRoot().toPath().resolve("test.log"), 64, 1024 * 1024, 1, AsyncLog.Level.INFO);
+    }
+
+    @After
+    public void tearDown() {
+        log.close();
+    }
+
+    @Test
+    public void reopen_keepsMailsDeletesAndIdSequence() throws Exception {
+        Path dir = folder.newFolder("trillian").toPath();
+        LogMailbox mailbox = new LogMailbox(dir, log.logger("store"));
+        mailbox.add(mail("first"));
+        mailbox.add(mail("second"));
+        mailbox.add(mail("third"));
+        mailbox.remove(3);
+        mailbox.close();
+
+        mailbox = new LogMailbox(dir, log.logger("store"));
+        assertThat(data(mailbox), is(Arrays.asList("first", "second")));
+        assertThat(mailbox.get(2).getData(), is("second"));
+        // the deleted id is not reused
+        assertThat(mailbox.add(mail("fourth")), is(4));
+        mailbox.close();
+    }
+
+    @Test
+    public void reopen_withoutIndexTail_recoversRecordsFromLog() throws Exception {
+        Path dir = folder.newFolder("trillian").toPath();
+        LogMailbox mailbox = new LogMailbox(dir, log.logger("store"));
+        mailbox.add(mail("first"));
+        mailbox.add(mail("second"));
+        mailbox.remove(1);
+        mailbox.close();
+
+        // the index is not forced to disk, it may miss its last entries after a crash
+        Path index = file(dir, ".idx");
+        try (FileChannel channel = FileChannel.open(index, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() / 3 + 5);
+        }
+        mailbox = new LogMailbox(dir, log.logger("store"));
+        assertThat(data(mailbox), is(Arrays.asList("second")));
+        mailbox.close();
+
+        // the recovered entries were written back to the index
+        mailbox = new LogMailbox(dir, log.logger("store"));
+        assertThat(data(mailbox), is(Arrays.asList("second")));
+        mailbox.close();
+    }
+
+    @Test
+    public void reopen_cutsOffTornRecord() throws Exception {
+        Path dir = folder.newFolder("trillian").toPath();
+        LogMailbox mailbox = new LogMailbox(dir, log.logger("store"));
+        mailbox.add(mail("first"));
+        mailbox.close();
+        Path logFile = file(dir, ".log");
+        long validBytes = Files.size(logFile);
+
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.allocate(12).putInt(Integer.MAX_VALUE - 2).put((byte) 1).putInt(2).putShort((short) 0)
+                    .flip());
+        }
+        mailbox = new LogMailbox(dir, log.logger("store"));
+        assertThat(data(mailbox), is(Arrays.asList("first")));
+        assertThat(Files.size(logFile), is(validBytes));
+        assertThat(mailbox.add(mail("second")), is(2));
+        mailbox.close();
+    }
+
+    @Test
+    public void compaction_dropsDeletedMailsAndSurvivesReopen() throws Exception {
+        Path dir = folder.newFolder("trillian").toPath();
+        LogMailbox mailbox = new LogMailbox(dir, log.logger("store"));
+        for (int i = 1; i <= 10; i++) {
+            mailbox.add(mail("mail " + i));
+        }
+        for (int i = 1; i <= 10; i++) {
+            if (i % 2 == 0 || i == 9) mailbox.remove(i);
+        }
+        long before = Files.size(file(dir, ".log"));
+        assertThat(mailbox.compactIfNeeded(0, 0), is(true));
+
+        assertThat(Files.size(file(dir, ".log")) < before, is(true));
+        assertThat(data(mailbox), is(Arrays.asList("mail 1", "mail 3", "mail 5", "mail 7")));
+        mailbox.close();
+
+        mailbox = new LogMailbox(dir, log.logger("store"));
+        assertThat(data(mailbox), is(Arrays.asList("mail 1", "mail 3", "mail 5", "mail 7")));
+        // the sequence survives even though the mail with the highest id was deleted
+        assertThat(mailbox.add(mail("mail 11")), is(11));
+        mailbox.close();
+    }
+
+    @Test
+    public void readAfterEveryAdd_readsMailsBehindTheMapping() throws Exception {
+        LogMailbox mailbox = new LogMailbox(folder.newFolder("trillian").toPath(), log.logger("store"));
+        for (int i = 1; i <= 200; i++) {
+            mailbox.add(mail("mail " + i));
+            assertThat(mailbox.get(i).getData(), is("mail " + i));
+            assertThat(mailbox.get(1).getData(), is("mail 1"));
+        }
+        mailbox.close();
+    }
+
+    @Test
+    public void bytes_areTakenFromTheIndexAndMatchTheEncodedMails() throws Exception {
+        Path dir = folder.newFolder("trillian").toPath();
+        LogMailbox mailbox = new LogMailbox(dir, log.logger("store"));
+        // multi-byte characters, a surrogate pair and a lone surrogate
+        Mail first = mail("gr\u00fc\u00dfe \u20ac \ud83d\ude00 \ud800");
+        Mail second = mail("second");
+        Mail third = mail("third");
+        mailbox.add(first);
+        mailbox.add(second);
+        mailbox.add(third);
+        mailbox.remove(2);
+        long expected = MailCodec.encode(first).length + MailCodec.encode(third).length;
+        assertThat(MailCodec.encodedLength(first), is(MailCodec.encode(first).length));
+        assertThat(mailbox.bytes(), is(expected));
+        mailbox.close();
+
+        mailbox = new LogMailbox(dir, log.logger("store"));
+        assertThat(mailbox.bytes(), is(expected));
+        mailbox.close();
+    }
+
+    private static Path file(Path dir, String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(path -> path.toString().endsWith(suffix)).findFirst().orElseThrow();
+        }
+    }
+
+    private static List<String> data(Mailbox mailbox) {
+        return mailbox.mails().stream().map(Mail::getData).collect(Collectors.toList());
+    }
+
+    private static Mail mail(String data) {
+        return new Mail("arthur@earth.planet", Arrays.asList("trillian@earth.planet"), "log", data);
+    }
+}
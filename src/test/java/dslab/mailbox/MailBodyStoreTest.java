@@ -0,0 +1,69 @@
+package dslab.mailbox;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import dslab.util.Mail;
+
+/**
+ * Shares the bodies of equal mails and frees them with their last envelope.
+ */
+public class MailBodyStoreTest {
+
+    @Test
+    public void equalMails_shareOneBodyUntilTheLastRelease() {
+        MailBodyStore store = new MailBodyStore(null);
+        MailBodyStore.SharedMail first = store.acquire(mail("dont panic"));
+        MailBodyStore.SharedMail second = store.acquire(mail("dont panic"));
+        store.acquire(mail("so long"));
+        assertThat(store.size(), is(2));
+
+        store.release(first);
+        assertThat(store.size(), is(2));
+        assertThat(second.getData(), is("dont panic"));
+
+        store.release(second);
+        assertThat(store.size(), is(1));
+    }
+
+    @Test
+    public void envelopes_haveTheirOwnMessageIds() {
+        MailBodyStore store = new MailBodyStore(null);
+        MailBodyStore.SharedMail first = store.acquire(mail("dont panic"));
+        MailBodyStore.SharedMail second = store.acquire(mail("dont panic"));
+
+        first.setMessageId(1);
+        second.setMessageId(2);
+
+        assertThat(first.getMessageId(), is(1));
+        assertThat(second.getMessageId(), is(2));
+        assertThat(second.getSender(), is("arthur@earth.planet"));
+        assertThat(second.getRecipients(), is(Arrays.asList("trillian@earth.planet", "zaphod@univer.ze")));
+    }
+
+    @Test
+    public void offHeapBodies_freeTheirRegionWithTheLastEnvelope() {
+        SlabAllocator slabs = new SlabAllocator(1024);
+        MailBodyStore store = new MailBodyStore(slabs);
+        MailBodyStore.SharedMail first = store.acquire(mail("dont panic"));
+        MailBodyStore.SharedMail second = store.acquire(mail("dont panic"));
+        // stored once for both envelopes
+        assertThat(slabs.stats(), containsString("live 10 bytes"));
+        assertThat(first.getData(), is("dont panic"));
+
+        store.release(first);
+        assertThat(slabs.stats(), containsString("live 10 bytes"));
+        store.release(second);
+        assertThat(slabs.stats(), containsString("live 0 bytes"));
+        assertThat(store.size(), is(0));
+    }
+
+    private static Mail mail(String data) {
+        return new Mail("arthur@earth.planet", Arrays.asList("trillian@earth.planet", "zaphod@univer.ze"), "bodies", data);
+    }
+}
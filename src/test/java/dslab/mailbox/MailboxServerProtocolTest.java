@@ -1,6 +1,26 @@
 package dslab.mailbox;
 
 import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -13,7 +33,10 @@ import dslab.Constants;
 import dslab.JunitSocketClient;
 import dslab.Sockets;
 import dslab.TestBase;
+import dslab.util.Compression;
 import dslab.util.Config;
+import dslab.util.DMTPPipeline;
+import dslab.util.DeflateCodec;
 
 public class MailboxServerProtocolTest extends TestBase {
 
@@ -105,4 +128,256 @@ public class MailboxServerProtocolTest extends TestBase {
         }
     }
 
+    @Test(timeout = 15000)
+    public void deleteDmapMessage_messageIdIsNotReused() throws Exception {
+
+        // accept two messages via DMTP (to trillian)
+        try (JunitSocketClient client = new JunitSocketClient(dmtpServerPort, err)) {
+            client.verify("ok DMTP");
+            for (String subject : new String[]{"first", "second"}) {
+                client.sendAndVerify("begin", "ok");
+                client.sendAndVerify("from arthur@earth.planet", "ok");
+                client.sendAndVerify("to trillian@earth.planet", "ok 1");
+                client.sendAndVerify("subject " + subject, "ok");
+                client.sendAndVerify("data hello from junit", "ok");
+                client.sendAndVerify("send", "ok");
+            }
+            client.sendAndVerify("quit", "ok bye");
+        }
+
+        try (JunitSocketClient client = new JunitSocketClient(dmapServerPort, err)) {
+            client.verify("ok DMAP");
+            client.sendAndVerify("login trillian 12345", "ok");
+            client.sendAndVerify("delete 2", "ok");
+            client.sendAndVerify("delete 2", "error unknown message id");
+
+            // a new message must not take over the id of the deleted one
+            try (JunitSocketClient dmtp = new JunitSocketClient(dmtpServerPort, err)) {
+                dmtp.verify("ok DMTP");
+                dmtp.sendAndVerify("begin", "ok");
+                dmtp.sendAndVerify("from arthur@earth.planet", "ok");
+                dmtp.sendAndVerify("to trillian@earth.planet", "ok 1");
+                dmtp.sendAndVerify("subject third", "ok");
+                dmtp.sendAndVerify("data hello from junit", "ok");
+                dmtp.sendAndVerify("send", "ok");
+                dmtp.sendAndVerify("quit", "ok bye");
+            }
+
+            client.send("list");
+            String listResult = client.listen();
+            err.checkThat(listResult, containsString("1 arthur@earth.planet first"));
+            err.checkThat(listResult, containsString("3 arthur@earth.planet third"));
+            err.checkThat(listResult, not(containsString("second")));
+
+            // paged listings count the remaining mails, not the message ids
+            client.send("list 1 1");
+            listResult = client.listen();
+            err.checkThat(listResult, containsString("3 arthur@earth.planet third"));
+            err.checkThat(listResult, not(containsString("first")));
+
+            client.send("list since 1");
+            listResult = client.listen();
+            err.checkThat(listResult, containsString("3 arthur@earth.planet third"));
+            err.checkThat(listResult, not(containsString("first")));
+
+            client.sendAndVerify("list since 3", "no mail");
+            client.sendAndVerify("list 0 x", "parameter is not a valid number");
+
+            client.sendAndVerify("show 2", "error unknown message id");
+            client.sendAndVerify("logout", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void searchDmapMessages_returnsIdsMatchingAllTerms() throws Exception {
+
+        try (JunitSocketClient client = new JunitSocketClient(dmtpServerPort, err)) {
+            client.verify("ok DMTP");
+            String[][] mails = {{"lunch today", "meet at the Restaurant"}, {"meeting", "the restaurant is closed"}, {"towel", "don't panic"}};
+            for (String[] mail : mails) {
+                client.sendAndVerify("begin", "ok");
+                client.sendAndVerify("from arthur@earth.planet", "ok");
+                client.sendAndVerify("to trillian@earth.planet", "ok 1");
+                client.sendAndVerify("subject " + mail[0], "ok");
+                client.sendAndVerify("data " + mail[1], "ok");
+                client.sendAndVerify("send", "ok");
+            }
+            client.sendAndVerify("quit", "ok bye");
+        }
+
+        try (JunitSocketClient client = new JunitSocketClient(dmapServerPort, err)) {
+            client.verify("ok DMAP");
+            client.sendAndVerify("search restaurant", "error not logged in");
+            client.sendAndVerify("login trillian 12345", "ok");
+            client.sendAndVerify("search restaurant", "ok 1 2");
+            client.sendAndVerify("search RESTAURANT closed", "ok 2");
+            client.sendAndVerify("search arthur@earth.planet", "ok 1 2 3");
+            client.sendAndVerify("search restaurant towel", "no mail");
+            client.sendAndVerify("search", "invalid number of arguments");
+
+            // deleted mails are no longer found
+            client.sendAndVerify("delete 1", "ok");
+            client.sendAndVerify("search restaurant", "ok 2");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void fetchDmapMessages_returnsWholeMailsInOneResponse() throws Exception {
+
+        try (JunitSocketClient client = new JunitSocketClient(dmtpServerPort, err)) {
+            client.verify("ok DMTP");
+            for (int i = 1; i <= 3; i++) {
+                client.sendAndVerify("begin", "ok");
+                client.sendAndVerify("from arthur@earth.planet", "ok");
+                client.sendAndVerify("to trillian@earth.planet", "ok 1");
+                client.sendAndVerify("subject mail " + i, "ok");
+                client.sendAndVerify("data body " + i, "ok");
+                client.sendAndVerify("send", "ok");
+            }
+            client.sendAndVerify("quit", "ok bye");
+        }
+
+        try (JunitSocketClient client = new JunitSocketClient(dmapServerPort, err)) {
+            client.verify("ok DMAP");
+            client.sendAndVerify("fetch", "error not logged in");
+            client.sendAndVerify("login trillian 12345", "ok");
+            client.sendAndVerify("delete 2", "ok");
+
+            // the whole range is requested at once, the deleted mail is skipped
+            client.send("fetch 1 3");
+            for (int i : new int[] {1, 3}) {
+                client.verify("mail " + i);
+                client.verify("from arthur@earth.planet");
+                client.verify("to trillian@earth.planet");
+                client.verify("subject mail " + i);
+                client.verify("data body " + i);
+                client.verify("hash");
+            }
+            client.verify("ok");
+
+            client.sendAndVerify("fetch 4 10", "no mail");
+            client.sendAndVerify("fetch 1", "invalid number of arguments");
+            client.sendAndVerify("fetch a b", "parameter is not a valid message-id");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void parallelDmtpDeliveries_assignEveryIdExactlyOnce() throws Exception {
+        int senders = 8;
+        int mailsPerSender = 25;
+
+        // every mail goes to both users, so both mailboxes are created and filled concurrently
+        ExecutorService executor = Executors.newFixedThreadPool(senders);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int s = 0; s < senders; s++) {
+            int sender = s;
+            futures.add(executor.submit(() -> {
+                try (JunitSocketClient client = new JunitSocketClient(dmtpServerPort, err)) {
+                    client.verify("ok DMTP");
+                    for (int i = 0; i < mailsPerSender; i++) {
+                        client.sendAndVerify("begin", "ok");
+                        client.sendAndVerify("from arthur@earth.planet", "ok");
+                        client.sendAndVerify("to trillian@earth.planet,arthur@earth.planet", "ok 2");
+                        client.sendAndVerify("subject mail-" + sender + "-" + i, "ok");
+                        client.sendAndVerify("data stress", "ok");
+                        client.sendAndVerify("send", "ok");
+                    }
+                    client.sendAndVerify("quit", "ok bye");
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        int total = senders * mailsPerSender;
+        for (String login : new String[]{"trillian 12345", "arthur 23456"}) {
+            try (JunitSocketClient client = new JunitSocketClient(dmapServerPort, err)) {
+                client.verify("ok DMAP");
+                client.sendAndVerify("login " + login, "ok");
+                client.send("list");
+
+                Set<Integer> ids = new HashSet<>();
+                Set<String> subjects = new HashSet<>();
+                String line;
+                while (!(line = client.read()).equals("ok")) {
+                    String[] parts = line.split(" ");
+                    err.checkThat("duplicate id in " + line, ids.add(Integer.parseInt(parts[0])), is(true));
+                    subjects.add(parts[2]);
+                }
+                err.checkThat(ids.size(), is(total));
+                err.checkThat(subjects.size(), is(total));
+                err.checkThat(Collections.max(ids), is(total));
+                client.sendAndVerify("quit", "ok bye");
+            }
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void traceOn_logsProtocolLines_withoutPassword() throws Exception {
+        Path logFile = Paths.get(new Config(componentId).getString("log.file"));
+        long before = Files.exists(logFile) ? Files.size(logFile) : 0;
+
+        in.addLine("trace on");
+        Thread.sleep(500);
+
+        try (JunitSocketClient client = new JunitSocketClient(dmapServerPort, err)) {
+            client.verify("ok DMAP");
+            client.sendAndVerify("login trillian 12345", "ok");
+            client.sendAndVerify("list", "no mail");
+            client.sendAndVerify("quit", "ok bye");
+        }
+
+        // the log writer flushes in the background
+        String log = "";
+        for (int i = 0; i < 50 && !log.contains("S: ok bye"); i++) {
+            Thread.sleep(100);
+            byte[] bytes = Files.readAllBytes(logFile);
+            log = new String(bytes, (int) before, bytes.length - (int) before, StandardCharsets.UTF_8);
+        }
+        err.checkThat(log, containsString("C: login trillian <redacted>"));
+        err.checkThat(log, containsString("S: no mail"));
+        err.checkThat(log, containsString("S: ok bye"));
+        err.checkThat(log, not(containsString("12345")));
+    }
+
+    @Test(timeout = 15000)
+    public void compressedDmtpData_isDeliveredInflated() throws Exception {
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            data.append("compressed hello from junit ").append(i).append(' ');
+        }
+        String body = data.toString().trim();
+
+        Compression compression = new Compression(true, 256);
+        DeflateCodec codec = compression.newCodec();
+        try (Socket socket = new Socket("127.0.0.1", dmtpServerPort);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+             PrintWriter writer = new PrintWriter(socket.getOutputStream())) {
+            err.checkThat(reader.readLine(), containsString("ok DMTP"));
+            writer.println("capabilities");
+            writer.flush();
+            err.checkThat(reader.readLine(), is("ok pipelining deflate"));
+            List<String> commands = Arrays.asList("begin", "from arthur@earth.planet", "to trillian@earth.planet",
+                    "subject zipped", "data " + body, "send", "quit");
+            err.checkThat(DMTPPipeline.execute(reader, writer, commands, true, codec),
+                    is((String) null));
+        } finally {
+            codec.close();
+        }
+        err.checkThat(compression.stats(), containsString("compressed 1 "));
+
+        try (JunitSocketClient client = new JunitSocketClient(dmapServerPort, err)) {
+            client.verify("ok DMAP");
+            client.sendAndVerify("login trillian 12345", "ok");
+            client.send("show 1");
+            err.checkThat(client.listen(), containsString(body));
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
 }
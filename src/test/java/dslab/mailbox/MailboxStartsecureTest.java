@@ -1,6 +1,20 @@
 package dslab.mailbox;
 
 import static dslab.StringMatches.matchesPattern;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.startsWith;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -13,7 +27,10 @@ import dslab.Constants;
 import dslab.JunitSocketClient;
 import dslab.Sockets;
 import dslab.TestBase;
+import dslab.util.AesSession;
 import dslab.util.Config;
+import dslab.util.DMAPFrameChannel;
+import dslab.util.Keys;
 
 public class MailboxStartsecureTest extends TestBase {
 
@@ -73,5 +90,157 @@ public class MailboxStartsecureTest extends TestBase {
         }
     }
 
+    @Test(timeout = 15000)
+    public void resumeWithTicket_skipsHandshake_andTicketIsSingleUse() throws Exception {
+        SecretKey secretKey = new SecretKeySpec(new byte[32], "AES");
+        IvParameterSpec iv = new IvParameterSpec(new byte[16]);
+        AesSession aes = new AesSession(secretKey, iv);
+        String ticket;
+
+        try (JunitSocketClient client = new JunitSocketClient(dmapServerPort, err)) {
+            client.verify("ok DMAP2.0");
+            client.sendAndVerify("startsecure", "ok mailbox-earth-planet");
+
+            Cipher rsa = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+            rsa.init(Cipher.ENCRYPT_MODE, Keys.readPublicKey(new File("keys/client/mailbox-earth-planet_pub.der")));
+            Base64.Encoder base64 = Base64.getEncoder();
+            String init = "ok " + base64.encodeToString(new byte[32]) + " " + base64.encodeToString(secretKey.getEncoded())
+                    + " " + base64.encodeToString(iv.getIV());
+            client.send(base64.encodeToString(rsa.doFinal(init.getBytes())));
+            err.checkThat(aes.decrypt(client.read()), is("ok " + base64.encodeToString(new byte[32])));
+            client.send(aes.encrypt("ok"));
+
+            client.send(aes.encrypt("ticket"));
+            String response = aes.decrypt(client.read());
+            err.checkThat(response, startsWith("ok "));
+            ticket = response.substring(3);
+        }
+
+        byte[] nonce = new byte[]{1, 2, 3, 4};
+        String resume = "resume " + ticket + " " + Base64.getEncoder().encodeToString(nonce);
+        AesSession resumed = aes.resume(nonce);
+        try (JunitSocketClient client = new JunitSocketClient(dmapServerPort, err)) {
+            client.verify("ok DMAP2.0");
+            client.send(resume);
+            err.checkThat(resumed.decrypt(client.read()), startsWith("ok "));
+            client.send(resumed.encrypt("login trillian 12345"));
+            err.checkThat(resumed.decrypt(client.read()), is("ok"));
+        }
+
+        // a ticket can only be used once
+        try (JunitSocketClient client = new JunitSocketClient(dmapServerPort, err)) {
+            client.verify("ok DMAP2.0");
+            client.sendAndVerify(resume, "error invalid ticket");
+            client.sendAndVerify("resume garbage AAAA", "error invalid ticket");
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void binaryFraming_sendsWholeResponsesAsOneFrame() throws Exception {
+        try (JunitSocketClient client = new JunitSocketClient(dmtpServerPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("from arthur@earth.planet", "ok");
+            client.sendAndVerify("to trillian@earth.planet", "ok 1");
+            client.sendAndVerify("subject framed", "ok");
+            client.sendAndVerify("data hello in one frame", "ok");
+            client.sendAndVerify("send", "ok");
+            client.sendAndVerify("quit", "ok bye");
+        }
 
+        try (Socket socket = new Socket("localhost", dmapServerPort)) {
+            DMAPFrameChannel frames = startBinary(socket);
+            frames.write("login trillian 12345");
+            err.checkThat(frames.read(), is("ok"));
+            frames.write("list");
+            err.checkThat(frames.read(), is("1 arthur@earth.planet framed\nok"));
+            frames.write("show 1");
+            err.checkThat(frames.read(), is("from arthur@earth.planet\nto trillian@earth.planet\nsubject framed\n"
+                    + "data hello in one frame\nhash "));
+            frames.write("show 2");
+            err.checkThat(frames.read(), is("error unknown message id"));
+            frames.write("quit");
+            err.checkThat(frames.read(), is("ok bye"));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void binaryFraming_splitsLongListingIntoFrames() throws Exception {
+        int count = 1500;
+        String subject = "a subject long enough that the whole listing takes more than one frame";
+        try (Socket socket = new Socket("localhost", dmtpServerPort)) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter writer = new PrintWriter(socket.getOutputStream());
+            err.checkThat(reader.readLine(), startsWith("ok DMTP"));
+            for (int i = 0; i < count; i++) {
+                writer.println("begin");
+                writer.println("from arthur@earth.planet");
+                writer.println("to trillian@earth.planet");
+                writer.println("subject " + subject);
+                writer.println("data mail " + i);
+                writer.println("send");
+            }
+            writer.flush();
+            for (int i = 0; i < count * 6; i++) {
+                err.checkThat(reader.readLine(), startsWith("ok"));
+            }
+        }
+
+        try (Socket socket = new Socket("localhost", dmapServerPort)) {
+            DMAPFrameChannel frames = startBinary(socket);
+            frames.write("login trillian 12345");
+            err.checkThat(frames.read(), is("ok"));
+            frames.write("list");
+            int frameCount = 0;
+            int lines = 0;
+            String last = null;
+            while (!"ok".equals(last)) {
+                String frame = frames.read();
+                frameCount++;
+                for (String line : frame.split("\n")) {
+                    last = line;
+                    if (!line.equals("ok")) {
+                        err.checkThat(line, is((lines + 1) + " arthur@earth.planet " + subject));
+                        lines++;
+                    }
+                }
+            }
+            err.checkThat(lines, is(count));
+            err.checkThat(frameCount > 1, is(true));
+            frames.write("quit");
+            err.checkThat(frames.read(), is("ok bye"));
+        }
+    }
+
+    /**
+     * Runs the handshake with a fixed key and switches the connection to binary frames.
+     */
+    private DMAPFrameChannel startBinary(Socket socket) throws Exception {
+        SecretKey secretKey = new SecretKeySpec(new byte[32], "AES");
+        IvParameterSpec iv = new IvParameterSpec(new byte[16]);
+        AesSession aes = new AesSession(secretKey, iv);
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+        err.checkThat(reader.readLine(), is("ok DMAP2.0"));
+
+        // binary frames need a secure session
+        writer.println("binary");
+        err.checkThat(reader.readLine(), is("error no secure session"));
+
+        writer.println("startsecure");
+        err.checkThat(reader.readLine(), is("ok mailbox-earth-planet"));
+        Cipher rsa = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        rsa.init(Cipher.ENCRYPT_MODE, Keys.readPublicKey(new File("keys/client/mailbox-earth-planet_pub.der")));
+        Base64.Encoder base64 = Base64.getEncoder();
+        String init = "ok " + base64.encodeToString(new byte[32]) + " " + base64.encodeToString(secretKey.getEncoded())
+                + " " + base64.encodeToString(iv.getIV());
+        writer.println(base64.encodeToString(rsa.doFinal(init.getBytes())));
+        err.checkThat(aes.decrypt(reader.readLine()), is("ok " + base64.encodeToString(new byte[32])));
+        writer.println(aes.encrypt("ok"));
+
+        writer.println(aes.encrypt("binary"));
+        err.checkThat(aes.decrypt(reader.readLine()), is("ok"));
+        return new DMAPFrameChannel(socket.getInputStream(), socket.getOutputStream(), aes, false);
+    }
 }
@@ -0,0 +1,139 @@
+package dslab.mailbox;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import dslab.util.AsyncLog;
+import dslab.util.Mail;
+
+/**
+ * Checks the per-user and global quotas with both policies, and their totals across a restart.
+ */
+public class QuotaMailboxStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AsyncLog log;
+
+    @Before
+    public void setUp() {
+        log = new AsyncLog("test", folder.getRoot().toPath().resolve("test.log"), 64, 1024 * 1024, 1, AsyncLog.Level.INFO);
+    }
+
+    @After
+    public void tearDown() {
+        log.close();
+    }
+
+    @Test
+    public void reject_fullUserMailbox_rejectsOnlyThatUser() throws Exception {
+        QuotaMailboxStore store = new QuotaMailboxStore(new MemoryMailboxStore(null), QuotaMailboxStore.Policy.REJECT,
+                folder.getRoot().toPath(), null, 2, 0, 0, 0, log.logger("store"));
+        store.getOrCreate("trillian").add(mail("first"));
+        assertThat(store.checkQuota("trillian", 0), is(nullValue()));
+        store.getOrCreate("trillian").add(mail("second"));
+
+        assertThat(store.checkQuota("trillian", 0), containsString("mailbox of trillian is full"));
+        assertThat(store.checkQuota("arthur", 0), is(nullValue()));
+    }
+
+    @Test
+    public void reject_countsTheSizeOfTheIncomingMail() throws Exception {
+        long size = QuotaMailboxStore.sizeOf(mail("0123456789"));
+        QuotaMailboxStore store = new QuotaMailboxStore(new MemoryMailboxStore(null), QuotaMailboxStore.Policy.REJECT,
+                folder.getRoot().toPath(), null, 0, size + size / 2, 0, 0, log.logger("store"));
+        store.getOrCreate("trillian").add(mail("0123456789"));
+
+        assertThat(store.checkQuota("trillian", 0), is(nullValue()));
+        assertThat(store.checkQuota("trillian", size), containsString("mailbox of trillian is full"));
+    }
+
+    @Test
+    public void reject_afterRestart_countsMailboxesThatAreNotOpenYet() throws Exception {
+        Path dir = folder.newFolder("mailboxes").toPath();
+        QuotaMailboxStore store = logStore(dir, QuotaMailboxStore.Policy.REJECT, 2, 4);
+        store.getOrCreate("trillian").add(mail("first"));
+        store.getOrCreate("trillian").add(mail("second"));
+        store.getOrCreate("arthur").add(mail("third"));
+        store.close();
+
+        store = logStore(dir, QuotaMailboxStore.Policy.REJECT, 2, 4);
+        assertThat(store.stats(), containsString("mails 3,"));
+        assertThat(store.checkQuota("trillian", 0), containsString("mailbox of trillian is full"));
+        assertThat(store.stats(), containsString("mails 3,"));
+        store.getOrCreate("zaphod").add(mail("fourth"));
+        assertThat(store.checkQuota("arthur", 0), containsString("mailbox server is full"));
+        String stats = store.stats();
+        store.close();
+
+        // without the totals of a clean shutdown every mailbox is counted from its index
+        Files.delete(dir.resolve(".quota"));
+        store = logStore(dir, QuotaMailboxStore.Policy.REJECT, 2, 4);
+        assertThat(store.stats(), is(stats));
+        assertThat(store.checkQuota("arthur", 0), containsString("mailbox server is full"));
+        store.close();
+    }
+
+    @Test
+    public void archive_fullUserMailbox_archivesOldestButNeverTheNewMail() throws Exception {
+        Path archive = folder.newFolder("archive").toPath();
+        QuotaMailboxStore store = new QuotaMailboxStore(new MemoryMailboxStore(null), QuotaMailboxStore.Policy.ARCHIVE,
+                archive, null, 2, 0, 0, 0, log.logger("store"));
+        Mailbox mailbox = store.getOrCreate("trillian");
+        mailbox.add(mail("first"));
+        mailbox.add(mail("second"));
+        assertThat(store.checkQuota("trillian", 0), is(nullValue()));
+        int id = mailbox.add(mail("third"));
+
+        assertThat(data(mailbox), is(Arrays.asList("second", "third")));
+        assertThat(mailbox.get(id), is(notNullValue()));
+        assertThat(store.stats(), containsString("archived 1"));
+        assertThat(Files.exists(archive.resolve("trillian.archive")), is(true));
+    }
+
+    @Test
+    public void archive_fullServer_rejectsInsteadOfArchivingTheReceiver() throws Exception {
+        QuotaMailboxStore store = new QuotaMailboxStore(new MemoryMailboxStore(null), QuotaMailboxStore.Policy.ARCHIVE,
+                folder.newFolder("archive").toPath(), null, 10, 0, 3, 0, log.logger("store"));
+        store.getOrCreate("trillian").add(mail("mine"));
+        store.getOrCreate("arthur").add(mail("first"));
+        store.getOrCreate("arthur").add(mail("second"));
+
+        assertThat(store.checkQuota("trillian", 0), containsString("mailbox server is full"));
+        assertThat(data(store.get("trillian")), is(Arrays.asList("mine")));
+        assertThat(store.stats(), containsString("archived 0"));
+    }
+
+    private QuotaMailboxStore logStore(Path dir, QuotaMailboxStore.Policy policy, int userMails, int totalMails)
+            throws Exception {
+        return new QuotaMailboxStore(new LogMailboxStore(dir, 60000, 1024 * 1024, 50, log.logger("store")), policy,
+                folder.getRoot().toPath().resolve("archive"), dir.resolve(".quota"), userMails, 0, totalMails, 0,
+                log.logger("store"));
+    }
+
+    private static List<String> data(Mailbox mailbox) {
+        return mailbox.mails().stream().map(Mail::getData).collect(Collectors.toList());
+    }
+
+    private static Mail mail(String data) {
+        Mail mail = new Mail("arthur@earth.planet", Arrays.asList("trillian@earth.planet"), "quota", data);
+        mail.setHash("");
+        return mail;
+    }
+}
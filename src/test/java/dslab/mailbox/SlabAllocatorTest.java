@@ -0,0 +1,84 @@
+package dslab.mailbox;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Stores, frees and drops regions of small slabs.
+ */
+public class SlabAllocatorTest {
+
+    private final SlabAllocator allocator = new SlabAllocator(16);
+
+    @Test
+    public void store_readsTheBytesBack() {
+        SlabAllocator.Region small = allocator.store(bytes("dont panic"));
+        SlabAllocator.Region large = allocator.store(bytes("so long, and thanks for all the fish"));
+
+        assertThat(text(small.read()), is("dont panic"));
+        assertThat(text(large.read()), is("so long, and thanks for all the fish"));
+        // the large region got a slab of its own, the small one stays current
+        assertThat(allocator.stats(), is(stats(2, 52, 46, 46, 0)));
+    }
+
+    @Test
+    public void free_dropsFullSlabsWithoutLiveRegions() {
+        SlabAllocator.Region first = allocator.store(bytes("0123456789"));
+        SlabAllocator.Region second = allocator.store(bytes("abcdefghij"));
+        assertThat(allocator.stats(), is(stats(2, 32, 20, 20, 0)));
+
+        allocator.free(first);
+        assertThat(allocator.stats(), is(stats(1, 16, 10, 10, 0)));
+
+        // the current slab is kept for further regions
+        allocator.free(second);
+        assertThat(allocator.stats(), is(stats(1, 16, 10, 0, 100)));
+    }
+
+    @Test
+    public void free_inALiveSlabShowsAsFragmentation() {
+        SlabAllocator.Region first = allocator.store(bytes("abcd"));
+        allocator.store(bytes("efgh"));
+
+        allocator.free(first);
+
+        assertThat(allocator.stats(), is(stats(1, 16, 8, 4, 50)));
+    }
+
+    @Test
+    public void freedRegions_stayReadable() {
+        SlabAllocator.Region first = allocator.store(bytes("0123456789"));
+        allocator.store(bytes("abcdefghij"));
+        allocator.free(first);
+
+        allocator.store(bytes("klmnopqrst"));
+
+        assertThat(text(first.read()), is("0123456789"));
+    }
+
+    @Test
+    public void store_replacesAnEmptyCurrentSlab() {
+        allocator.free(allocator.store(bytes("0123456789")));
+
+        allocator.store(bytes("abcdefghij"));
+
+        assertThat(allocator.stats(), is(stats(1, 16, 10, 10, 0)));
+    }
+
+    private static String stats(int slabs, long capacity, long used, long live, long fragmentation) {
+        return String.format("slabs %d, capacity %d bytes, used %d bytes, live %d bytes, fragmentation %d%%",
+                slabs, capacity, used, live, fragmentation);
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
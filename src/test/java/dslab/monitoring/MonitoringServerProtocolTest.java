@@ -89,4 +89,26 @@ public class MonitoringServerProtocolTest extends TestBase {
         assertThat(output, containsString("127.0.0.1:42 2"));
         assertThat(output, containsString("127.0.0.1:43 1"));
     }
+
+    @Test(timeout = 15000)
+    public void batchedPackets_areCountedTogetherWithSingleRecords() throws Exception {
+        LOG.info("Sending a batched and a single-record monitoring packet to monitoring socket");
+        try (DatagramSocket socket = new DatagramSocket()) {
+            String str1 = "127.0.0.1:42 foo@example.com 3\n127.0.0.1:42 bar@example.com 1\n127.0.0.1:43 foo@example.com 2";
+            String str2 = "127.0.0.1:43 bar@example.com";
+
+            socket.send(new DatagramPacket(str1.getBytes(), str1.length(), addr));
+            socket.send(new DatagramPacket(str2.getBytes(), str2.length(), addr));
+        }
+
+        Thread.sleep(2500);
+        in.addLine("addresses");
+        in.addLine("servers");
+        Thread.sleep(2500);
+        String output = String.join(",", out.getLines());
+        assertThat(output, containsString("foo@example.com 5"));
+        assertThat(output, containsString("bar@example.com 2"));
+        assertThat(output, containsString("127.0.0.1:42 4"));
+        assertThat(output, containsString("127.0.0.1:43 3"));
+    }
 }
@@ -0,0 +1,160 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dslab.util.Compression;
+
+/**
+ * Hands out, limits and evicts connections to a mailbox server that answers every command with ok.
+ */
+public class DMTPConnectionPoolTest {
+
+    private FakeMailboxServer server;
+    private DMTPConnectionPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeMailboxServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (pool != null) pool.close();
+        server.close();
+    }
+
+    @Test(timeout = 10000)
+    public void release_handsTheSameConnectionOutAgain() throws Exception {
+        pool = new DMTPConnectionPool(2, 60000, 60000, new Compression(false, 256));
+
+        DMTPClientConnection first = pool.borrow(server.address());
+        assertThat(first.isReused(), is(false));
+        pool.release(first);
+        DMTPClientConnection second = pool.borrow(server.address());
+
+        assertThat(second, is(sameInstance(first)));
+        assertThat(second.isReused(), is(true));
+        assertThat(server.accepted.get(), is(1));
+    }
+
+    @Test(timeout = 10000)
+    public void borrow_waitsWhileAllConnectionsToTheHostAreInUse() throws Exception {
+        pool = new DMTPConnectionPool(1, 60000, 60000, new Compression(false, 256));
+        DMTPClientConnection first = pool.borrow(server.address());
+
+        CompletableFuture<DMTPClientConnection> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return pool.borrow(server.address());
+            } catch (IOException | InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        try {
+            waiting.get(300, TimeUnit.MILLISECONDS);
+            throw new AssertionError("borrow must block at the limit per host");
+        } catch (TimeoutException e) {
+            // expected
+        }
+
+        pool.release(first);
+        assertThat(waiting.get(5, TimeUnit.SECONDS), is(sameInstance(first)));
+        assertThat(server.accepted.get(), is(1));
+    }
+
+    @Test(timeout = 10000)
+    public void invalidate_freesThePermitForANewConnection() throws Exception {
+        pool = new DMTPConnectionPool(1, 60000, 60000, new Compression(false, 256));
+
+        pool.invalidate(pool.borrow(server.address()));
+        DMTPClientConnection second = pool.borrow(server.address());
+
+        assertThat(second.isReused(), is(false));
+        assertThat(server.accepted.get(), is(2));
+    }
+
+    @Test(timeout = 10000)
+    public void idleConnections_areClosedAfterTheIdleTimeout() throws Exception {
+        // evicted at the earliest after the minimum eviction interval of one second
+        pool = new DMTPConnectionPool(2, 100, 60000, new Compression(false, 256));
+        pool.release(pool.borrow(server.address()));
+
+        assertTrue("idle connection was not closed", server.closed.tryAcquire(5, TimeUnit.SECONDS));
+
+        DMTPClientConnection next = pool.borrow(server.address());
+        assertThat(next.isReused(), is(false));
+        assertThat(server.accepted.get(), is(2));
+    }
+
+    /**
+     * Greets every client and answers each line with ok until the client quits or disconnects.
+     */
+    private static class FakeMailboxServer {
+
+        private final ServerSocket serverSocket = new ServerSocket(0);
+        private final AtomicInteger accepted = new AtomicInteger();
+        private final Semaphore closed = new Semaphore(0);
+
+        FakeMailboxServer() throws IOException {
+            Thread acceptor = new Thread(this::accept, "fake-mailbox-server");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        String address() {
+            return "127.0.0.1:" + serverSocket.getLocalPort();
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    accepted.incrementAndGet();
+                    Thread handler = new Thread(() -> handle(socket));
+                    handler.setDaemon(true);
+                    handler.start();
+                }
+            } catch (IOException e) {
+                // server socket closed
+            }
+        }
+
+        private void handle(Socket socket) {
+            try (Socket s = socket) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
+                PrintWriter writer = new PrintWriter(s.getOutputStream(), true);
+                writer.println("ok DMTP");
+                String line;
+                while ((line = reader.readLine()) != null && !line.equals("quit")) {
+                    writer.println("ok");
+                }
+            } catch (IOException e) {
+                // connection reset by the client
+            } finally {
+                closed.release();
+            }
+        }
+    }
+}
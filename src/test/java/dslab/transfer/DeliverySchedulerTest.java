@@ -0,0 +1,76 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import dslab.util.Mail;
+
+/**
+ * Starts and stops the per-domain workers of the delivery scheduler.
+ */
+public class DeliverySchedulerTest {
+
+    private final LinkedBlockingQueue<Long> delivered = new LinkedBlockingQueue<>();
+    private final DeliveryScheduler scheduler = new DeliveryScheduler(2, 200, queue -> () -> {
+        try {
+            Delivery delivery;
+            while ((delivery = queue.take()) != null) {
+                delivered.add(delivery.getQueuedMail().getId());
+            }
+        } catch (InterruptedException e) {
+            // stopped by shutdown
+        }
+    });
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void idleWorkers_stopAndAreStartedAgainOnDemand() throws Exception {
+        scheduler.submit(delivery(1, "earth.planet"));
+        scheduler.submit(delivery(2, "earth.planet"));
+        scheduler.submit(delivery(3, "earth.planet"));
+        assertThat(scheduler.workers("earth.planet"), is(2));
+        for (int i = 0; i < 3; i++) {
+            delivered.poll(5, TimeUnit.SECONDS);
+        }
+
+        waitForWorkers("earth.planet", 0);
+
+        scheduler.submit(delivery(4, "earth.planet"));
+        assertThat(scheduler.workers("earth.planet"), is(1));
+        assertThat(delivered.poll(5, TimeUnit.SECONDS), is(4L));
+        waitForWorkers("earth.planet", 0);
+    }
+
+    @Test(timeout = 10000)
+    public void domains_haveTheirOwnWorkers() throws Exception {
+        scheduler.submit(delivery(1, "earth.planet"));
+        scheduler.submit(delivery(2, "univer.ze"));
+        assertThat(scheduler.workers("earth.planet"), is(1));
+        assertThat(scheduler.workers("univer.ze"), is(1));
+        assertThat(scheduler.workers("unknown.domain"), is(0));
+        waitForWorkers("earth.planet", 0);
+        waitForWorkers("univer.ze", 0);
+    }
+
+    private void waitForWorkers(String domain, int count) throws InterruptedException {
+        while (scheduler.workers(domain) != count) {
+            Thread.sleep(20);
+        }
+    }
+
+    private static Delivery delivery(long id, String domain) {
+        Mail mail = new Mail("arthur@earth.planet", Arrays.asList("trillian@" + domain), "scheduler", "mail " + id);
+        return new Delivery(new QueuedMail(id, mail), domain);
+    }
+}
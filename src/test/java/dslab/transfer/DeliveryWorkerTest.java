@@ -0,0 +1,81 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import dslab.util.Mail;
+
+/**
+ * Splits the pending deliveries of a domain into batches.
+ */
+public class DeliveryWorkerTest {
+
+    @Test(timeout = 5000)
+    public void nextBatch_takesAtMostTheBatchSize() throws Exception {
+        DomainQueue queue = queue(5);
+        DeliveryWorker worker = worker(queue, 2, 0);
+
+        assertThat(ids(worker.nextBatch()), is(List.of(1L, 2L)));
+        assertThat(ids(worker.nextBatch()), is(List.of(3L, 4L)));
+        assertThat(ids(worker.nextBatch()), is(List.of(5L)));
+    }
+
+    @Test(timeout = 5000)
+    public void nextBatch_waitsForLateDeliveries() throws Exception {
+        DomainQueue queue = queue(1);
+        DeliveryWorker worker = worker(queue, 3, 2000);
+
+        CompletableFuture.runAsync(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.add(delivery(2), 1);
+            queue.add(delivery(3), 1);
+        });
+
+        // the batch is full before the wait is over
+        assertThat(ids(worker.nextBatch()), is(List.of(1L, 2L, 3L)));
+    }
+
+    @Test(timeout = 5000)
+    public void nextBatch_returnsNullOnceTheQueueStaysIdle() throws Exception {
+        DomainQueue queue = queue(1);
+        DeliveryWorker worker = worker(queue, 10, 0);
+
+        assertThat(ids(worker.nextBatch()), is(List.of(1L)));
+        assertThat(worker.nextBatch(), is(nullValue()));
+        assertThat(queue.workers(), is(0));
+    }
+
+    private static DomainQueue queue(int deliveries) {
+        DomainQueue queue = new DomainQueue(100);
+        for (long id = 1; id <= deliveries; id++) {
+            queue.add(delivery(id), 1);
+        }
+        return queue;
+    }
+
+    private static DeliveryWorker worker(DomainQueue queue, int batchSize, long batchWait) {
+        // batching does not touch the resolver, the pool or the mail queue
+        return new DeliveryWorker(queue, null, null, null, null, batchSize, batchWait, null, "mailer@127.0.0.1", null);
+    }
+
+    private static List<Long> ids(List<Delivery> batch) {
+        return batch.stream().map(d -> d.getQueuedMail().getId()).collect(Collectors.toList());
+    }
+
+    private static Delivery delivery(long id) {
+        Mail mail = new Mail("arthur@earth.planet", Arrays.asList("trillian@earth.planet"), "batch", "mail " + id);
+        return new Delivery(new QueuedMail(id, mail), "earth.planet");
+    }
+}
@@ -0,0 +1,157 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ServerSocket;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import dslab.nameserver.INameserverRemote;
+import dslab.util.AsyncLog;
+
+/**
+ * Resolves domains against a nameserver that is down, answers or hangs.
+ */
+public class DomainResolverTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Map<String, String> staticDomains = Map.of("earth.planet", "127.0.0.1:12482");
+
+    private AsyncLog log;
+    private Registry registry;
+    private FakeNameserver nameserver;
+    private DomainResolver resolver;
+
+    @Before
+    public void setUp() {
+        log = new AsyncLog("test", folder.getRoot().toPath().resolve("test.log"), 64, 1024 * 1024, 1, AsyncLog.Level.INFO);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (resolver != null) resolver.shutdown();
+        if (nameserver != null) {
+            nameserver.release.countDown();
+            UnicastRemoteObject.unexportObject(nameserver, true);
+        }
+        if (registry != null) UnicastRemoteObject.unexportObject(registry, true);
+        log.close();
+    }
+
+    @Test(timeout = 30000)
+    public void finishedLookups_areNotKeptInFlight() throws Exception {
+        // nothing listens on the registry port, every lookup falls back to the static domains at once
+        resolver = new DomainResolver("localhost", freePort(), "root-nameserver", staticDomains, 1, 1, 1000,
+                log.logger("delivery"));
+        for (int i = 0; i < 20000; i++) {
+            assertThat(resolver.resolve("earth.planet"), is("127.0.0.1:12482"));
+            resolver.resolve("unknown.planet");
+        }
+        while (resolver.lookupsInFlight() != 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void hungNameserver_doesNotHoldUpResolve() throws Exception {
+        startNameserver();
+        nameserver.blocked = true;
+        resolver = new DomainResolver("localhost", registryPort, "root-nameserver", staticDomains, 60000, 60000, 200,
+                log.logger("delivery"));
+
+        long start = System.currentTimeMillis();
+        assertThat(resolver.resolve("earth.planet"), is("127.0.0.1:12482"));
+        assertThat(resolver.resolve("unknown.planet"), is(nullValue()));
+        assertTrue("resolve waited for the nameserver", System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test(timeout = 30000)
+    public void expiredAddress_isReturnedWhileItsRefreshRuns() throws Exception {
+        startNameserver();
+        resolver = new DomainResolver("localhost", registryPort, "root-nameserver", staticDomains, 300, 300, 10000,
+                log.logger("delivery"));
+        assertThat(resolver.resolve("univer.ze"), is("127.0.0.1:1"));
+        // only entries that are in use are kept and refreshed
+        assertThat(resolver.resolve("univer.ze"), is("127.0.0.1:1"));
+
+        nameserver.blocked = true;
+        Thread.sleep(400);
+        long start = System.currentTimeMillis();
+        assertThat(resolver.resolve("univer.ze"), is("127.0.0.1:1"));
+        assertTrue("resolve waited for the refresh", System.currentTimeMillis() - start < 5000);
+
+        // once the nameserver answers again the refreshed address is used
+        nameserver.blocked = false;
+        nameserver.release.countDown();
+        while (!"127.0.0.1:2".equals(resolver.resolve("univer.ze"))) {
+            Thread.sleep(10);
+        }
+    }
+
+    private int registryPort;
+
+    private void startNameserver() throws Exception {
+        registryPort = freePort();
+        registry = LocateRegistry.createRegistry(registryPort);
+        nameserver = new FakeNameserver();
+        registry.bind("root-nameserver", UnicastRemoteObject.exportObject(nameserver, 0));
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Knows every mailbox server, with a new address on every lookup, and hangs while blocked.
+     */
+    private static class FakeNameserver implements INameserverRemote {
+
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final AtomicInteger lookups = new AtomicInteger();
+        private volatile boolean blocked;
+
+        @Override
+        public void registerNameserver(String domain, INameserverRemote nameserver) {
+        }
+
+        @Override
+        public void registerMailboxServer(String domain, String address) {
+        }
+
+        @Override
+        public INameserverRemote getNameserver(String zone) throws RemoteException {
+            if (blocked) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RemoteException("interrupted", e);
+                }
+            }
+            return this;
+        }
+
+        @Override
+        public String lookup(String username) {
+            if (username.equals("unknown")) return null;
+            return "127.0.0.1:" + lookups.incrementAndGet();
+        }
+    }
+}
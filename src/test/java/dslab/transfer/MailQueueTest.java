@@ -0,0 +1,103 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import dslab.util.AsyncLog;
+import dslab.util.Mail;
+
+/**
+ * Admits mails to the in-memory queue between the high and low watermarks.
+ */
+public class MailQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AsyncLog log;
+
+    @Before
+    public void setUp() {
+        log = new AsyncLog("test", folder.getRoot().toPath().resolve("test.log"), 64, 1024 * 1024, 1, AsyncLog.Level.INFO);
+    }
+
+    @After
+    public void tearDown() {
+        log.close();
+    }
+
+    @Test(timeout = 5000)
+    public void offer_rejectsFromTheHighUntilBelowTheLowWatermark() throws Exception {
+        MailQueue queue = new MailQueue(null, 3, 1, Long.MAX_VALUE, Long.MAX_VALUE, log.logger("spool"));
+        for (int i = 0; i < 3; i++) {
+            assertThat(queue.offer(mail("mail " + i)), is(true));
+        }
+        assertThat(queue.offer(mail("rejected")), is(false));
+
+        // still saturated above the low watermark, although below the high one
+        finish(queue.take(), queue);
+        assertThat(queue.offer(mail("rejected")), is(false));
+        finish(queue.take(), queue);
+        assertThat(queue.offer(mail("rejected")), is(false));
+
+        finish(queue.take(), queue);
+        assertThat(queue.isSaturated(), is(false));
+        assertThat(queue.offer(mail("accepted")), is(true));
+        assertThat(queue.acceptedMails(), is(4L));
+        assertThat(queue.rejectedMails(), is(3L));
+    }
+
+    @Test(timeout = 5000)
+    public void offer_rejectsOnceThePendingBytesReachTheHighWatermark() throws Exception {
+        MailQueue queue = new MailQueue(null, 100, 100, 1, 1, log.logger("spool"));
+        assertThat(queue.offer(mail("large")), is(true));
+        assertThat(queue.pendingBytes() > 0, is(true));
+        assertThat(queue.offer(mail("rejected")), is(false));
+
+        finish(queue.take(), queue);
+        assertThat(queue.pendingBytes(), is(0L));
+        assertThat(queue.offer(mail("accepted")), is(true));
+    }
+
+    @Test(timeout = 5000)
+    public void put_queuesMailsOfTheServerDespiteSaturation() throws Exception {
+        MailQueue queue = new MailQueue(null, 1, 1, Long.MAX_VALUE, Long.MAX_VALUE, log.logger("spool"));
+        assertThat(queue.offer(mail("client")), is(true));
+        assertThat(queue.isSaturated(), is(true));
+
+        queue.put(mail("error mail"));
+        assertThat(queue.size(), is(2));
+        assertThat(queue.pendingMails(), is(2));
+    }
+
+    @Test(timeout = 5000)
+    public void deliveryFinished_releasesTheMailAfterItsLastDomain() throws Exception {
+        MailQueue queue = new MailQueue(null, 10, 10, Long.MAX_VALUE, Long.MAX_VALUE, log.logger("spool"));
+        queue.offer(mail("two domains"));
+        QueuedMail queued = queue.take();
+        queue.expectDeliveries(queued, 2);
+
+        queue.deliveryFinished(queued);
+        assertThat(queue.pendingMails(), is(1));
+        queue.deliveryFinished(queued);
+        assertThat(queue.pendingMails(), is(0));
+        assertThat(queue.pendingBytes(), is(0L));
+    }
+
+    private static void finish(QueuedMail mail, MailQueue queue) {
+        queue.expectDeliveries(mail, 1);
+        queue.deliveryFinished(mail);
+    }
+
+    private static Mail mail(String data) {
+        return new Mail("arthur@earth.planet", Arrays.asList("trillian@earth.planet"), "subject", data);
+    }
+}
@@ -0,0 +1,153 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import dslab.util.AsyncLog;
+import dslab.util.Mail;
+
+/**
+ * Restarts the mail spool on the files a previous instance left behind.
+ */
+public class MailSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AsyncLog log;
+
+    @Before
+    public void setUp() {
+        log = new AsyncLog("test", folder.getRoot().toPath().resolve("test.log"), 64, 1024 * 1024, 1, AsyncLog.Level.INFO);
+    }
+
+    @After
+    public void tearDown() {
+        log.close();
+    }
+
+    @Test
+    public void restart_recoversOnlyUnfinishedMails() throws Exception {
+        Path dir = folder.newFolder("spool").toPath();
+        try (MailSpool spool = new MailSpool(dir, 1024 * 1024, 8, log.logger("spool"))) {
+            spool.append(mail("first"));
+            spool.markDone(spool.append(mail("second")));
+            spool.append(mail("third"));
+        }
+
+        try (MailSpool spool = new MailSpool(dir, 1024 * 1024, 8, log.logger("spool"))) {
+            assertThat(spool.recovered().keySet(), is(Set.of(1L, 3L)));
+            assertThat(spool.recovered().get(3L).getData(), is("third"));
+            // ids are not reused after a restart
+            assertThat(spool.append(mail("fourth")), is(4L));
+        }
+    }
+
+    @Test
+    public void restartAfterKill_recoversAppendedMails() throws Exception {
+        Path dir = folder.newFolder("spool").toPath();
+        Path copy = folder.newFolder("killed").toPath();
+        try (MailSpool spool = new MailSpool(dir, 1024 * 1024, 8, log.logger("spool"))) {
+            spool.append(mail("first"));
+            spool.append(mail("second"));
+            // append returns once the mail is on disk, a copy of the files is what a killed process leaves behind
+            copyFiles(dir, copy);
+        }
+
+        try (MailSpool spool = new MailSpool(copy, 1024 * 1024, 8, log.logger("spool"))) {
+            assertThat(spool.recovered().keySet(), is(Set.of(1L, 2L)));
+            assertThat(spool.recovered().get(2L).getData(), is("second"));
+        }
+    }
+
+    @Test
+    public void restart_cutsOffTornTail() throws Exception {
+        Path dir = folder.newFolder("spool").toPath();
+        try (MailSpool spool = new MailSpool(dir, 1024 * 1024, 8, log.logger("spool"))) {
+            spool.append(mail("first"));
+            spool.append(mail("second"));
+        }
+        Path segment = segments(dir).get(0);
+        long validBytes = Files.size(segment);
+
+        // a record that was cut off in the middle, followed by nothing
+        appendBytes(segment, ByteBuffer.allocate(13).putInt(100).put((byte) 1).putLong(3).array());
+        try (MailSpool spool = new MailSpool(dir, 1024 * 1024, 8, log.logger("spool"))) {
+            assertThat(spool.recovered().keySet(), is(Set.of(1L, 2L)));
+            assertThat(Files.size(segment), is(validBytes));
+        }
+
+        // a garbage length close to Integer.MAX_VALUE
+        appendBytes(segment, ByteBuffer.allocate(16).putInt(Integer.MAX_VALUE - 2).putLong(7).putInt(0).array());
+        try (MailSpool spool = new MailSpool(dir, 1024 * 1024, 8, log.logger("spool"))) {
+            assertThat(spool.recovered().keySet(), is(Set.of(1L, 2L)));
+            assertThat(Files.size(segment), is(validBytes));
+            spool.append(mail("third"));
+        }
+
+        // mails appended after the cut are found again
+        try (MailSpool spool = new MailSpool(dir, 1024 * 1024, 8, log.logger("spool"))) {
+            assertThat(spool.recovered().keySet(), is(Set.of(1L, 2L, 3L)));
+        }
+    }
+
+    @Test
+    public void compaction_movesLongLivedMailAndDeletesOldSegments() throws Exception {
+        Path dir = folder.newFolder("spool").toPath();
+        try (MailSpool spool = new MailSpool(dir, 256, 2, log.logger("spool"))) {
+            spool.append(mail("long lived"));
+            for (int i = 0; i < 50; i++) {
+                spool.markDone(spool.append(mail("short lived " + i)));
+            }
+        }
+        assertTrue("old segments were not deleted: " + segments(dir), segments(dir).size() <= 3);
+        assertTrue("the first segment was not compacted away", !segments(dir).get(0).getFileName().toString()
+                .equals("segment-00000001.log"));
+
+        try (MailSpool spool = new MailSpool(dir, 256, 2, log.logger("spool"))) {
+            assertThat(spool.recovered().keySet(), is(Set.of(1L)));
+            assertThat(spool.recovered().get(1L).getData(), is("long lived"));
+        }
+    }
+
+    private static Mail mail(String data) {
+        return new Mail("arthur@earth.planet", Arrays.asList("trillian@earth.planet"), "spool", data);
+    }
+
+    private static List<Path> segments(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static void copyFiles(Path from, Path to) throws IOException {
+        for (Path file : segments(from)) {
+            Files.copy(file, to.resolve(file.getFileName()));
+        }
+    }
+
+    private static void appendBytes(Path file, byte[] bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(bytes));
+        }
+    }
+}
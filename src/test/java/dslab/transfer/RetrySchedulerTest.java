@@ -0,0 +1,91 @@
+package dslab.transfer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import dslab.util.Mail;
+
+/**
+ * Backs off failed deliveries by their own attempts and the failed connections of their domain.
+ */
+public class RetrySchedulerTest {
+
+    private final LinkedBlockingQueue<Delivery> resubmitted = new LinkedBlockingQueue<>();
+    private final RetryScheduler scheduler = new RetryScheduler(3, 100, 10000);
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void delay_growsExponentiallyUpToTheMaximum() {
+        for (int i = 0; i < 100; i++) {
+            assertBetween(scheduler.delay(1), 50, 100);
+            assertBetween(scheduler.delay(3), 200, 400);
+            assertBetween(scheduler.delay(30), 5000, 10000);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void failedBatch_countsAsOneDomainFailure() throws Exception {
+        scheduler.start(resubmitted::add);
+        long start = System.currentTimeMillis();
+        scheduler.domainFailed("earth.planet");
+        for (int i = 0; i < 8; i++) {
+            assertThat(scheduler.retry(delivery(i, "earth.planet")), is(true));
+        }
+        for (int i = 0; i < 8; i++) {
+            assertThat(resubmitted.poll(5, TimeUnit.SECONDS), is(notNullValue()));
+        }
+        // every mail of the batch waits the base delay, none of them the maximum
+        assertTrue(System.currentTimeMillis() - start < 2000);
+    }
+
+    @Test(timeout = 10000)
+    public void consecutiveDomainFailures_delayNewDeliveries() throws Exception {
+        scheduler.start(resubmitted::add);
+        for (int i = 0; i < 3; i++) {
+            scheduler.domainFailed("earth.planet");
+        }
+        long start = System.currentTimeMillis();
+        assertThat(scheduler.retry(delivery(1, "earth.planet")), is(true));
+        assertThat(scheduler.retry(delivery(2, "univer.ze")), is(true));
+        assertThat(resubmitted.poll(5, TimeUnit.SECONDS).getDomain(), is("univer.ze"));
+        assertThat(resubmitted.poll(5, TimeUnit.SECONDS).getDomain(), is("earth.planet"));
+        assertTrue(System.currentTimeMillis() - start >= 200);
+
+        // a delivery resets the backoff of its domain
+        scheduler.succeeded("earth.planet");
+        start = System.currentTimeMillis();
+        assertThat(scheduler.retry(delivery(3, "earth.planet")), is(true));
+        assertThat(resubmitted.poll(5, TimeUnit.SECONDS), is(notNullValue()));
+        assertTrue(System.currentTimeMillis() - start < 200);
+    }
+
+    @Test
+    public void retry_givesUpAfterTheMaximumAttempts() {
+        Delivery delivery = delivery(1, "earth.planet");
+        assertThat(scheduler.retry(delivery), is(true));
+        assertThat(scheduler.retry(delivery), is(true));
+        assertThat(scheduler.retry(delivery), is(false));
+    }
+
+    private static void assertBetween(long value, long min, long max) {
+        assertTrue(value + " not in [" + min + ", " + max + "]", value >= min && value <= max);
+    }
+
+    private static Delivery delivery(long id, String domain) {
+        Mail mail = new Mail("arthur@earth.planet", Arrays.asList("trillian@" + domain), "retry", "mail " + id);
+        return new Delivery(new QueuedMail(id, mail), domain);
+    }
+}
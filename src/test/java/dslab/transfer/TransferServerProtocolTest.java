@@ -4,9 +4,10 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
-import dslab.ComponentFactory;
 import dslab.Constants;
 import dslab.JunitSocketClient;
 import dslab.Sockets;
@@ -20,6 +21,9 @@ public class TransferServerProtocolTest extends TestBase {
 
     private static final Log LOG = LogFactory.getLog(TransferServerProtocolTest.class);
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private String componentId = "transfer-1";
 
     private ITransferServer component;
@@ -27,8 +31,11 @@ public class TransferServerProtocolTest extends TestBase {
 
     @Before
     public void setUp() throws Exception {
-        component = ComponentFactory.createTransferServer(componentId, in, out);
-        serverPort = new Config(componentId).getInt("tcp.port");
+        // mails spooled by one test must not be replayed by the next
+        Config config = new Config(componentId);
+        config.setProperty("spool.dir", folder.newFolder("spool").getPath());
+        component = new TransferServer(componentId, config, in, out);
+        serverPort = config.getInt("tcp.port");
         new Thread(component).start();
 
         LOG.info("Waiting for server socket to appear");
@@ -68,4 +75,52 @@ public class TransferServerProtocolTest extends TestBase {
         }
     }
 
+    @Test(timeout = 15000)
+    public void pipelinedDmtpInteraction_answersAllCommandsInOrder() throws Exception {
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("capabilities", "ok pipelining");
+
+            // write the whole block before reading any response
+            client.send("begin");
+            client.send("from trillian@earth.planet");
+            client.send("to arthur@earth.planet");
+            client.send("subject hello");
+            client.send("data hello from junit");
+            client.send("send");
+            client.send("quit");
+
+            client.verify("ok");
+            client.verify("ok");
+            client.verify("ok 1");
+            client.verify("ok");
+            client.verify("ok");
+            client.verify("ok");
+            client.verify("ok bye");
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void pipelinedDmtpInteraction_withInvalidRecipient_failsOnSend() throws Exception {
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+
+            client.send("begin");
+            client.send("from trillian@earth.planet");
+            client.send("to arthur");
+            client.send("subject hello");
+            client.send("data hello from junit");
+            client.send("send");
+            client.send("quit");
+
+            client.verify("ok");
+            client.verify("ok");
+            client.verify("error");
+            client.verify("ok");
+            client.verify("ok");
+            client.verify("error no recipients");
+            client.verify("ok bye");
+        }
+    }
+
 }
@@ -0,0 +1,101 @@
+package dslab.transfer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import dslab.Constants;
+import dslab.JunitSocketClient;
+import dslab.Sockets;
+import dslab.TestBase;
+import dslab.util.Config;
+
+/**
+ * Runs the DMTP protocol against a transfer server in selector mode, with the spool on so that every send waits for
+ * the disk on a worker thread.
+ */
+public class TransferServerSelectorTest extends TestBase {
+
+    private static final Log LOG = LogFactory.getLog(TransferServerSelectorTest.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String componentId = "transfer-1";
+
+    private ITransferServer component;
+    private int serverPort;
+
+    @Before
+    public void setUp() throws Exception {
+        Config config = new Config(componentId);
+        config.setProperty("dmtp.mode", "selector");
+        config.setProperty("dmtp.selector.threads", 1);
+        config.setProperty("spool.dir", folder.newFolder("spool").getPath());
+        component = new TransferServer(componentId, config, in, out);
+        serverPort = config.getInt("tcp.port");
+        new Thread(component).start();
+
+        LOG.info("Waiting for server socket to appear");
+        Sockets.waitForSocket("localhost", serverPort, Constants.COMPONENT_STARTUP_WAIT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        in.addLine("shutdown"); // send "shutdown" command to command line
+        Thread.sleep(Constants.COMPONENT_TEARDOWN_WAIT);
+    }
+
+    @Test(timeout = 15000)
+    public void defaultDmtpInteraction_inSelectorMode() throws Exception {
+        try (JunitSocketClient client = new JunitSocketClient(serverPort, err)) {
+            client.verify("ok DMTP");
+            client.sendAndVerify("begin", "ok");
+            client.sendAndVerify("from trillian@earth.planet", "ok");
+            client.sendAndVerify("to arthur@earth.planet", "ok 1");
+            client.sendAndVerify("subject hello", "ok");
+            client.sendAndVerify("data hello from junit", "ok");
+            client.sendAndVerify("send", "ok");
+            client.sendAndVerify("send", "error must begin email first");
+            client.sendAndVerify("quit", "ok bye");
+        }
+    }
+
+    @Test(timeout = 15000)
+    public void pipelinedSends_onConcurrentConnections_areAnsweredInOrder() throws Exception {
+        try (JunitSocketClient first = new JunitSocketClient(serverPort, err);
+             JunitSocketClient second = new JunitSocketClient(serverPort, err)) {
+            first.verify("ok DMTP");
+            second.verify("ok DMTP");
+
+            // both connections share the single event loop, the requests after each send wait for its response
+            for (JunitSocketClient client : new JunitSocketClient[] {first, second}) {
+                for (int i = 0; i < 3; i++) {
+                    client.send("begin");
+                    client.send("from trillian@earth.planet");
+                    client.send("to arthur@earth.planet");
+                    client.send("subject hello " + i);
+                    client.send("data hello from junit");
+                    client.send("send");
+                }
+                client.send("quit");
+            }
+
+            for (JunitSocketClient client : new JunitSocketClient[] {first, second}) {
+                for (int i = 0; i < 3; i++) {
+                    client.verify("ok");
+                    client.verify("ok");
+                    client.verify("ok 1");
+                    client.verify("ok");
+                    client.verify("ok");
+                    client.verify("ok");
+                }
+                client.verify("ok bye");
+            }
+        }
+    }
+}
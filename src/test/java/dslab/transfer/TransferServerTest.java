@@ -8,9 +8,10 @@ import java.net.SocketTimeoutException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
-import dslab.ComponentFactory;
 import dslab.Constants;
 import dslab.Sockets;
 import dslab.TestBase;
@@ -24,10 +25,15 @@ public class TransferServerTest extends TestBase {
 
     private static final Log LOG = LogFactory.getLog(MonitoringServerTest.class);
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void runAndShutdownTransferServer_createsAndStopsTcpSocketCorrectly() throws Exception {
-        ITransferServer component = ComponentFactory.createTransferServer("transfer-1", in, out);
-        int port = new Config("transfer-1").getInt("tcp.port");
+        Config config = new Config("transfer-1");
+        config.setProperty("spool.dir", folder.newFolder("spool").getPath());
+        ITransferServer component = new TransferServer("transfer-1", config, in, out);
+        int port = config.getInt("tcp.port");
 
         assertThat(component, is(notNullValue()));
 
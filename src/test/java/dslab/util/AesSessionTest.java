@@ -0,0 +1,91 @@
+package dslab.util;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+/**
+ * Encrypts lines and frames with one session and decrypts them with a peer holding the same key and IV.
+ */
+public class AesSessionTest {
+
+    private final byte[] key = random(32);
+    private final byte[] iv = random(16);
+
+    @Test
+    public void lines_roundTripWithAReusedCipher() throws Exception {
+        AesSession client = session();
+        AesSession server = session();
+        String longLine = String.join("", Collections.nCopies(100, "dont panic "));
+
+        for (String line : Arrays.asList("ok DMAP2.0", "", "list", "grüße aus der galaxis", longLine, "quit")) {
+            assertThat(server.decrypt(client.encrypt(line)), is(line));
+            assertThat(client.decrypt(server.encrypt(line)), is(line));
+        }
+        assertThat(server.decrypt(null), is(nullValue()));
+    }
+
+    @Test
+    public void everyLine_startsAtTheBeginningOfTheKeyStream() throws Exception {
+        AesSession session = session();
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+        String expected = Base64.getEncoder().encodeToString(cipher.doFinal("show 1".getBytes(StandardCharsets.UTF_8)));
+
+        session.encrypt("a much longer line before it");
+
+        assertThat(session.encrypt("show 1"), is(expected));
+        assertThat(session.encrypt("show 1"), is(expected));
+    }
+
+    @Test
+    public void resume_derivesTheSameNewSessionOnBothSides() throws Exception {
+        byte[] nonce = random(32);
+        AesSession client = session().resume(nonce);
+        AesSession server = session().resume(nonce);
+
+        assertThat(Arrays.equals(client.getKey().getEncoded(), key), is(false));
+        assertThat(server.decrypt(client.encrypt("list")), is("list"));
+        assertThat(session().resume(random(32)).encrypt("list"), is(not(client.encrypt("list"))));
+    }
+
+    @Test
+    public void streamCiphers_continueTheKeyStreamAcrossFrames() throws Exception {
+        Cipher encrypt = session().streamCipher("client", Cipher.ENCRYPT_MODE);
+        Cipher decrypt = session().streamCipher("client", Cipher.DECRYPT_MODE);
+        Cipher otherDirection = session().streamCipher("server", Cipher.ENCRYPT_MODE);
+
+        byte[] frame = "show 1".getBytes(StandardCharsets.UTF_8);
+        byte[] first = encrypt.update(frame);
+        byte[] second = encrypt.update(frame);
+
+        // the same frame is encrypted differently each time and by the other direction
+        assertThat(Arrays.equals(first, second), is(false));
+        assertThat(Arrays.equals(first, otherDirection.update(frame)), is(false));
+        assertThat(new String(decrypt.update(first), StandardCharsets.UTF_8), is("show 1"));
+        assertThat(new String(decrypt.update(second), StandardCharsets.UTF_8), is("show 1"));
+    }
+
+    private AesSession session() throws Exception {
+        return new AesSession(new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+    }
+
+    private static byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        new SecureRandom().nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,133 @@
+package dslab.util;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs and rejects connections that block until the test releases them.
+ */
+public class ConnectionExecutorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final Semaphore started = new Semaphore(0);
+    private final List<Socket> sockets = new ArrayList<>();
+    private AsyncLog log;
+    private ServerSocket serverSocket;
+    private ConnectionExecutor executor;
+
+    @Before
+    public void setUp() throws IOException {
+        log = new AsyncLog("test", folder.getRoot().toPath().resolve("test.log"), 64, 1024 * 1024, 1, AsyncLog.Level.INFO);
+        serverSocket = new ServerSocket(0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        release.countDown();
+        if (executor != null) executor.shutdown();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        serverSocket.close();
+        log.close();
+    }
+
+    @Test(timeout = 10000)
+    public void limitMode_rejectsConnectionsAboveTheLimit() throws Exception {
+        executor = new ConnectionExecutor("dmtp", "limit", 1, 0, "error server busy", log.logger("dmtp"));
+        execute();
+        assertTrue(started.tryAcquire(5, TimeUnit.SECONDS));
+
+        Socket rejected = execute();
+
+        assertThat(readLine(rejected), is("error server busy"));
+        assertThat(executor.stats(), containsString("mode limit, active 1, queued 0, completed 0, rejected 1"));
+
+        release.countDown();
+        waitForCompleted(1);
+        execute();
+        assertTrue("the freed permit was not reused", started.tryAcquire(5, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void poolMode_queuesAndThenRejectsConnections() throws Exception {
+        executor = new ConnectionExecutor("dmap", "pool", 1, 1, "error server busy", log.logger("dmap"));
+        execute();
+        assertTrue(started.tryAcquire(5, TimeUnit.SECONDS));
+        execute();
+
+        Socket rejected = execute();
+
+        assertThat(readLine(rejected), is("error server busy"));
+        assertThat(executor.stats(), containsString("mode pool, active 1, queued 1, completed 0, rejected 1"));
+
+        // the queued connection runs once the pool thread is free
+        release.countDown();
+        assertTrue(started.tryAcquire(5, TimeUnit.SECONDS));
+        waitForCompleted(2);
+    }
+
+    @Test(timeout = 10000)
+    public void threadMode_neverRejects() throws Exception {
+        executor = new ConnectionExecutor("dmtp", "thread", 1, 0, "error server busy", log.logger("dmtp"));
+        for (int i = 0; i < 5; i++) {
+            execute();
+        }
+
+        assertTrue(started.tryAcquire(5, 5, TimeUnit.SECONDS));
+        assertThat(executor.stats(), containsString("mode thread, active 5, queued 0, completed 0, rejected 0"));
+    }
+
+    /**
+     * Connects to the server socket and hands the accepted side to the executor.
+     *
+     * @return the client side of the connection
+     */
+    private Socket execute() throws IOException {
+        Socket client = new Socket("127.0.0.1", serverSocket.getLocalPort());
+        Socket accepted = serverSocket.accept();
+        sockets.add(client);
+        sockets.add(accepted);
+        executor.execute(accepted, () -> {
+            started.release();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        return client;
+    }
+
+    private void waitForCompleted(int completed) throws InterruptedException {
+        while (!executor.stats().contains("completed " + completed)) {
+            Thread.sleep(20);
+        }
+    }
+
+    private static String readLine(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+    }
+}